@@ -0,0 +1,31 @@
+package snowy.autumn.tor.bench;
+
+import snowy.autumn.tor.cell.Cell;
+import snowy.autumn.tor.relay.Guard;
+
+public class BenchGuard extends Guard {
+
+    // A guard that never connects anywhere. Cells are serialised just like they would be before being written to the link, and then dropped.
+    private long sentCells = 0;
+    private byte[] lastSent;
+
+    public BenchGuard() {
+        super("127.0.0.1", 0, new byte[20]);
+    }
+
+    @Override
+    public boolean sendCell(Cell cell, boolean flush) {
+        lastSent = cell.serialiseCell();
+        sentCells++;
+        return true;
+    }
+
+    public long getSentCells() {
+        return sentCells;
+    }
+
+    public byte[] getLastSent() {
+        return lastSent;
+    }
+
+}
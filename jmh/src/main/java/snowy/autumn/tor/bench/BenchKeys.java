@@ -0,0 +1,30 @@
+package snowy.autumn.tor.bench;
+
+import snowy.autumn.tor.crypto.Keys;
+
+import java.util.Random;
+
+public class BenchKeys {
+
+    // The keys of a single hop, as seen by the client and by the relay.
+    // The relay's forward digest and encryption key are the client's backward ones, so it can produce cells that the client would accept.
+    public record HopKeys(Keys client, Keys relay) {}
+
+    public static HopKeys generate(Random random) {
+        byte[] digestForward = randomBytes(random, 20);
+        byte[] digestBackward = randomBytes(random, 20);
+        byte[] keyForward = randomBytes(random, 16);
+        byte[] keyBackward = randomBytes(random, 16);
+        byte[] KH = randomBytes(random, 20);
+        return new HopKeys(
+                new Keys(digestForward, digestBackward, keyForward, keyBackward, KH),
+                new Keys(digestBackward, digestForward, keyBackward, keyForward, KH));
+    }
+
+    public static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+}
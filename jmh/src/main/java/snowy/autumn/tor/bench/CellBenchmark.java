@@ -0,0 +1,55 @@
+package snowy.autumn.tor.bench;
+
+import org.openjdk.jmh.annotations.*;
+import snowy.autumn.tor.cell.Cell;
+import snowy.autumn.tor.cell.cells.relay.RelayCell;
+import snowy.autumn.tor.cell.cells.relay.commands.DataCommand;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CellBenchmark {
+
+    private static final int CIRCUIT_ID = 0x80000001;
+
+    private RelayCell.EncryptedRelayCell relayCell;
+    private byte[] relayCellBody;
+    private DataCommand dataCommand;
+    private byte[] dataCommandBody;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        relayCellBody = BenchKeys.randomBytes(random, Cell.FIXED_CELL_BODY_LENGTH);
+        relayCell = new RelayCell.EncryptedRelayCell(CIRCUIT_ID, false, relayCellBody);
+        dataCommand = new DataCommand(CIRCUIT_ID, (short) 1, BenchKeys.randomBytes(random, DataCommand.MAX_DATA_SIZE));
+        dataCommandBody = dataCommand.serialiseBody();
+    }
+
+    @Benchmark
+    public byte[] serialiseCell() {
+        return relayCell.serialiseCell();
+    }
+
+    @Benchmark
+    public Cell parseCell() {
+        return Cell.parseCell(CIRCUIT_ID, Cell.RELAY, relayCellBody);
+    }
+
+    @Benchmark
+    public byte[] serialiseRelayBody() {
+        return dataCommand.serialiseBody();
+    }
+
+    @Benchmark
+    public RelayCell interpretCommand() {
+        return RelayCell.interpretCommand(CIRCUIT_ID, dataCommandBody);
+    }
+
+}
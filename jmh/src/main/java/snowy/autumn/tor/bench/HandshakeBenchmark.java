@@ -0,0 +1,148 @@
+package snowy.autumn.tor.bench;
+
+import org.openjdk.jmh.annotations.*;
+import snowy.autumn.tor.crypto.Cryptography;
+import snowy.autumn.tor.crypto.KeyPair;
+import snowy.autumn.tor.crypto.Keys;
+import snowy.autumn.tor.relay.Handshakes;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static snowy.autumn.tor.crypto.Cryptography.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandshakeBenchmark {
+
+    private byte[] kdfX;
+    private byte[] kdfY;
+
+    private byte[] fingerprint;
+    private byte[] ed25519Id;
+    private KeyPair onionKeyPair;
+    private KeyPair clientKeyPair;
+    private KeyPair serverKeyPair;
+    private byte[] ntorAuth;
+    private byte[] ntorV3Message;
+    private byte[] ntorV3ServerMessage;
+    private byte[] ntorV3Auth;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        kdfX = BenchKeys.randomBytes(random, 20);
+        kdfY = BenchKeys.randomBytes(random, 20);
+        fingerprint = BenchKeys.randomBytes(random, 20);
+        ed25519Id = BenchKeys.randomBytes(random, 32);
+        onionKeyPair = Cryptography.generateX25519KeyPair();
+        clientKeyPair = Cryptography.generateX25519KeyPair();
+        serverKeyPair = Cryptography.generateX25519KeyPair();
+        // The relay's side of the handshakes is done once here, so that the client's side can be measured on its own.
+        ntorAuth = ntorServerAuth();
+        ntorV3Message = new byte[0];
+        ntorV3ServerMessage = new byte[0];
+        byte[] mac = Handshakes.generateNtorV3Block(ed25519Id, onionKeyPair.publicKey(), clientKeyPair, ntorV3Message)[1];
+        ntorV3Auth = ntorV3ServerAuth(mac);
+        if (ntor() == null || ntorV3() == null) throw new IllegalStateException("The relay's side of the handshakes doesn't match the client's.");
+    }
+
+    private static byte[] hmacSha256(byte[] key, byte[] message) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(message);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private byte[] ntorServerAuth() {
+        byte[] X = clientKeyPair.publicKey();
+        byte[] Y = serverKeyPair.publicKey();
+        byte[] B = onionKeyPair.publicKey();
+        byte[] secretInput = ByteBuffer.allocate(32 + 32 + fingerprint.length + B.length + X.length + Y.length + NTOR_PROTOID.length())
+                .put(computeSharedSecret(serverKeyPair.privateKey(), X))
+                .put(computeSharedSecret(onionKeyPair.privateKey(), X))
+                .put(fingerprint)
+                .put(B)
+                .put(X)
+                .put(Y)
+                .put(NTOR_PROTOID.getBytes())
+                .array();
+        byte[] verify = hmacSha256(NTOR_t_verify.getBytes(), secretInput);
+        byte[] authInput = ByteBuffer.allocate(verify.length + fingerprint.length + B.length + Y.length + X.length + NTOR_PROTOID.length() + "Server".length())
+                .put(verify)
+                .put(fingerprint)
+                .put(B)
+                .put(Y)
+                .put(X)
+                .put(NTOR_PROTOID.getBytes())
+                .put("Server".getBytes())
+                .array();
+        return hmacSha256(NTOR_t_mac.getBytes(), authInput);
+    }
+
+    private byte[] ntorV3ServerAuth(byte[] mac) {
+        byte[] X = clientKeyPair.publicKey();
+        byte[] Y = serverKeyPair.publicKey();
+        byte[] B = onionKeyPair.publicKey();
+        byte[] secretInput = ByteBuffer.allocate(32 + 32 + ed25519Id.length + B.length + X.length + Y.length + NTORv3_PROTOID.length() + NTORv3_VER_ENCAP.length)
+                .put(computeSharedSecret(serverKeyPair.privateKey(), X))
+                .put(computeSharedSecret(onionKeyPair.privateKey(), X))
+                .put(ed25519Id)
+                .put(B)
+                .put(X)
+                .put(Y)
+                .put(NTORv3_PROTOID.getBytes())
+                .put(NTORv3_VER_ENCAP)
+                .array();
+        byte[] verify = createDigest("SHA3-256", NTORv3_t_verify_ENCAP).digest(secretInput);
+        byte[] encapsulatedMessage = ENCAP(ntorV3ServerMessage);
+        byte[] authInput = ByteBuffer.allocate(verify.length + ed25519Id.length + B.length + Y.length + X.length + mac.length + encapsulatedMessage.length + NTORv3_PROTOID.length() + "Server".length())
+                .put(verify)
+                .put(ed25519Id)
+                .put(B)
+                .put(Y)
+                .put(X)
+                .put(mac)
+                .put(encapsulatedMessage)
+                .put(NTORv3_PROTOID.getBytes())
+                .put("Server".getBytes())
+                .array();
+        MessageDigest sha3_256 = createDigest("SHA3-256", NTORv3_t_auth_ENCAP);
+        return sha3_256.digest(authInput);
+    }
+
+    @Benchmark
+    public Keys kdfTor() {
+        return Cryptography.kdfTor(kdfX, kdfY);
+    }
+
+    @Benchmark
+    public Keys ntor() {
+        Handshakes.generateNtorBlock(fingerprint, onionKeyPair.publicKey(), clientKeyPair);
+        return Handshakes.finishNtorHandshake(onionKeyPair.publicKey(), fingerprint, clientKeyPair, serverKeyPair.publicKey(), ntorAuth);
+    }
+
+    @Benchmark
+    public Keys ntorV3() {
+        byte[] mac = Handshakes.generateNtorV3Block(ed25519Id, onionKeyPair.publicKey(), clientKeyPair, ntorV3Message)[1];
+        return Handshakes.finishNtorV3Handshake(onionKeyPair.publicKey(), ed25519Id, clientKeyPair, serverKeyPair.publicKey(), mac, ntorV3Auth, ntorV3ServerMessage);
+    }
+
+    @Benchmark
+    public KeyPair generateKeyPair() {
+        return Cryptography.generateX25519KeyPair();
+    }
+
+}
@@ -0,0 +1,80 @@
+package snowy.autumn.tor.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import snowy.autumn.tor.cell.cells.relay.RelayCell;
+import snowy.autumn.tor.cell.cells.relay.commands.DataCommand;
+import snowy.autumn.tor.circuit.Circuit;
+import snowy.autumn.tor.crypto.Cryptography;
+import snowy.autumn.tor.crypto.Keys;
+import snowy.autumn.tor.relay.Relay;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OnionCryptoBenchmark {
+
+    // Every invocation goes through a batch of cells on a fresh circuit, since a circuit keeps state for every cell it has sent or received.
+    private static final int BATCH = 256;
+    private static final int HOPS = 3;
+    private static final short STREAM_ID = 1;
+
+    @State(Scope.Thread)
+    public static class CircuitState {
+
+        Circuit circuit;
+        DataCommand dataCommand;
+        ArrayList<Keys> relayKeys = new ArrayList<>();
+        RelayCell.EncryptedRelayCell[] incoming = new RelayCell.EncryptedRelayCell[BATCH];
+        private final Random random = new Random(0);
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            ArrayList<Relay> relays = new ArrayList<>();
+            ArrayList<Keys> clientKeys = new ArrayList<>();
+            relayKeys.clear();
+            relays.add(new BenchGuard());
+            for (int hop = 0; hop < HOPS; hop++) {
+                if (hop != 0) relays.add(new Relay("127.0.0.1", 0));
+                BenchKeys.HopKeys hopKeys = BenchKeys.generate(random);
+                clientKeys.add(hopKeys.client());
+                relayKeys.add(hopKeys.relay());
+            }
+            circuit = new Circuit(1, relays, clientKeys);
+            dataCommand = new DataCommand(circuit.getCircuitId(), STREAM_ID, BenchKeys.randomBytes(random, DataCommand.MAX_DATA_SIZE));
+            // Cells from the exit are digested by the exit, and then encrypted by every hop on their way back to the client.
+            for (int i = 0; i < BATCH; i++) {
+                byte[] body = dataCommand.serialiseBody();
+                byte[] digest = relayKeys.getLast().digestForward().update(body);
+                System.arraycopy(digest, 0, body, 5, 4);
+                for (int hop = HOPS - 1; hop >= 0; hop--)
+                    Cryptography.updateInPlace(relayKeys.get(hop).encryptionKey(), body);
+                incoming[i] = new RelayCell.EncryptedRelayCell(circuit.getCircuitId(), false, body);
+            }
+        }
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void encrypt(CircuitState state, Blackhole blackhole) {
+        for (int i = 0; i < BATCH; i++)
+            blackhole.consume(state.circuit.sendRelayCell(state.dataCommand));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void decrypt(CircuitState state) {
+        // Just like on a real circuit, every 100th DATA cell makes the circuit send a SENDME (through BenchGuard, which discards it),
+        // so this includes building, digesting and encrypting those as well. Results from before SENDMEs were sent aren't comparable.
+        for (RelayCell.EncryptedRelayCell cell : state.incoming)
+            state.circuit.addCell(cell);
+    }
+
+}
@@ -0,0 +1,78 @@
+package snowy.autumn.tor.bench;
+
+import org.openjdk.jmh.annotations.*;
+import snowy.autumn.tor.bench.network.FakeTorNetwork;
+import snowy.autumn.tor.client.ConnectionIO;
+import snowy.autumn.tor.client.ConnectionInfo;
+import snowy.autumn.tor.client.TorClient;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TorClientBenchmark {
+
+    // End to end benchmarks of the whole client against a fake network on the loopback interface (see FakeTorNetwork).
+    // Every exit in the fake network echoes whatever is sent to it, regardless of the address and port.
+    private static final String ECHO_HOST = "echo.invalid";
+    private static final int ECHO_PORT = 7;
+
+    @Param({"16384", "1048576"})
+    public int payloadSize;
+
+    // Whether the exits agree to use congestion control, or the client has to fall back to fixed windows.
+    @Param({"true", "false"})
+    public boolean congestionControl;
+
+    private FakeTorNetwork network;
+    private TorClient torClient;
+    private ConnectionIO connection;
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws IOException {
+        network = new FakeTorNetwork(3, 6, 3, congestionControl);
+        torClient = new TorClient(null);
+        torClient.initClient(network.createConsensus());
+        ConnectionInfo connectionInfo = torClient.connect(ECHO_HOST, ECHO_PORT);
+        if (!connectionInfo.isConnected())
+            throw new IllegalStateException("Couldn't connect through the fake network (status " + connectionInfo.getStatus() + ").");
+        connection = connectionInfo.getConnectionIO();
+        payload = BenchKeys.randomBytes(new Random(0), payloadSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        connection.close();
+        torClient.shutdown();
+        network.close();
+    }
+
+    @Benchmark
+    public int echo() {
+        // Sends the payload and waits until all of it came back, so this measures round trip throughput (payloadSize bytes each way per operation).
+        if (!connection.write(payload)) throw new IllegalStateException("The echo stream was closed.");
+        int received = 0;
+        while (received < payloadSize) {
+            byte[] data = connection.read();
+            if (data == null) throw new IllegalStateException("The echo stream was closed.");
+            received += data.length;
+        }
+        return received;
+    }
+
+    @Benchmark
+    public byte openStream() {
+        // Opens (and closes) a stream on an existing circuit, which is dominated by the round trip to the exit.
+        ConnectionInfo connectionInfo = torClient.connect(ECHO_HOST, ECHO_PORT);
+        if (connectionInfo.isConnected()) connectionInfo.close();
+        return connectionInfo.getStatus();
+    }
+
+}
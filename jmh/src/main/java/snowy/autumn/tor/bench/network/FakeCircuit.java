@@ -0,0 +1,196 @@
+package snowy.autumn.tor.bench.network;
+
+import snowy.autumn.tor.cell.Cell;
+import snowy.autumn.tor.cell.cells.relay.RelayCell;
+import snowy.autumn.tor.crypto.Cryptography;
+import snowy.autumn.tor.directory.documents.RouterMicrodesc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+class FakeCircuit {
+
+    // A circuit as seen from its guard. Every hop after the guard is handled in-process as well (by the guard's link),
+    // so the only real connection is the one between the client and the guard.
+    // The last hop acts as an exit that echoes every data cell back on the same stream.
+    private static final int CIRCUIT_WINDOW = 1000;
+    private static final int CIRCUIT_SENDME_INCREMENT = 100;
+    // With congestion control, the fake exit just uses a larger fixed window (there's no stream window then).
+    private static final int CONGESTION_WINDOW = 2000;
+    private static final int STREAM_WINDOW = 500;
+    private static final int STREAM_SENDME_INCREMENT = 50;
+    private static final int MAX_DATA_LENGTH = FakeLink.BODY_LENGTH - 11;
+    private static final byte END_REASON_MISC = 1;
+
+    private static class Stream {
+        int packageWindow = STREAM_WINDOW;
+        int delivered = 0;
+        // Whether the client asked the exit to stop sending (with congestion control).
+        boolean paused = false;
+        final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    }
+
+    private final FakeLink link;
+    private final int circuitId;
+    private final ArrayList<FakeRelay.Hop> hops = new ArrayList<>();
+    private final HashMap<Short, Stream> streams = new HashMap<>();
+    private int packageWindow;
+    private int sendMeIncrement;
+    private boolean congestionControl;
+    private int delivered = 0;
+
+    FakeCircuit(FakeLink link, int circuitId, FakeRelay.HandshakeResult guard) {
+        this.link = link;
+        this.circuitId = circuitId;
+        addHop(guard);
+    }
+
+    private void addHop(FakeRelay.HandshakeResult result) {
+        // The last hop is the exit, so whatever it negotiated is what the circuit uses.
+        hops.add(result.hop());
+        congestionControl = result.sendMeIncrement() > 0;
+        sendMeIncrement = congestionControl ? result.sendMeIncrement() : CIRCUIT_SENDME_INCREMENT;
+        packageWindow = congestionControl ? CONGESTION_WINDOW : CIRCUIT_WINDOW;
+    }
+
+    boolean handleForward(byte[] body) throws IOException {
+        // Peel one layer at a time, until one of the hops recognises the cell.
+        for (int i = 0; i < hops.size(); i++) {
+            FakeRelay.Hop hop = hops.get(i);
+            Cryptography.updateInPlace(hop.forwardCipher(), body);
+            if (body[1] != 0 || body[2] != 0) continue;
+            byte[] digestField = Arrays.copyOfRange(body, 5, 9);
+            Arrays.fill(body, 5, 9, (byte) 0);
+            MessageDigest runningDigest = cloneDigest(hop.forwardDigest());
+            runningDigest.update(body);
+            byte[] digest = cloneDigest(runningDigest).digest();
+            if (Arrays.equals(digestField, 0, 4, digest, 0, 4)) {
+                hops.set(i, new FakeRelay.Hop(hop.relay(), hop.forwardCipher(), hop.backwardCipher(), runningDigest, hop.backwardDigest()));
+                handleRelayCell(i, body, digest);
+                return true;
+            }
+            System.arraycopy(digestField, 0, body, 5, 4);
+        }
+        // Nobody recognised it, which is a protocol violation.
+        return false;
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void handleRelayCell(int hop, byte[] body, byte[] digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        byte command = buffer.get(0);
+        short streamId = buffer.getShort(3);
+        byte[] data = Arrays.copyOfRange(body, 11, 11 + buffer.getShort(9));
+        switch (command) {
+            case RelayCell.EXTEND2 -> {
+                if (hop != hops.size() - 1) return;
+                extend(data);
+            }
+            case RelayCell.BEGIN -> {
+                streams.put(streamId, new Stream());
+                sendBackward(hop, RelayCell.CONNECTED, streamId, new byte[0]);
+            }
+            // There's no directory to serve here.
+            case RelayCell.BEGIN_DIR -> sendBackward(hop, RelayCell.END, streamId, new byte[]{END_REASON_MISC});
+            case RelayCell.DATA -> {
+                Stream stream = streams.get(streamId);
+                if (stream == null) return;
+                // Tell the client it may send more, the same way a relay does (a v1 sendme authenticates the cell that triggered it).
+                if (++delivered % sendMeIncrement == 0)
+                    sendBackward(hop, RelayCell.SENDME, (short) 0, ByteBuffer.allocate(3 + digest.length).put((byte) 1).putShort((short) digest.length).put(digest).array());
+                if (!congestionControl && ++stream.delivered % STREAM_SENDME_INCREMENT == 0)
+                    sendBackward(hop, RelayCell.SENDME, streamId, new byte[0]);
+                stream.pending.add(data);
+                flush(hop, streamId, stream);
+            }
+            case RelayCell.SENDME -> {
+                if (streamId == 0) {
+                    packageWindow += sendMeIncrement;
+                    for (var entry : new ArrayList<>(streams.entrySet()))
+                        flush(hop, entry.getKey(), entry.getValue());
+                } else if (!congestionControl) {
+                    Stream stream = streams.get(streamId);
+                    if (stream == null) return;
+                    stream.packageWindow += STREAM_SENDME_INCREMENT;
+                    flush(hop, streamId, stream);
+                }
+            }
+            case RelayCell.XOFF, RelayCell.XON -> {
+                Stream stream = streams.get(streamId);
+                if (stream == null) return;
+                stream.paused = command == RelayCell.XOFF;
+                flush(hop, streamId, stream);
+            }
+            case RelayCell.END -> streams.remove(streamId);
+            default -> {}
+        }
+    }
+
+    private void extend(byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        byte[] fingerprint = null;
+        int linkSpecifiers = buffer.get() & 0xFF;
+        for (int i = 0; i < linkSpecifiers; i++) {
+            byte type = buffer.get();
+            byte[] specifier = new byte[buffer.get() & 0xFF];
+            buffer.get(specifier);
+            if (type == RouterMicrodesc.LEGACY_ID_LINK_SPECIFIER) fingerprint = specifier;
+        }
+        short handshakeType = buffer.getShort();
+        byte[] handshakeData = new byte[buffer.getShort()];
+        buffer.get(handshakeData);
+
+        FakeRelay target = fingerprint == null ? null : link.getRelay().getNetwork().findRelay(fingerprint);
+        FakeRelay.HandshakeResult result = target != null && handshakeType == 3 ? target.ntorV3(handshakeData) : null;
+        if (result == null) {
+            link.destroy(circuitId);
+            return;
+        }
+        int extendingHop = hops.size() - 1;
+        addHop(result);
+        sendBackward(extendingHop, RelayCell.EXTENDED2, (short) 0, ByteBuffer.allocate(2 + result.handshakeData().length)
+                .putShort((short) result.handshakeData().length)
+                .put(result.handshakeData())
+                .array());
+    }
+
+    private void flush(int hop, short streamId, Stream stream) throws IOException {
+        // Echo back as much as the package windows allow, and keep the rest until the client sends a sendme.
+        while (!stream.pending.isEmpty() && packageWindow > 0 && !stream.paused && (congestionControl || stream.packageWindow > 0)) {
+            sendBackward(hop, RelayCell.DATA, streamId, stream.pending.poll());
+            packageWindow--;
+            stream.packageWindow--;
+        }
+    }
+
+    private void sendBackward(int hop, byte command, short streamId, byte[] data) throws IOException {
+        // Data longer than a single cell is never sent, since everything that's echoed came from a single cell.
+        byte[] body = new byte[FakeLink.BODY_LENGTH];
+        ByteBuffer.wrap(body)
+                .put(command)
+                .putShort((short) 0)
+                .putShort(streamId)
+                .putInt(0)
+                .putShort((short) Math.min(data.length, MAX_DATA_LENGTH))
+                .put(data, 0, Math.min(data.length, MAX_DATA_LENGTH));
+        MessageDigest backwardDigest = hops.get(hop).backwardDigest();
+        backwardDigest.update(body);
+        System.arraycopy(cloneDigest(backwardDigest).digest(), 0, body, 5, 4);
+        for (int i = hop; i >= 0; i--)
+            Cryptography.updateInPlace(hops.get(i).backwardCipher(), body);
+        link.writeCell(circuitId, Cell.RELAY, body);
+    }
+
+}
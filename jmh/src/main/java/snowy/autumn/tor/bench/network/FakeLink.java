@@ -0,0 +1,144 @@
+package snowy.autumn.tor.bench.network;
+
+import snowy.autumn.tor.cell.Cell;
+import snowy.autumn.tor.crypto.Cryptography;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.HashMap;
+
+class FakeLink {
+
+    // A single link (TLS connection) from the client to a fake relay, which acts as the guard for every circuit on it.
+    // Only link protocol version 5 is spoken, so circuit ids are always 4 bytes long.
+    static final int LINK_VERSION = 5;
+    static final int BODY_LENGTH = 509;
+    private static final byte DESTROY_REASON_PROTOCOL = 1;
+
+    private final FakeRelay relay;
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final HashMap<Integer, FakeCircuit> circuits = new HashMap<>();
+
+    FakeLink(FakeRelay relay, Socket socket) {
+        this.relay = relay;
+        this.socket = socket;
+        try {
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    void run() {
+        try (socket) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            if (!handshake(in)) return;
+            while (true) {
+                int circuitId = in.readInt();
+                byte command = in.readByte();
+                byte[] body = new byte[isVariableLength(command) ? in.readUnsignedShort() : BODY_LENGTH];
+                in.readFully(body);
+                handleCell(circuitId, command, body);
+                // Only flush once everything that has already arrived was handled, so that replies are batched together.
+                if (in.available() == 0) out.flush();
+            }
+        } catch (IOException e) {
+            // The client closed the connection.
+        }
+    }
+
+    private static boolean isVariableLength(byte command) {
+        return command == Cell.VERSIONS || (command & 0xFF) >= 128;
+    }
+
+    private boolean handshake(DataInputStream in) throws IOException {
+        // The client's versions cell always uses 2 byte circuit ids.
+        in.readUnsignedShort();
+        if (in.readByte() != Cell.VERSIONS) return false;
+        in.readFully(new byte[in.readUnsignedShort()]);
+
+        out.writeShort(0);
+        out.writeByte(Cell.VERSIONS);
+        out.writeShort(2);
+        out.writeShort(LINK_VERSION);
+
+        byte[] certs = relay.createCertsBody();
+        writeVariableCell(Cell.CERTS, certs);
+
+        // The client doesn't authenticate, so the challenge is never used.
+        byte[] challenge = new byte[32];
+        Cryptography.SECURE_RANDOM.nextBytes(challenge);
+        writeVariableCell(Cell.AUTH_CHALLENGE, ByteBuffer.allocate(32 + 2 + 2).put(challenge).putShort((short) 1).putShort((short) 3).array());
+
+        byte[] loopback = socket.getLocalAddress().getAddress();
+        ByteBuffer netInfo = ByteBuffer.allocate(BODY_LENGTH);
+        netInfo.putInt((int) Instant.now().getEpochSecond());
+        netInfo.put((byte) 4).put((byte) loopback.length).put(loopback);
+        netInfo.put((byte) 1);
+        netInfo.put((byte) 4).put((byte) loopback.length).put(loopback);
+        writeCell(0, Cell.NET_INFO, netInfo.array());
+        out.flush();
+        return true;
+    }
+
+    private void handleCell(int circuitId, byte command, byte[] body) throws IOException {
+        switch (command) {
+            case Cell.CREATE2 -> {
+                ByteBuffer buffer = ByteBuffer.wrap(body);
+                short handshakeType = buffer.getShort();
+                byte[] handshakeData = new byte[buffer.getShort()];
+                buffer.get(handshakeData);
+                // Only ntor-v3 is supported, which is what the client uses whenever a relay has an ed25519 identity.
+                FakeRelay.HandshakeResult result = handshakeType == 3 && !circuits.containsKey(circuitId) ? relay.ntorV3(handshakeData) : null;
+                if (result == null) {
+                    destroy(circuitId);
+                    return;
+                }
+                circuits.put(circuitId, new FakeCircuit(this, circuitId, result));
+                writeCell(circuitId, Cell.CREATED2, ByteBuffer.allocate(BODY_LENGTH)
+                        .putShort((short) result.handshakeData().length)
+                        .put(result.handshakeData())
+                        .array());
+            }
+            case Cell.RELAY, Cell.RELAY_EARLY -> {
+                FakeCircuit circuit = circuits.get(circuitId);
+                if (circuit == null) return;
+                if (!circuit.handleForward(body)) destroy(circuitId);
+            }
+            case Cell.DESTROY -> circuits.remove(circuitId);
+            // Padding, netinfo and anything else is ignored.
+            default -> {}
+        }
+    }
+
+    FakeRelay getRelay() {
+        return relay;
+    }
+
+    void destroy(int circuitId) throws IOException {
+        circuits.remove(circuitId);
+        byte[] body = new byte[BODY_LENGTH];
+        body[0] = DESTROY_REASON_PROTOCOL;
+        writeCell(circuitId, Cell.DESTROY, body);
+    }
+
+    void writeCell(int circuitId, byte command, byte[] body) throws IOException {
+        out.writeInt(circuitId);
+        out.writeByte(command);
+        out.write(body);
+    }
+
+    private void writeVariableCell(byte command, byte[] body) throws IOException {
+        out.writeInt(0);
+        out.writeByte(command);
+        out.writeShort(body.length);
+        out.write(body);
+    }
+
+}
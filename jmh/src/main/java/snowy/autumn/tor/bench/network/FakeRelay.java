@@ -0,0 +1,259 @@
+package snowy.autumn.tor.bench.network;
+
+import org.bouncycastle.crypto.digests.SHAKEDigest;
+import org.bouncycastle.crypto.params.Ed25519PrivateKeyParameters;
+import org.bouncycastle.crypto.signers.Ed25519Signer;
+import snowy.autumn.tor.crypto.Certificate;
+import snowy.autumn.tor.crypto.Cryptography;
+import snowy.autumn.tor.crypto.KeyPair;
+import snowy.autumn.tor.directory.documents.RouterMicrodesc;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.net.ssl.SSLServerSocket;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.Arrays;
+
+import static snowy.autumn.tor.crypto.Cryptography.*;
+
+public class FakeRelay implements AutoCloseable {
+
+    // The state of a single hop of a circuit, as seen by the relay.
+    record Hop(FakeRelay relay, Cipher forwardCipher, Cipher backwardCipher, MessageDigest forwardDigest, MessageDigest backwardDigest) {}
+
+    // The result of the relay's side of a handshake: the handshake data for the CREATED2 / EXTENDED2 cell, the new hop,
+    // and the SENDME increment if the client asked for congestion control (0 otherwise).
+    record HandshakeResult(byte[] handshakeData, Hop hop, int sendMeIncrement) {}
+
+    // The ntor-v3 extensions used to negotiate congestion control.
+    private static final byte CC_FIELD_REQUEST = 1;
+    private static final byte CC_FIELD_RESPONSE = 2;
+
+    private static final int CERT_LIFETIME_HOURS = 24;
+
+    private final FakeTorNetwork network;
+    private final String name;
+    private final byte flags;
+    private final byte[] fingerprint;
+    private final Ed25519PrivateKeyParameters identityKey;
+    private final Ed25519PrivateKeyParameters signingKey;
+    private final KeyPair onionKeyPair;
+    private final SelfSignedCertificate linkCertificate;
+    private final SSLServerSocket serverSocket;
+    private volatile boolean running = true;
+
+    FakeRelay(FakeTorNetwork network, String name, byte flags) throws IOException {
+        this.network = network;
+        this.name = name;
+        this.flags = flags;
+        this.fingerprint = new byte[20];
+        SECURE_RANDOM.nextBytes(fingerprint);
+        this.identityKey = new Ed25519PrivateKeyParameters(SECURE_RANDOM);
+        this.signingKey = new Ed25519PrivateKeyParameters(SECURE_RANDOM);
+        this.onionKeyPair = Cryptography.generateX25519KeyPair();
+        this.linkCertificate = new SelfSignedCertificate(name);
+        this.serverSocket = (SSLServerSocket) linkCertificate.createServerContext().getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread.ofPlatform().daemon().name("fake-relay-" + name).start(this::accept);
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread.ofPlatform().daemon().name("fake-relay-" + name + "-link").start(() -> new FakeLink(this, socket).run());
+            } catch (IOException e) {
+                // The socket was closed, or this connection failed. Either way, running decides whether to keep going.
+            }
+        }
+    }
+
+    public RouterMicrodesc createMicrodesc() {
+        byte[] microdescHash = Cryptography.createDigest("SHA-256").digest(onionKeyPair.publicKey());
+        RouterMicrodesc.ExitPolicy exitPolicy = RouterMicrodesc.Flags.isFlag(flags, RouterMicrodesc.Flags.EXIT) ? RouterMicrodesc.ExitPolicy.parse("p accept 1-65535") : null;
+        RouterMicrodesc microdesc = new RouterMicrodesc(flags, InetAddress.getLoopbackAddress().getAddress(), (short) serverSocket.getLocalPort(), fingerprint,
+                getEd25519Id(), onionKeyPair.publicKey(), microdescHash, null, (short) 0, new byte[0][], exitPolicy);
+        // Every relay gets the same bandwidth, so that paths are picked uniformly.
+        microdesc.setBandwidth(1000);
+        return microdesc;
+    }
+
+    FakeTorNetwork getNetwork() {
+        return network;
+    }
+
+    byte[] getFingerprint() {
+        return fingerprint;
+    }
+
+    byte[] getEd25519Id() {
+        return identityKey.generatePublicKey().getEncoded();
+    }
+
+    private static byte[] sign(Ed25519PrivateKeyParameters key, byte[] data) {
+        Ed25519Signer signer = new Ed25519Signer();
+        signer.init(true, key);
+        signer.update(data, 0, data.length);
+        return signer.generateSignature();
+    }
+
+    private static byte[] ed25519Cert(byte type, byte certifiedKeyType, byte[] certifiedKey, Ed25519PrivateKeyParameters signedWith, boolean includeSigningKey) {
+        int expiration = (int) (Instant.now().getEpochSecond() / 3600 + CERT_LIFETIME_HOURS);
+        byte[] signingKeyBytes = signedWith.generatePublicKey().getEncoded();
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 1 + 4 + 1 + 32 + 1 + (includeSigningKey ? 4 + 32 : 0));
+        buffer.put((byte) 1);
+        buffer.put(type);
+        buffer.putInt(expiration);
+        buffer.put(certifiedKeyType);
+        buffer.put(certifiedKey);
+        buffer.put((byte) (includeSigningKey ? 1 : 0));
+        if (includeSigningKey) {
+            buffer.putShort((short) 32);
+            buffer.put(Certificate.Ed25519Cert.Extension.SIGNED_WITH_ED25519_KEY);
+            buffer.put((byte) 0);
+            buffer.put(signingKeyBytes);
+        }
+        byte[] unsigned = buffer.array();
+        return ByteBuffer.allocate(unsigned.length + 64).put(unsigned).put(sign(signedWith, unsigned)).array();
+    }
+
+    byte[] createCertsBody() {
+        // The identity key certifies the signing key, which in turn certifies the digest of the link certificate.
+        byte[] identityVSigning = ed25519Cert(Certificate.IDENTITY_V_SIGNING_CERT, (byte) 1, signingKey.generatePublicKey().getEncoded(), identityKey, true);
+        byte[] linkCertificateDigest = Cryptography.createDigest("SHA-256").digest(linkCertificate.getEncoded());
+        byte[] signingVTls = ed25519Cert(Certificate.SIGNING_V_TLS_CERT, (byte) 3, linkCertificateDigest, signingKey, false);
+        return ByteBuffer.allocate(1 + 3 + identityVSigning.length + 3 + signingVTls.length)
+                .put((byte) 2)
+                .put(Certificate.IDENTITY_V_SIGNING_CERT).putShort((short) identityVSigning.length).put(identityVSigning)
+                .put(Certificate.SIGNING_V_TLS_CERT).putShort((short) signingVTls.length).put(signingVTls)
+                .array();
+    }
+
+    HandshakeResult ntorV3(byte[] handshakeData) {
+        // The relay's side of the ntor-v3 handshake.
+        ByteBuffer buffer = ByteBuffer.wrap(handshakeData);
+        byte[] ed25519Id = new byte[32];
+        byte[] B = new byte[32];
+        byte[] X = new byte[32];
+        buffer.get(ed25519Id).get(B).get(X);
+        if (handshakeData.length < 96 + 32 || !Arrays.equals(ed25519Id, getEd25519Id()) || !Arrays.equals(B, onionKeyPair.publicKey())) return null;
+        byte[] mac = Arrays.copyOfRange(handshakeData, handshakeData.length - 32, handshakeData.length);
+        // The MAC isn't checked, since the client is trusted here anyway.
+        byte[] clientMessage = decryptClientMessage(ed25519Id, B, X, Arrays.copyOfRange(handshakeData, 96, handshakeData.length - 32));
+        int sendMeIncrement = network.getSendMeIncrement();
+        if (!hasExtension(clientMessage, CC_FIELD_REQUEST)) sendMeIncrement = 0;
+
+        KeyPair ephemeralKeyPair = Cryptography.generateX25519KeyPair();
+        byte[] Y = ephemeralKeyPair.publicKey();
+        byte[] secretInput = ByteBuffer.allocate(32 + 32 + ed25519Id.length + B.length + X.length + Y.length + NTORv3_PROTOID.length() + NTORv3_VER_ENCAP.length)
+                .put(computeSharedSecret(ephemeralKeyPair.privateKey(), X))
+                .put(computeSharedSecret(onionKeyPair.privateKey(), X))
+                .put(ed25519Id)
+                .put(B)
+                .put(X)
+                .put(Y)
+                .put(NTORv3_PROTOID.getBytes())
+                .put(NTORv3_VER_ENCAP)
+                .array();
+        byte[] keySeed = createDigest("SHA3-256", NTORv3_t_key_seed_ENCAP).digest(secretInput);
+        byte[] verify = createDigest("SHA3-256", NTORv3_t_verify_ENCAP).digest(secretInput);
+
+        SHAKEDigest shakeDigest = new SHAKEDigest(256);
+        shakeDigest.update(NTORv3_t_final_ENCAP, 0, NTORv3_t_final_ENCAP.length);
+        shakeDigest.update(keySeed, 0, keySeed.length);
+        byte[] encryptionKey = new byte[CIPHER_KEY_LENGTH];
+        byte[] digestForward = new byte[SHA1_LENGTH];
+        byte[] digestBackward = new byte[SHA1_LENGTH];
+        byte[] keyForward = new byte[KEY_LENGTH];
+        byte[] keyBackward = new byte[KEY_LENGTH];
+        shakeDigest.doOutput(encryptionKey, 0, encryptionKey.length);
+        shakeDigest.doOutput(digestForward, 0, digestForward.length);
+        shakeDigest.doOutput(digestBackward, 0, digestBackward.length);
+        shakeDigest.doOutput(keyForward, 0, keyForward.length);
+        shakeDigest.doOutput(keyBackward, 0, keyBackward.length);
+
+        // Either the congestion control response, or an empty list of extensions (the client only treats the reply as ntor-v3 if there's a message in it).
+        byte[] serverMessage = sendMeIncrement > 0 ? new byte[]{1, CC_FIELD_RESPONSE, 1, (byte) sendMeIncrement} : new byte[1];
+        byte[] encryptedMessage;
+        try {
+            encryptedMessage = createAesKey(Cipher.ENCRYPT_MODE, encryptionKey).doFinal(serverMessage);
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] encapsulatedMessage = ENCAP(encryptedMessage);
+        byte[] authInput = ByteBuffer.allocate(verify.length + ed25519Id.length + B.length + Y.length + X.length + mac.length + encapsulatedMessage.length + NTORv3_PROTOID.length() + "Server".length())
+                .put(verify)
+                .put(ed25519Id)
+                .put(B)
+                .put(Y)
+                .put(X)
+                .put(mac)
+                .put(encapsulatedMessage)
+                .put(NTORv3_PROTOID.getBytes())
+                .put("Server".getBytes())
+                .array();
+        byte[] auth = createDigest("SHA3-256", NTORv3_t_auth_ENCAP).digest(authInput);
+
+        Hop hop = new Hop(this,
+                createAesKey(Cipher.DECRYPT_MODE, keyForward),
+                createAesKey(Cipher.ENCRYPT_MODE, keyBackward),
+                createDigest("SHA-1", digestForward),
+                createDigest("SHA-1", digestBackward));
+        byte[] response = ByteBuffer.allocate(Y.length + auth.length + encryptedMessage.length).put(Y).put(auth).put(encryptedMessage).array();
+        return new HandshakeResult(response, hop, sendMeIncrement);
+    }
+
+    private byte[] decryptClientMessage(byte[] ed25519Id, byte[] B, byte[] X, byte[] encryptedMessage) {
+        byte[] secretInputPhase1 = ByteBuffer.allocate(32 + ed25519Id.length + X.length + B.length + NTORv3_PROTOID.length() + NTORv3_VER_ENCAP.length)
+                .put(computeSharedSecret(onionKeyPair.privateKey(), X))
+                .put(ed25519Id)
+                .put(X)
+                .put(B)
+                .put(NTORv3_PROTOID.getBytes())
+                .put(NTORv3_VER_ENCAP)
+                .array();
+        SHAKEDigest shakeDigest = new SHAKEDigest(256);
+        shakeDigest.update(NTORv3_t_msgkdf_ENCAP, 0, NTORv3_t_msgkdf_ENCAP.length);
+        shakeDigest.update(secretInputPhase1, 0, secretInputPhase1.length);
+        byte[] encryptionKey = new byte[CIPHER_KEY_LENGTH];
+        shakeDigest.doOutput(encryptionKey, 0, encryptionKey.length);
+        try {
+            return createAesKey(Cipher.DECRYPT_MODE, encryptionKey).doFinal(encryptedMessage);
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean hasExtension(byte[] message, byte type) {
+        if (message.length == 0) return false;
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        int extensions = buffer.get() & 0xFF;
+        for (int i = 0; i < extensions && buffer.remaining() >= 2; i++) {
+            if (buffer.get() == type) return true;
+            int length = buffer.get() & 0xFF;
+            if (buffer.remaining() < length) return false;
+            buffer.position(buffer.position() + length);
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public String toString() {
+        return name + " (127.0.0.1:" + serverSocket.getLocalPort() + ")";
+    }
+
+}
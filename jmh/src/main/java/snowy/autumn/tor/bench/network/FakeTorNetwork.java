@@ -0,0 +1,71 @@
+package snowy.autumn.tor.bench.network;
+
+import snowy.autumn.tor.directory.documents.MicrodescConsensus;
+import snowy.autumn.tor.directory.documents.RouterMicrodesc;
+import snowy.autumn.tor.utils.Utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class FakeTorNetwork implements AutoCloseable {
+
+    // A tiny Tor network of fake relays listening on the loopback interface, along with a consensus that describes it.
+    // It only implements what the client needs in order to build circuits with ntor-v3 and open streams to an echo service at the exits,
+    // which makes it possible to benchmark the client end to end (TLS, cell framing, onion crypto and flow control) without touching the real network.
+    // The SENDME increment that the relays agree to when asked for congestion control (which is also what the consensus says).
+    public static final int DEFAULT_SENDME_INCREMENT = 31;
+    private final ArrayList<FakeRelay> relays = new ArrayList<>();
+    private final int sendMeIncrement;
+
+    public FakeTorNetwork(int guards, int middles, int exits) throws IOException {
+        this(guards, middles, exits, true);
+    }
+
+    public FakeTorNetwork(int guards, int middles, int exits, boolean congestionControl) throws IOException {
+        // If congestionControl is false, then the relays ignore the client's request for it, so that the fixed windows are used instead.
+        this.sendMeIncrement = congestionControl ? DEFAULT_SENDME_INCREMENT : 0;
+        // The client needs at least 4 relays for the second layer of vanguards, apart from its guards.
+        if (guards < 1 || exits < 1 || middles + exits < 4)
+            throw new IllegalArgumentException("A fake network needs at least one guard, one exit and four non-guard relays.");
+        try {
+            for (int i = 0; i < guards; i++)
+                relays.add(new FakeRelay(this, "guard" + i, (byte) (RouterMicrodesc.Flags.GUARD | RouterMicrodesc.Flags.V2DIR | RouterMicrodesc.Flags.FAST)));
+            for (int i = 0; i < middles; i++)
+                relays.add(new FakeRelay(this, "middle" + i, RouterMicrodesc.Flags.FAST));
+            for (int i = 0; i < exits; i++)
+                relays.add(new FakeRelay(this, "exit" + i, (byte) (RouterMicrodesc.Flags.EXIT | RouterMicrodesc.Flags.FAST)));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public MicrodescConsensus createConsensus() {
+        long now = Utils.getCurrentTime().toEpochSecond();
+        ArrayList<RouterMicrodesc> microdescs = new ArrayList<>();
+        for (FakeRelay relay : relays)
+            microdescs.add(relay.createMicrodesc());
+        HashMap<String, Integer> params = new HashMap<>();
+        params.put("cc_sendme_inc", DEFAULT_SENDME_INCREMENT);
+        // The shared random values only matter for hidden services, which the fake network doesn't support.
+        return new MicrodescConsensus(now - 60, now + 24 * 60 * 60, now + 3 * 24 * 60 * 60, new byte[32], new byte[32], params, microdescs);
+    }
+
+    int getSendMeIncrement() {
+        return sendMeIncrement;
+    }
+
+    FakeRelay findRelay(byte[] fingerprint) {
+        for (FakeRelay relay : relays)
+            if (Arrays.equals(relay.getFingerprint(), fingerprint)) return relay;
+        return null;
+    }
+
+    @Override
+    public void close() {
+        relays.forEach(FakeRelay::close);
+    }
+
+}
@@ -0,0 +1,90 @@
+package snowy.autumn.tor.bench.network;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.TBSCertificate;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V3TBSCertificateGenerator;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+class SelfSignedCertificate {
+
+    // The link certificate of a fake relay. Real relays use throwaway self-signed certificates as well, and clients only check them against the CERTS cell.
+    private final KeyPair keyPair;
+    private final X509Certificate certificate;
+
+    SelfSignedCertificate(String name) {
+        try {
+            // An EC key, since generating an RSA key for every relay makes setting up a network take seconds.
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+            keyPairGenerator.initialize(256);
+            keyPair = keyPairGenerator.generateKeyPair();
+
+            AlgorithmIdentifier signatureAlgorithm = new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA256);
+            long now = System.currentTimeMillis();
+            V3TBSCertificateGenerator generator = new V3TBSCertificateGenerator();
+            generator.setSerialNumber(new ASN1Integer(BigInteger.valueOf(now)));
+            generator.setIssuer(new X500Name("CN=" + name));
+            generator.setSubject(new X500Name("CN=" + name));
+            generator.setStartDate(new Time(new Date(now - 60 * 60 * 1000L)));
+            generator.setEndDate(new Time(new Date(now + 24 * 60 * 60 * 1000L)));
+            generator.setSubjectPublicKeyInfo(SubjectPublicKeyInfo.getInstance(keyPair.getPublic().getEncoded()));
+            generator.setSignature(signatureAlgorithm);
+            TBSCertificate tbsCertificate = generator.generateTBSCertificate();
+
+            Signature signature = Signature.getInstance("SHA256withECDSA");
+            signature.initSign(keyPair.getPrivate());
+            signature.update(tbsCertificate.getEncoded());
+            byte[] encoded = new DERSequence(new ASN1Encodable[]{
+                    tbsCertificate, signatureAlgorithm, new DERBitString(signature.sign())
+            }).getEncoded();
+            certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(encoded));
+        } catch (GeneralSecurityException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    SSLContext createServerContext() {
+        try {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(null, null);
+            char[] password = new char[0];
+            keyStore.setKeyEntry("link", keyPair.getPrivate(), password, new java.security.cert.Certificate[]{certificate});
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, password);
+            SSLContext sslContext = SSLContext.getInstance("TLSv1.3");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            return sslContext;
+        } catch (GeneralSecurityException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    byte[] getEncoded() {
+        try {
+            return certificate.getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
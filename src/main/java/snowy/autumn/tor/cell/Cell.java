@@ -61,12 +61,17 @@ public abstract class Cell {
         return buffer.array();
     }
 
-    @SuppressWarnings("unchecked")
     public static <T extends Cell> T parseCell(int circuitId, byte command, byte[] body) {
-        ByteBuffer buffer = ByteBuffer.wrap(body);
+        return parseCell(circuitId, command, ByteBuffer.wrap(body));
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T extends Cell> T parseCell(int circuitId, byte command, ByteBuffer body) {
+        // Note: The body might be a view into a reused receive buffer, so anything that outlives this call has to be copied out of it.
+        ByteBuffer buffer = body.duplicate();
         switch (command) {
             case VERSIONS -> {
-                int[] versions = new int[body.length / 2];
+                int[] versions = new int[body.remaining() / 2];
                 for (int i = 0; i < versions.length; i++)
                     versions[i] = buffer.getShort();
                 return (T) new VersionCell(versions);
@@ -132,10 +137,12 @@ public abstract class Cell {
                     throw new Error("Unknown handshake size: " + handshakeSize);
             }
             case RELAY -> {
-                return (T) new RelayCell.EncryptedRelayCell(circuitId, false, body);
+                byte[] encryptedBody = new byte[buffer.remaining()];
+                buffer.get(encryptedBody);
+                return (T) new RelayCell.EncryptedRelayCell(circuitId, false, encryptedBody);
             }
             case DESTROY -> {
-                return (T) new DestroyCell(circuitId, body[0]);
+                return (T) new DestroyCell(circuitId, buffer.get());
             }
             case PADDING -> {
                 // For now, we'll just ignore padding cells.
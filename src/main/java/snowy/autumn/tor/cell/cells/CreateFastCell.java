@@ -1,9 +1,7 @@
 package snowy.autumn.tor.cell.cells;
 
 import snowy.autumn.tor.cell.Cell;
-
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import snowy.autumn.tor.crypto.Cryptography;
 
 public class CreateFastCell extends Cell {
 
@@ -12,11 +10,7 @@ public class CreateFastCell extends Cell {
     public CreateFastCell(int circuitId) {
         super(circuitId, CREATE_FAST);
         keyMaterial = new byte[20];
-        try {
-            SecureRandom.getInstanceStrong().nextBytes(keyMaterial);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        Cryptography.SECURE_RANDOM.nextBytes(keyMaterial);
     }
 
     @Override
@@ -5,7 +5,7 @@ import snowy.autumn.tor.cell.cells.relay.commands.*;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public abstract class RelayCell extends Cell {
 
@@ -43,6 +43,8 @@ public abstract class RelayCell extends Cell {
     public static final byte ESTABLISH_RENDEZVOUS = 33;
     public static final byte RENDEZVOUS_ESTABLISHED = 39;
     public static final byte RENDEZVOUS2 = 37;
+    public static final byte XOFF = 43;
+    public static final byte XON = 44;
 
     protected byte relayCommand;
     short streamId;
@@ -74,11 +76,17 @@ public abstract class RelayCell extends Cell {
         buffer.putShort((short) body.length);
         buffer.put(body);
         // Padding	CELL_BODY_LEN - 11 - Length bytes
-        byte[] padding = new byte[buffer.remaining()];
-        new Random().nextBytes(padding);
-        buffer.put(padding);
+        // The padding is generated straight into the cell, instead of creating a new Random (and padding array) for every cell.
+        byte[] cellBody = buffer.array();
+        int position = buffer.position();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (position < cellBody.length) {
+            int next = random.nextInt();
+            for (int i = 0; i < 4 && position < cellBody.length; i++, next >>>= 8)
+                cellBody[position++] = (byte) next;
+        }
 
-        return buffer.array();
+        return cellBody;
     }
 
     @SuppressWarnings("unchecked")
@@ -158,6 +166,13 @@ public abstract class RelayCell extends Cell {
                 // Todo: Figure out if there are any existing extensions for INTRODUCE_ACK. Since unrecognised extensions are ignored anyway, it shouldn't pose a problem.
                 return (T) new IntroduceAckCommand(circuitId, IntroduceAckCommand.IntroduceAckStatus.get(ByteBuffer.wrap(data).getShort()));
             }
+            case XOFF -> {
+                return (T) new XoffCommand(circuitId, streamId);
+            }
+            case XON -> {
+                // The version is skipped, since there's only one.
+                return (T) new XonCommand(circuitId, streamId, data.length >= 5 ? ByteBuffer.wrap(data, 1, 4).getInt() : 0);
+            }
             case RENDEZVOUS_ESTABLISHED -> {
                 return (T) new RendezvousEstablishedCommand(circuitId);
             }
@@ -1,9 +1,7 @@
 package snowy.autumn.tor.cell.cells.relay.commands;
 
 import snowy.autumn.tor.cell.cells.relay.RelayCell;
-
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import snowy.autumn.tor.crypto.Cryptography;
 
 public class EstablishRendezvousCommand extends RelayCell {
 
@@ -11,11 +9,7 @@ public class EstablishRendezvousCommand extends RelayCell {
 
     public EstablishRendezvousCommand(int circuitId) {
         super(circuitId, false, ESTABLISH_RENDEZVOUS, (short) 0);
-        try {
-            SecureRandom.getInstanceStrong().nextBytes(rendezvousCookie);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        Cryptography.SECURE_RANDOM.nextBytes(rendezvousCookie);
     }
 
     @Override
@@ -17,6 +17,8 @@ public class Extend2Command extends RelayCell {
     byte[] identityKey;
     byte[] ntorOnionKey;
     short handshakeType;
+    // The ntor-v3 client message, which is an empty list of extensions unless something (like congestion control) is requested.
+    byte[] message = new byte[1];
     byte[] mac;
 
     private Extend2Command(int circuitId, short handshakeType) {
@@ -34,6 +36,11 @@ public class Extend2Command extends RelayCell {
         this.temporaryKeyPair = Cryptography.generateX25519KeyPair();
     }
 
+    public Extend2Command(int circuitId, RouterMicrodesc routerMicrodesc, byte[] message) {
+        this(circuitId, routerMicrodesc, Handshakes.NTORv3);
+        this.message = message;
+    }
+
     public Extend2Command(int circuitId, IntroductionPoint introductionPoint) {
         this(circuitId, introductionPoint.ed25519Id() == null ? Handshakes.NTOR : Handshakes.NTORv3);
         this.linkSpecifiers = introductionPoint.linkSpecifiers();
@@ -48,7 +55,7 @@ public class Extend2Command extends RelayCell {
         if (handshakeType == Handshakes.NTOR)
             handshakeBlock = Handshakes.generateNtorBlock(identityKey, ntorOnionKey, temporaryKeyPair);
         else if (handshakeType == Handshakes.NTORv3) {
-            byte[][] ntorV3Block = Handshakes.generateNtorV3Block(identityKey, ntorOnionKey, temporaryKeyPair, new byte[1]);
+            byte[][] ntorV3Block = Handshakes.generateNtorV3Block(identityKey, ntorOnionKey, temporaryKeyPair, message);
             handshakeBlock = ntorV3Block[0];
             mac = ntorV3Block[1];
         }
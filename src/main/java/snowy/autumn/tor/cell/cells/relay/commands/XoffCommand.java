@@ -0,0 +1,17 @@
+package snowy.autumn.tor.cell.cells.relay.commands;
+
+import snowy.autumn.tor.cell.cells.relay.RelayCell;
+
+public class XoffCommand extends RelayCell {
+
+    // Asks the other side to stop sending data on a stream, until it gets an XON (only used on circuits with congestion control).
+    public XoffCommand(int circuitId, short streamId) {
+        super(circuitId, false, XOFF, streamId);
+    }
+
+    @Override
+    protected byte[] serialiseRelayBody() {
+        // Version 0 is the only version there is.
+        return new byte[1];
+    }
+}
@@ -0,0 +1,29 @@
+package snowy.autumn.tor.cell.cells.relay.commands;
+
+import snowy.autumn.tor.cell.cells.relay.RelayCell;
+
+import java.nio.ByteBuffer;
+
+public class XonCommand extends RelayCell {
+
+    // Lets the other side send data on a stream again, at a rate of at most kbpsEwma kilobytes per second (0 means there's no limit).
+    int kbpsEwma;
+
+    public XonCommand(int circuitId, short streamId, int kbpsEwma) {
+        super(circuitId, false, XON, streamId);
+        this.kbpsEwma = kbpsEwma;
+    }
+
+    @Override
+    protected byte[] serialiseRelayBody() {
+        return ByteBuffer.allocate(1 + 4)
+                // Version
+                .put((byte) 0)
+                .putInt(kbpsEwma)
+                .array();
+    }
+
+    public int getKbpsEwma() {
+        return kbpsEwma;
+    }
+}
@@ -0,0 +1,179 @@
+package snowy.autumn.tor.circuit;
+
+import snowy.autumn.tor.cell.Cell;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+public class CellQueue {
+
+    private final ArrayDeque<Cell> cells = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    // Whether a full queue makes room for new cells by dropping ones that nobody is waiting for, instead of refusing them.
+    private final boolean dropUnclaimed;
+    private boolean closed = false;
+    // Asynchronous readers waiting for a cell. They're handed matching cells directly, in the order in which they asked for them.
+    private final ArrayDeque<PendingTake> pendingTakes = new ArrayDeque<>();
+    // The filters of the readers that are currently blocked in take, so that the cells they're waiting for are never the ones dropped.
+    private final ArrayList<Predicate<Cell>> blockedTakes = new ArrayList<>();
+
+    private record PendingTake(Predicate<Cell> filter, CompletableFuture<Cell> future) {}
+
+    public CellQueue(int capacity, boolean dropUnclaimed) {
+        this.capacity = capacity;
+        this.dropUnclaimed = dropUnclaimed;
+    }
+
+    public CellQueue(int capacity) {
+        this(capacity, false);
+    }
+
+    private boolean claimable(Cell cell) {
+        // The lock must be held by the caller.
+        for (Predicate<Cell> filter : blockedTakes)
+            if (filter.test(cell)) return true;
+        for (PendingTake pendingTake : pendingTakes)
+            if (pendingTake.filter().test(cell)) return true;
+        return false;
+    }
+
+    private boolean dropUnclaimedCell() {
+        // The lock must be held by the caller. Drops the oldest cell that nobody is waiting for, and returns false if there's no such cell.
+        Iterator<Cell> iterator = cells.iterator();
+        while (iterator.hasNext()) {
+            if (!claimable(iterator.next())) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean offer(Cell cell) {
+        // Never blocks, since it's called from the link's event loop. Returns false if the queue is either closed or full (unless it drops unclaimed cells).
+        PendingTake handoff = null;
+        lock.lock();
+        try {
+            if (closed) return false;
+            Iterator<PendingTake> iterator = pendingTakes.iterator();
+            while (iterator.hasNext()) {
+                PendingTake pendingTake = iterator.next();
+                if (pendingTake.filter().test(cell)) {
+                    iterator.remove();
+                    handoff = pendingTake;
+                    break;
+                }
+            }
+            if (handoff == null) {
+                if (cells.size() >= capacity) {
+                    if (!dropUnclaimed) return false;
+                    // If every queued cell is wanted by someone, then the readers already have plenty to take, and the new cell is the one dropped.
+                    // That only happens if the other side keeps sending the same kind of cell, which would otherwise grow the queue without bound.
+                    if (!dropUnclaimedCell()) return true;
+                }
+                cells.add(cell);
+                // Waiters on the same queue might be looking for different commands, so all of them have to check the new cell.
+                notEmpty.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Completed outside the lock, since whatever is chained onto the future runs right here.
+        if (handoff != null) handoff.future().complete(cell);
+        return true;
+    }
+
+    private Cell poll(Predicate<Cell> filter) {
+        // The lock must be held by the caller.
+        // The head of the queue is nearly always the cell we're looking for, so this is usually constant time.
+        Iterator<Cell> iterator = cells.iterator();
+        while (iterator.hasNext()) {
+            Cell cell = iterator.next();
+            if (filter.test(cell)) {
+                iterator.remove();
+                return cell;
+            }
+        }
+        return null;
+    }
+
+    public Cell take(Predicate<Cell> filter) {
+        // Waits until a matching cell arrives, or returns null once the queue is closed and has no matching cells left.
+        lock.lock();
+        blockedTakes.add(filter);
+        try {
+            Cell cell;
+            while ((cell = poll(filter)) == null && !closed)
+                notEmpty.await();
+            return cell;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            blockedTakes.remove(filter);
+            lock.unlock();
+        }
+    }
+
+    public Cell take(Predicate<Cell> filter, long deadlineNanos) {
+        // Same as take, except that it also gives up and returns null once System.nanoTime() passes the given deadline.
+        lock.lock();
+        blockedTakes.add(filter);
+        try {
+            Cell cell;
+            while ((cell = poll(filter)) == null && !closed) {
+                long remaining = deadlineNanos - System.nanoTime();
+                if (remaining <= 0) return null;
+                notEmpty.awaitNanos(remaining);
+            }
+            return cell;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            blockedTakes.remove(filter);
+            lock.unlock();
+        }
+    }
+
+    public CompletableFuture<Cell> takeAsync(Predicate<Cell> filter) {
+        // Same as take, except that the future is completed with null once the queue is closed and has no matching cells left.
+        lock.lock();
+        try {
+            Cell cell = poll(filter);
+            if (cell != null || closed) return CompletableFuture.completedFuture(cell);
+            CompletableFuture<Cell> future = new CompletableFuture<>();
+            pendingTakes.add(new PendingTake(filter, future));
+            return future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        ArrayList<PendingTake> abandoned;
+        lock.lock();
+        closed = true;
+        notEmpty.signalAll();
+        abandoned = new ArrayList<>(pendingTakes);
+        pendingTakes.clear();
+        lock.unlock();
+        for (PendingTake pendingTake : abandoned)
+            pendingTake.future().complete(null);
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -16,9 +16,12 @@ import snowy.autumn.tor.relay.Handshakes;
 import snowy.autumn.tor.relay.Relay;
 
 import java.nio.ByteBuffer;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 public class Circuit {
 
@@ -27,22 +30,59 @@ public class Circuit {
     ArrayList<Keys> relayKeys = new ArrayList<>();
     Guard guard;
 
-    ArrayList<Cell> pendingCells = new ArrayList<>();
-    HashSet<byte[]> lastDigests = new HashSet<>();
-    ReentrantLock lastDigestsLock = new ReentrantLock();
-    private final ReentrantLock pendingCellsLock = new ReentrantLock();
-    private final Condition pendingCellsCondition = pendingCellsLock.newCondition();
+    // Flow control: only the last hop sends and receives DATA cells, so the circuit-level windows always refer to it.
+    // Just like in C-tor, the deliver window always starts at 1000, while the package window starts at the consensus' circwindow.
+    static final int DELIVER_WINDOW_INIT = 1000;
+    static final int WINDOW_INCREMENT = 100;
+    // Every SENDME acknowledges WINDOW_INCREMENT cells, and there can't be more than a full window of them in flight.
+    private static final int MAX_SENDME_DIGESTS = DELIVER_WINDOW_INIT / WINDOW_INCREMENT;
+    // The number of DATA cells that every circuit-level SENDME acknowledges (in both directions), which the exit decides on if it uses congestion control.
+    private volatile int sendMeIncrement = WINDOW_INCREMENT;
+    // If the exit agreed to use congestion control, then it replaces the circuit's package window and the streams' windows (null otherwise).
+    private volatile CongestionControl congestionControl;
+    // Only ever touched by the link's thread.
+    private int deliverWindow = DELIVER_WINDOW_INIT;
+    // Guards the package windows (of the circuit and of its streams) and the SENDME digests.
+    private final ReentrantLock windowLock = new ReentrantLock();
+    private final Condition windowOpened = windowLock.newCondition();
+    private int circuitWindow = DELIVER_WINDOW_INIT;
+    private int packageWindow = DELIVER_WINDOW_INIT;
+    private boolean packageWindowUsed = false;
+    // The DATA cells that the exit is going to acknowledge with its next (v1) SENDMEs, oldest first.
+    // The time at which they were sent is kept as well, since that's how congestion control measures the RTT.
+    private record PendingSendMe(byte[] digest, long sentAtNanos) {}
+    private final ArrayDeque<PendingSendMe> pendingSendMes = new ArrayDeque<>();
+    // Guarded by sendLock, since which cell gets acknowledged depends on the order in which the cells were encrypted.
+    private long sentDataCells = 0;
+    // Circuit-level cells (stream 0 relay cells and non-relay cells) don't belong to any stream, so they get a queue of their own.
+    // Some of them are never waited for (e.g. an unsolicited TRUNCATED, or padding negotiation replies), so they can't be allowed to fill it up:
+    // once there are this many, the ones that no waiter is looking for are dropped, so a burst of them can't push out the cell someone is waiting on.
+    private static final int CONTROL_QUEUE_CAPACITY = 32;
+    private final CellQueue controlQueue = new CellQueue(CONTROL_QUEUE_CAPACITY, true);
     HashMap<Short, Stream> streamDataHashMap = new HashMap<>();
     private final ReentrantLock streamsLock = new ReentrantLock();
+    // Set once the circuit isn't going to get any new streams, and run (once) as soon as the last one is gone. Guarded by streamsLock.
+    private Runnable onDrained;
     private static final byte NOT_SET = -2;
     private static final byte CONNECTED = -1;
     byte connected = NOT_SET;
 
     private final ReentrantLock truncateLock = new ReentrantLock();
+    // Relay cells have to reach the guard in the same order in which they were encrypted.
+    private final ReentrantLock sendLock = new ReentrantLock();
 
     // quick access params
     int sendMeVersion = 0;
 
+    // The last router that the circuit was extended to, which is the exit on exit circuits (null until the first hop is created).
+    RouterMicrodesc exitMicrodesc;
+    final long createdAt = Instant.now().getEpochSecond();
+    // While the circuit is being built, waiting for CREATED2 or EXTENDED2 gives up once System.nanoTime() passes this deadline (0 means no deadline).
+    private volatile long buildDeadline = 0;
+    private volatile boolean buildTimedOut = false;
+    // How long each hop took to create or extend to, in milliseconds.
+    private final ArrayList<Long> hopBuildTimes = new ArrayList<>();
+
     public <T extends Collection<? extends Relay>> Circuit(int circuitId, T relays, Collection<? extends Keys> relayKeys) {
         this.circuitId = getValidCircuitId(circuitId);
         for (Relay relay : relays)
@@ -64,6 +104,14 @@ public class Circuit {
 
     public void updateFromConsensus(MicrodescConsensus microdescConsensus) {
         sendMeVersion = microdescConsensus.getSendMeMinVersion();
+        windowLock.lock();
+        try {
+            // Once data was sent, the exit is already counting with the old window, so it's kept as it is.
+            if (!packageWindowUsed) packageWindow = circuitWindow = microdescConsensus.getCircuitWindow();
+        }
+        finally {
+            windowLock.unlock();
+        }
     }
 
     private void init() {
@@ -71,60 +119,207 @@ public class Circuit {
     }
 
     private <T extends Relay> T addRelay(T relay) {
-        relay.initialiseDeliverWindow(circuitId);
         this.relays.add(relay);
         return relay;
     }
 
+    private static int digestPrefix(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
     public void addCell(Cell cell) {
         truncateLock.lock();
-        pendingCellsLock.lock();
-        byte[] relayCellDigest = null;
-        if (cell instanceof RelayCell.EncryptedRelayCell encryptedRelayCell) {
-            byte[] encryptedBody = encryptedRelayCell.getEncryptedBody();
-            for (Keys keys : relayKeys)
-                encryptedBody = keys.decryptionKey().update(encryptedBody);
-            relayCellDigest = new byte[4];
-            System.arraycopy(encryptedBody, 5, relayCellDigest, 0, relayCellDigest.length);
-            Arrays.fill(encryptedBody, 5, 9, (byte) 0);
-            byte[] digest = Arrays.copyOf(Cryptography.updateDigest(relayKeys.getLast().digestBackward(), encryptedBody), 20);
-            if (!Arrays.equals(digest, 0, 4, relayCellDigest, 0, 4)) throw new Error("Digests don't match on relay cell: " + Arrays.toString(digest) + " != " + Arrays.toString(relayCellDigest));
-            relayCellDigest = digest;
-            cell = RelayCell.interpretCommand(circuitId, encryptedBody);
+        try {
+            byte[] relayCellDigest = null;
+            if (cell instanceof RelayCell.EncryptedRelayCell encryptedRelayCell) {
+                // The cell's body is decrypted in place, since nothing else holds on to the encrypted version.
+                byte[] encryptedBody = encryptedRelayCell.getEncryptedBody();
+                for (Keys keys : relayKeys)
+                    Cryptography.updateInPlace(keys.decryptionKey(), encryptedBody);
+                int receivedDigest = digestPrefix(encryptedBody, 5);
+                Arrays.fill(encryptedBody, 5, 9, (byte) 0);
+                relayCellDigest = relayKeys.getLast().digestBackward().update(encryptedBody);
+                if (digestPrefix(relayCellDigest, 0) != receivedDigest) throw new Error("Digests don't match on relay cell: " + Arrays.toString(Arrays.copyOf(relayCellDigest, 4)) + " != " + Integer.toHexString(receivedDigest));
+                cell = RelayCell.interpretCommand(circuitId, encryptedBody);
+            }
+
+            if (cell instanceof SendMeCommand sendMeCommand) {
+                // A SENDME that doesn't match what we've sent is a protocol violation, so the circuit is torn down.
+                if (!(sendMeCommand.getStreamId() == 0 ? circuitSendMe(sendMeCommand) : streamSendMe(sendMeCommand)))
+                    destroy(false);
+                return;
+            }
+
+            if (cell instanceof RelayCell relayCell && relayCell.getStreamId() != 0) {
+                // The circuit's window counts every data cell, even the ones that end up being dropped.
+                if (cell instanceof DataCommand)
+                    delivered(relayCellDigest);
+                Stream stream = getStream(relayCell.getStreamId());
+                // Cells can still be in flight for a stream we've already closed, so those are just dropped.
+                if (stream == null) return;
+                if (cell instanceof XoffCommand || cell instanceof XonCommand) {
+                    // The exit can't keep up with what we're sending on this stream (or has caught up again). Any rate limit in the XON is ignored.
+                    windowLock.lock();
+                    stream.xoffReceived = cell instanceof XoffCommand;
+                    windowOpened.signalAll();
+                    windowLock.unlock();
+                    return;
+                }
+                if (!stream.cellQueue.offer(cell) && !stream.cellQueue.isClosed()) {
+                    // The exit has sent more than the stream's window allows.
+                    destroy(false);
+                    return;
+                }
+                if (cell instanceof DataCommand && stream.flowControlled) updateStreamFlow(stream, 1);
+                // Nothing can arrive on the stream after an END cell, so whoever is reading it shouldn't wait for more.
+                if (cell instanceof EndCommand) {
+                    stream.cellQueue.close();
+                    wakeSenders();
+                }
+            }
+            else controlQueue.offer(cell);
+        }
+        finally {
+            truncateLock.unlock();
         }
+    }
 
-        if (cell instanceof DataCommand dataCommand) {
-            streamsLock.lock();
-            Stream stream = streamDataHashMap.get(dataCommand.getStreamId());
-            if (stream == null) throw new Error("Invalid stream id: " + dataCommand.getStreamId());
-            stream.received(this, relayCellDigest);
-            relays.getLast().received(this, relayCellDigest);
-            streamsLock.unlock();
+    private void delivered(byte[] digest) {
+        // With congestion control the exit doesn't have a fixed window, but it still expects a SENDME every sendMeIncrement cells.
+        int increment = sendMeIncrement;
+        if (--deliverWindow <= DELIVER_WINDOW_INIT - increment) {
+            // The digest array is reused for the next cell, and SENDMEs only carry the first 20 bytes of it anyway.
+            handleSendMe((short) 0, Arrays.copyOf(digest, 20));
+            deliverWindow += increment;
         }
-        else if (cell instanceof EndCommand endCommand) {
-            streamsLock.lock();
-            streamDataHashMap.remove(endCommand.getStreamId());
-            streamsLock.unlock();
+    }
+
+    private boolean circuitSendMe(SendMeCommand sendMeCommand) {
+        windowLock.lock();
+        try {
+            // Every SENDME acknowledges the oldest batch of cells that wasn't acknowledged yet, and a v1 SENDME also proves that the exit actually got them.
+            PendingSendMe expected = pendingSendMes.poll();
+            if (sendMeCommand.getSendMeVersion() == 1 && (expected == null || !Arrays.equals(expected.digest(), sendMeCommand.getDigest()))) return false;
+            if (congestionControl != null) {
+                if (!congestionControl.acknowledged(expected == null ? 0 : System.nanoTime() - expected.sentAtNanos())) return false;
+                windowOpened.signalAll();
+                return true;
+            }
+            // The exit can't acknowledge more than we've sent.
+            if (packageWindow + WINDOW_INCREMENT > circuitWindow) return false;
+            packageWindow += WINDOW_INCREMENT;
+            windowOpened.signalAll();
+            return true;
         }
-        else if (cell instanceof SendMeCommand sendMeCommand) {
-            if (sendMeCommand.getSendMeVersion() == 1) {
-                lastDigestsLock.lock();
-                if (lastDigests.stream().noneMatch(digest -> Arrays.equals(digest, sendMeCommand.getDigest()))) {
-                    // The spec isn't very specific about this, but I assume the circuit should be torn down if this ever happens.
-                    System.out.println("VERY WRONG"); // this is here for debug purposes
-                    destroy(false);
+        finally {
+            windowLock.unlock();
+        }
+    }
+
+    private boolean streamSendMe(SendMeCommand sendMeCommand) {
+        // Streams don't have windows on circuits with congestion control.
+        if (congestionControl != null) return false;
+        Stream stream = getStream(sendMeCommand.getStreamId());
+        // SENDMEs can still be in flight for a stream we've already closed.
+        if (stream == null) return true;
+        windowLock.lock();
+        try {
+            if (stream.packageWindow + Stream.WINDOW_INCREMENT > Stream.WINDOW_INIT) return false;
+            stream.packageWindow += Stream.WINDOW_INCREMENT;
+            windowOpened.signalAll();
+            return true;
+        }
+        finally {
+            windowLock.unlock();
+        }
+    }
+
+    private boolean acquirePackageWindow(Stream stream) {
+        // Waits until both the circuit and the stream are allowed to send another DATA cell, or returns false if either of them is closed in the meantime.
+        windowLock.lock();
+        try {
+            packageWindowUsed = true;
+            boolean flushed = false;
+            while (congestionControl != null ? !congestionControl.canSend() || stream.xoffReceived : packageWindow <= 0 || stream.packageWindow <= 0) {
+                if (controlQueue.isClosed() || stream.cellQueue.isClosed()) return false;
+                if (!flushed) {
+                    // Whatever is still batched has to reach the exit, or it would never acknowledge it (the lock isn't held while writing to the guard).
+                    windowLock.unlock();
+                    try {
+                        guard.flush();
+                    }
+                    finally {
+                        windowLock.lock();
+                    }
+                    flushed = true;
+                    continue;
                 }
-                else lastDigests.clear();
-                lastDigestsLock.unlock();
+                windowOpened.await();
+            }
+            if (congestionControl != null) congestionControl.sent();
+            else {
+                packageWindow--;
+                stream.packageWindow--;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    private void recordSendMeDigest(byte[] digest) {
+        windowLock.lock();
+        try {
+            // This can only overflow if the exit stopped acknowledging cells, in which case the oldest digests are useless anyway.
+            // With congestion control, the window itself is what limits how many SENDMEs can be pending.
+            int capacity = congestionControl != null ? congestionControl.getInflight() / sendMeIncrement + 1 : MAX_SENDME_DIGESTS;
+            if (pendingSendMes.size() >= capacity) pendingSendMes.poll();
+            pendingSendMes.add(new PendingSendMe(Arrays.copyOf(digest, 20), System.nanoTime()));
+        }
+        finally {
+            windowLock.unlock();
+        }
+    }
+
+    void updateStreamFlow(Stream stream, int queuedChange) {
+        // Keeps track of how much data is waiting to be read on a stream with congestion control, and tells the exit to stop or continue sending accordingly.
+        boolean change;
+        windowLock.lock();
+        try {
+            stream.queued += queuedChange;
+            change = stream.xoffSent ? stream.queued <= Stream.XON_THRESHOLD : stream.queued >= Stream.XOFF_THRESHOLD;
+        }
+        finally {
+            windowLock.unlock();
+        }
+        if (!change) return;
+        // The check is repeated while holding the send lock, so that XOFF and XON cells always go out in the same order in which they were decided on.
+        sendLock.lock();
+        try {
+            RelayCell flowCell;
+            windowLock.lock();
+            try {
+                if (stream.xoffSent ? stream.queued > Stream.XON_THRESHOLD : stream.queued < Stream.XOFF_THRESHOLD) return;
+                stream.xoffSent = !stream.xoffSent;
+                flowCell = stream.xoffSent ? new XoffCommand(circuitId, stream.streamId) : new XonCommand(circuitId, stream.streamId, 0);
+            }
+            finally {
+                windowLock.unlock();
             }
-            pendingCellsLock.unlock();
-            return;
+            encryptAndSend(flowCell, relayKeys.size() - 1, true);
         }
+        finally {
+            sendLock.unlock();
+        }
+    }
 
-        pendingCells.add(cell);
-        pendingCellsCondition.signalAll();
-        pendingCellsLock.unlock();
-        truncateLock.unlock();
+    private void wakeSenders() {
+        // Senders that are waiting for a window have to find out that their stream or circuit was closed.
+        windowLock.lock();
+        windowOpened.signalAll();
+        windowLock.unlock();
     }
 
     public void handleSendMe(short streamId, byte[] digest) {
@@ -132,93 +327,138 @@ public class Circuit {
                 : new SendMeCommand(circuitId, streamId, sendMeVersion, digest));
     }
 
-    @SuppressWarnings("unchecked")
-    private <T extends Cell> T getRelayCell(short streamId, Byte... relayCommands) {
-        T found = null;
-        int cells = pendingCells.size();
-        for (int i = 0; i < cells; i++) {
-            if (!(pendingCells.get(i) instanceof RelayCell relayCell) || relayCell.getStreamId() != streamId) continue;
-            for (Byte command : relayCommands) {
-                if (relayCell.getRelayCommand() == command) {
-                    found = (T) relayCell;
-                    break;
-                }
-            }
-            if (found != null) break;
+    private static boolean matchesRelayCommand(Cell cell, Byte... relayCommands) {
+        if (!(cell instanceof RelayCell relayCell)) return false;
+        for (Byte command : relayCommands) {
+            if (relayCell.getRelayCommand() == command) return true;
         }
-        if (found == null) return null;
-        pendingCells.remove(found);
-        return found;
+        return false;
     }
 
     public boolean isConnected() {
         return connected == CONNECTED;
     }
 
-    public <T extends Cell> T waitForRelayCell(short streamId, Byte... relayCommand) {
-        T cell = null;
+    private Stream getStream(short streamId) {
+        streamsLock.lock();
         try {
-            pendingCellsLock.lock();
-            while (isConnected() || !pendingCells.isEmpty()) {
-                if ((cell = getRelayCell(streamId, relayCommand)) != null) break;
-                pendingCellsCondition.await();
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            pendingCellsLock.unlock();
+            return streamDataHashMap.get(streamId);
+        }
+        finally {
+            streamsLock.unlock();
         }
-        return cell;
     }
 
-    @SuppressWarnings("unchecked")
-    private <T extends Cell> T getCellByCommand(byte command) {
-        T found = null;
-        int cells = pendingCells.size();
-        for (int i = 0; i < cells; i++) {
-            Cell cell;
-            if ((cell = pendingCells.get(i)).getCommand() == command) {
-                found = (T) cell;
-                break;
-            }
+    private Cell consumed(Stream stream, Cell cell) {
+        if (cell instanceof DataCommand)
+            stream.consumed(this);
+        else if (cell instanceof EndCommand) {
+            // The stream is only forgotten once its END cell was read, so that any data queued before it is still delivered.
+            streamsLock.lock();
+            streamDataHashMap.remove(stream.streamId, stream);
+            streamsLock.unlock();
+            streamRemoved();
         }
-        if (found == null) return null;
-        pendingCells.remove(found);
-        return found;
+        return cell;
     }
 
-    private <T extends Cell> T waitForCellByCommand(byte command) {
-        // Todo: Add timeout.
-        T cell = null;
-        try {
-            pendingCellsLock.lock();
-            while (guard.isConnected() && (isConnected() || connected == NOT_SET || !pendingCells.isEmpty())) {
-                if ((cell = getCellByCommand(command)) != null) break;
-                pendingCellsCondition.await();
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            pendingCellsLock.unlock();
+    private void streamRemoved() {
+        // Runs onDrained if the stream that was just removed was the last one. Must be called without holding streamsLock.
+        Runnable drained = null;
+        streamsLock.lock();
+        if (onDrained != null && streamDataHashMap.isEmpty()) {
+            drained = onDrained;
+            onDrained = null;
         }
+        streamsLock.unlock();
+        if (drained != null) drained.run();
+    }
+
+    public void retire(Runnable onDrained) {
+        // The circuit won't be given any new streams, so onDrained is run as soon as the existing ones are closed
+        // (right away if there are none, or if the circuit is already gone).
+        streamsLock.lock();
+        boolean drained = streamDataHashMap.isEmpty() || controlQueue.isClosed();
+        this.onDrained = drained ? null : onDrained;
+        streamsLock.unlock();
+        if (drained) onDrained.run();
+    }
 
+    private Cell takeControlCell(Predicate<Cell> filter) {
+        long deadline = buildDeadline;
+        if (deadline == 0) return controlQueue.take(filter);
+        Cell cell = controlQueue.take(filter, deadline);
+        if (cell == null && !controlQueue.isClosed()) buildTimedOut = true;
         return cell;
     }
 
+    @SuppressWarnings("unchecked")
+    public <T extends Cell> T waitForRelayCell(short streamId, Byte... relayCommand) {
+        if (streamId == 0) return (T) takeControlCell(cell -> matchesRelayCommand(cell, relayCommand));
+
+        Stream stream = getStream(streamId);
+        if (stream == null) return null;
+        return (T) consumed(stream, stream.cellQueue.take(cell -> matchesRelayCommand(cell, relayCommand)));
+    }
+
+    public CompletableFuture<RelayCell> waitForRelayCellAsync(short streamId, Byte... relayCommand) {
+        // Unless a matching cell is already queued, the future is completed by the link's event loop thread.
+        if (streamId == 0) return controlQueue.takeAsync(cell -> matchesRelayCommand(cell, relayCommand)).thenApply(RelayCell.class::cast);
+
+        Stream stream = getStream(streamId);
+        if (stream == null) return CompletableFuture.completedFuture(null);
+        return stream.cellQueue.takeAsync(cell -> matchesRelayCommand(cell, relayCommand)).thenApply(cell -> (RelayCell) consumed(stream, cell));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Cell> T waitForCellByCommand(byte command) {
+        if (!guard.isConnected()) return null;
+        return (T) takeControlCell(cell -> cell.getCommand() == command);
+    }
+
+    public void setBuildDeadline(long deadlineNanos) {
+        buildTimedOut = false;
+        buildDeadline = deadlineNanos;
+    }
+
+    public void clearBuildDeadline() {
+        buildDeadline = 0;
+    }
+
+    public boolean hasBuildTimedOut() {
+        return buildTimedOut;
+    }
+
+    public List<Long> getHopBuildTimes() {
+        return List.copyOf(hopBuildTimes);
+    }
+
     public boolean sendRelayCell(RelayCell relayCell, int level) {
+        return sendRelayCell(relayCell, level, true);
+    }
+
+    private boolean sendRelayCell(RelayCell relayCell, int level, boolean flush) {
+        sendLock.lock();
+        try {
+            return encryptAndSend(relayCell, level, flush);
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    private boolean encryptAndSend(RelayCell relayCell, int level, boolean flush) {
         byte[] body = relayCell.serialiseBody();
         // update the digest field
-        byte[] digest = Cryptography.updateDigest(relayKeys.get(level).digestForward(), body);
-        // Todo: Replace this part with an actual calculation of when the relay would send a SEND ME command and store only the right digest.
-        lastDigestsLock.lock();
-        lastDigests.add(Arrays.copyOf(digest, 20));
-        lastDigestsLock.unlock();
+        byte[] digest = relayKeys.get(level).digestForward().update(body);
+        // The exit acknowledges every sendMeIncrement'th DATA cell with a SENDME, which (in v1) carries that cell's digest.
+        if (relayCell instanceof DataCommand && ++sentDataCells % sendMeIncrement == 0) recordSendMeDigest(digest);
         System.arraycopy(digest, 0, body, 5, 4);
         // encrypt the relay cell body
         for (int i = level; i >= 0; i--) {
-            body = relayKeys.get(i).encryptionKey().update(body);
+            Cryptography.updateInPlace(relayKeys.get(i).encryptionKey(), body);
         }
-        return guard.sendCell(new RelayCell.EncryptedRelayCell(circuitId, relayCell.isEarly(), body));
+        return guard.sendCell(new RelayCell.EncryptedRelayCell(circuitId, relayCell.isEarly(), body), flush);
     }
 
     public boolean sendRelayCell(RelayCell relayCell) {
@@ -234,6 +474,7 @@ public class Circuit {
         CreateFastCell createFastCell = new CreateFastCell(circuitId);
         guard.sendCell(createFastCell);
         CreatedFastCell createdFastCell = waitForCellByCommand(Cell.CREATED_FAST);
+        if (createdFastCell == null) return false;
         Keys keys = Cryptography.kdfTor(createFastCell.getKeyMaterial(), createdFastCell.getKeyMaterial());
         relayKeys.add(keys);
         this.connected = CONNECTED;
@@ -242,9 +483,11 @@ public class Circuit {
 
     public boolean create2(RouterMicrodesc routerMicrodesc, short handshakeType) {
         Create2Cell create2Cell = new Create2Cell(circuitId, routerMicrodesc, handshakeType);
+        long start = System.nanoTime();
         guard.sendCell(create2Cell);
         Created2Cell created2Cell = waitForCellByCommand(Cell.CREATED2);
         if (created2Cell == null) return false;
+        hopBuildTimes.add((System.nanoTime() - start) / 1_000_000);
         Keys keys = null;
         if (created2Cell.getHandshakeType() == Handshakes.NTOR)
             keys = Handshakes.finishNtorHandshake(routerMicrodesc.getNtorOnionKey(), routerMicrodesc.getFingerprint(), create2Cell.getKeyPair(), created2Cell.getPublicKey(), created2Cell.getAuth());
@@ -255,6 +498,7 @@ public class Circuit {
         }
         relayKeys.add(keys);
         this.connected = CONNECTED;
+        this.exitMicrodesc = routerMicrodesc;
         return keys != null || Boolean.TRUE.equals(guard.terminate());
     }
 
@@ -265,7 +509,8 @@ public class Circuit {
     @SuppressWarnings("ConstantConditions")
     public boolean extend2(IntroductionPoint introductionPoint) {
         Extend2Command extend2Command = new Extend2Command(circuitId, introductionPoint);
-        boolean result = extend2(extend2Command, introductionPoint.ntorOnionKey(), introductionPoint.fingerprint(), introductionPoint.ed25519Id());
+        boolean result = extend2(extend2Command, introductionPoint.ntorOnionKey(), introductionPoint.fingerprint(), introductionPoint.ed25519Id()) != null;
+        if (result) exitMicrodesc = null;
         return result && addRelay(new Relay("introduction_point", 0)) != null;
     }
 
@@ -276,11 +521,40 @@ public class Circuit {
     @SuppressWarnings("ConstantConditions")
     public boolean extend2(RouterMicrodesc routerMicrodesc, short handshakeType) {
         Extend2Command extend2Command = new Extend2Command(circuitId, routerMicrodesc, handshakeType);
-        boolean result = extend2(extend2Command, routerMicrodesc.getNtorOnionKey(), routerMicrodesc.getFingerprint(), routerMicrodesc.getEd25519Id());
+        boolean result = extend2(extend2Command, routerMicrodesc.getNtorOnionKey(), routerMicrodesc.getFingerprint(), routerMicrodesc.getEd25519Id()) != null;
+        if (result) exitMicrodesc = routerMicrodesc;
         return result && addRelay(new Relay(routerMicrodesc.getHost(), routerMicrodesc.getPort())) != null;
     }
 
+    public boolean extend2(RouterMicrodesc routerMicrodesc, CongestionControl.Params congestionControlParams) {
+        // Extends the circuit to its exit, and asks it to use congestion control instead of fixed windows (which is only possible with ntor-v3).
+        if (routerMicrodesc.getEd25519Id() == null) return extend2(routerMicrodesc, Handshakes.NTOR);
+        Extend2Command extend2Command = new Extend2Command(circuitId, routerMicrodesc, congestionControlParams.requestMessage());
+        Keys keys = extend2Handshake(extend2Command, routerMicrodesc.getNtorOnionKey(), routerMicrodesc.getFingerprint(), routerMicrodesc.getEd25519Id());
+        if (keys == null) return false;
+        // With ntor-v3, the server message is what ends up in KH. Exits that don't support congestion control just don't answer the request.
+        // An invalid answer fails the extend before anything about the new hop is added to the circuit.
+        int sendMeIncrement = congestionControlParams.parseResponse(keys.KH());
+        if (sendMeIncrement < 0) return false;
+        relayKeys.add(keys);
+        exitMicrodesc = routerMicrodesc;
+        addRelay(new Relay(routerMicrodesc.getHost(), routerMicrodesc.getPort()));
+        if (sendMeIncrement > 0) {
+            windowLock.lock();
+            try {
+                congestionControl = new CongestionControl(congestionControlParams, sendMeIncrement);
+                this.sendMeIncrement = sendMeIncrement;
+            }
+            finally {
+                windowLock.unlock();
+            }
+        }
+        return true;
+    }
+
     public boolean extend2(CanExtendTo extendableObject) {
+        // Never negotiates congestion control, since this is also used for hops that aren't exits (directories, rendezvous points, introduction points).
+        // Exits are extended to through extend2(RouterMicrodesc, CongestionControl.Params) instead.
         if (extendableObject instanceof RouterMicrodesc routerMicrodesc) return extend2(routerMicrodesc, routerMicrodesc.getEd25519Id() == null ? Handshakes.NTOR : Handshakes.NTORv3);
         else if (extendableObject instanceof IntroductionPoint introductionPoint) return extend2(introductionPoint);
         else throw new RuntimeException("Got an unknown type of CanExtendTo instance.");
@@ -292,20 +566,28 @@ public class Circuit {
         else throw new RuntimeException("Got an unknown type of CanExtendTo instance.");
     }
 
-    private boolean extend2(Extend2Command extend2Command, byte[] ntorOnionKey, byte[] fingerprint, byte[] ed25519Id) {
+    private Keys extend2(Extend2Command extend2Command, byte[] ntorOnionKey, byte[] fingerprint, byte[] ed25519Id) {
+        Keys keys = extend2Handshake(extend2Command, ntorOnionKey, fingerprint, ed25519Id);
+        if (keys != null) relayKeys.add(keys);
+        return keys;
+    }
+
+    private Keys extend2Handshake(Extend2Command extend2Command, byte[] ntorOnionKey, byte[] fingerprint, byte[] ed25519Id) {
+        // Returns the new hop's keys without adding them to the circuit, or null if the extend failed.
+        long start = System.nanoTime();
         sendCell(extend2Command);
         Extended2Command extended2Command = waitForRelayCell((short) 0, RelayCell.EXTENDED2);
-        if (extended2Command == null) return false;
+        if (extended2Command == null) return null;
+        hopBuildTimes.add((System.nanoTime() - start) / 1_000_000);
         Keys keys = null;
         if (extended2Command.getHandshakeType() == Handshakes.NTOR)
             keys = Handshakes.finishNtorHandshake(ntorOnionKey, fingerprint, extend2Command.getKeyPair(), extended2Command.getPublicKey(), extended2Command.getAuth());
         else if (extended2Command.getHandshakeType() == Handshakes.NTORv3) {
+            // The server message (which is stored in KH) is only looked at when an extension was requested.
             keys = Handshakes.finishNtorV3Handshake(ntorOnionKey, ed25519Id, extend2Command.getKeyPair(), extended2Command.getPublicKey(), extend2Command.getMac(), extended2Command.getAuth(), extended2Command.getEncryptedMessage());
-            byte[] serverMessage = keys.KH();
-            // There are no supported ntor-v3 extensions at the moment, so serverMessage is currently not being used.
         }
-        relayKeys.add(keys);
-        return keys != null || Boolean.TRUE.equals(guard.terminate());
+        if (keys == null) guard.terminate();
+        return keys;
     }
 
     public byte[] establishRendezvous() {
@@ -331,8 +613,11 @@ public class Circuit {
     }
 
     private void addStream(short streamId) {
+        Stream stream = new Stream(streamId, congestionControl != null);
         streamsLock.lock();
-        streamDataHashMap.put(streamId, new Stream(streamId));
+        // A stream opened on a circuit that's already gone would otherwise wait forever.
+        if (controlQueue.isClosed()) stream.cellQueue.close();
+        streamDataHashMap.put(streamId, stream);
         streamsLock.unlock();
     }
 
@@ -343,11 +628,22 @@ public class Circuit {
     public static final int STREAM_SUCCESSFUL = 0;
     public static final int STREAM_FAILURE_UNKNOWN = -1;
 
+    private static int streamStatus(RelayCell relayCell) {
+        return relayCell instanceof ConnectedCommand ? STREAM_SUCCESSFUL : relayCell instanceof EndCommand endCommand ? endCommand.getReason() : STREAM_FAILURE_UNKNOWN;
+    }
+
     public int openStream(short streamId, String address, int port) {
         addStream(streamId);
         sendCell(new BeginCommand(circuitId, streamId, address, port));
         RelayCell relayCell = waitForRelayCell(streamId, RelayCell.CONNECTED, RelayCell.END);
-        return relayCell instanceof ConnectedCommand ? STREAM_SUCCESSFUL : relayCell instanceof EndCommand endCommand ? endCommand.getReason() : STREAM_FAILURE_UNKNOWN;
+        return streamStatus(relayCell);
+    }
+
+    public CompletableFuture<Integer> beginStream(short streamId, String address, int port) {
+        // Same as openStream, except that the caller doesn't have to wait for the exit to answer right away.
+        addStream(streamId);
+        sendCell(new BeginCommand(circuitId, streamId, address, port));
+        return waitForRelayCellAsync(streamId, RelayCell.CONNECTED, RelayCell.END).thenApply(Circuit::streamStatus);
     }
 
     public boolean openDirStream(short streamId) {
@@ -358,15 +654,32 @@ public class Circuit {
     }
 
     public boolean sendData(short streamId, byte[] data) {
+        Stream stream = getStream(streamId);
+        if (stream == null) return false;
         ByteBuffer buffer = ByteBuffer.wrap(data);
         while (buffer.hasRemaining()) {
             byte[] next = new byte[Math.min(DataCommand.MAX_DATA_SIZE, buffer.remaining())];
             buffer.get(next);
-            if (!sendCell(new DataCommand(circuitId, streamId, next))) return false;
+            // Blocks while the exit hasn't acknowledged enough of what was already sent.
+            if (!acquirePackageWindow(stream)) return false;
+            // The cells are coalesced by the guard, and the batch is only flushed once the last one has been queued.
+            if (!sendRelayCell(new DataCommand(circuitId, streamId, next), relayKeys.size() - 1, !buffer.hasRemaining())) return false;
         }
         return true;
     }
 
+    public boolean closeStream(short streamId, byte reason) {
+        // The stream is forgotten right away, since nobody is going to read whatever the exit still sends on it.
+        streamsLock.lock();
+        Stream stream = streamDataHashMap.remove(streamId);
+        streamsLock.unlock();
+        if (stream != null) stream.cellQueue.close();
+        wakeSenders();
+        boolean success = sendRelayCell(new EndCommand(circuitId, streamId, reason));
+        streamRemoved();
+        return success;
+    }
+
     public boolean destroy(boolean terminateGuard) {
         // Clients should always send NONE as the reason for a DESTROY cell.
         boolean success = sendCell(new DestroyCell(circuitId, connected = DestroyCell.DestroyReason.NONE.getReason()));
@@ -382,9 +695,17 @@ public class Circuit {
     }
 
     private void shutdownCleanup() {
-        pendingCellsLock.lock();
-        pendingCellsCondition.signalAll();
-        pendingCellsLock.unlock();
+        // Closing the queues wakes up everyone waiting on them, while still letting them read whatever was already queued.
+        streamsLock.lock();
+        controlQueue.close();
+        for (Stream stream : streamDataHashMap.values())
+            stream.cellQueue.close();
+        // The streams are all gone with the circuit.
+        Runnable drained = onDrained;
+        onDrained = null;
+        streamsLock.unlock();
+        wakeSenders();
+        if (drained != null) drained.run();
     }
 
     // Not used by the tor protocol at the moment, but still implemented.
@@ -406,6 +727,33 @@ public class Circuit {
         return connected;
     }
 
+    public CongestionControl getCongestionControl() {
+        // Null unless the exit agreed to use congestion control. It's guarded by the circuit, so this is only meant for looking at (e.g. for statistics).
+        return congestionControl;
+    }
+
+    public int getStreamCount() {
+        streamsLock.lock();
+        try {
+            return streamDataHashMap.size();
+        }
+        finally {
+            streamsLock.unlock();
+        }
+    }
+
+    public boolean allowsExitTo(int port) {
+        return exitMicrodesc != null && exitMicrodesc.getIpv4ExitPolicy() != null && exitMicrodesc.getIpv4ExitPolicy().check(port);
+    }
+
+    public RouterMicrodesc getExitMicrodesc() {
+        return exitMicrodesc;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
     public int getCircuitId() {
         return circuitId;
     }
@@ -0,0 +1,173 @@
+package snowy.autumn.tor.circuit;
+
+import snowy.autumn.tor.directory.documents.MicrodescConsensus;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+public class CongestionControl {
+
+    // RTT-based congestion control (TOR_VEGAS, proposal 324), which replaces the fixed circuit window on circuits where the exit agreed to use it.
+    // Instead of 1000 cells per circuit (and 500 per stream), the amount of data in flight is limited by a congestion window that grows
+    // as long as the RTT measured through SENDMEs stays close to the smallest one seen, and shrinks once queues start building up along the path.
+    // Everything here is guarded by the circuit's window lock.
+
+    // The ntor-v3 extensions used to negotiate congestion control.
+    static final byte EXTENSION_REQUEST = 1;
+    static final byte EXTENSION_RESPONSE = 2;
+    public static final int ALGORITHM_VEGAS = 2;
+
+    public record Params(int sendMeIncrement, int cwndInit, int cwndMin, int cwndMax, int cwndIncrement, int cwndIncrementRate, int cwndIncrementPercentSlowStart,
+                         int cwndFullGap, int slowStartCwndMax, int alpha, int beta, int gamma, int delta, int ewmaCwndPercent, int ewmaMax, int ewmaSlowStart) {
+
+        public static Params fromConsensus(MicrodescConsensus microdescConsensus) {
+            // Returns null if the consensus doesn't want clients to use congestion control (Vegas is the only algorithm that's supported).
+            HashMap<String, Integer> params = microdescConsensus.getParams();
+            if (getParam(params, "cc_alg", ALGORITHM_VEGAS, 0, 2) != ALGORITHM_VEGAS) return null;
+            // The defaults are the same ones as C-tor's, where the Vegas thresholds are the ones for exit circuits.
+            int sendMeIncrement = getParam(params, "cc_sendme_inc", 31, 1, 254);
+            return new Params(sendMeIncrement,
+                    getParam(params, "cc_cwnd_init", 4 * 31, 31, 10000),
+                    getParam(params, "cc_cwnd_min", 4 * 31, sendMeIncrement, 1000),
+                    getParam(params, "cc_cwnd_max", Integer.MAX_VALUE, 500, Integer.MAX_VALUE),
+                    getParam(params, "cc_cwnd_inc", 31, 1, 50000),
+                    getParam(params, "cc_cwnd_inc_rate", 1, 1, 250),
+                    getParam(params, "cc_cwnd_inc_pct_ss", 50, 1, 500),
+                    getParam(params, "cc_cwnd_full_gap", 4, 0, Short.MAX_VALUE),
+                    getParam(params, "cc_ss_max", 5000, 500, 100000),
+                    getParam(params, "cc_vegas_alpha_exit", 3 * 62, 0, 1000),
+                    getParam(params, "cc_vegas_beta_exit", 4 * 62, 0, 1000),
+                    getParam(params, "cc_vegas_gamma_exit", 3 * 62, 0, 1000),
+                    getParam(params, "cc_vegas_delta_exit", 5 * 62, 0, 1000),
+                    getParam(params, "cc_ewma_cwnd_pct", 50, 1, 255),
+                    getParam(params, "cc_ewma_max", 10, 2, Integer.MAX_VALUE),
+                    getParam(params, "cc_ewma_ss", 2, 2, Integer.MAX_VALUE));
+        }
+
+        private static int getParam(HashMap<String, Integer> params, String name, int defaultValue, int min, int max) {
+            // Values outside the allowed range are clamped, just like C-tor does.
+            return Math.max(min, Math.min(max, params.getOrDefault(name, defaultValue)));
+        }
+
+        public byte[] requestMessage() {
+            // The ntor-v3 client message: a single CC_FIELD_REQUEST extension, which has no body.
+            return new byte[]{1, EXTENSION_REQUEST, 0};
+        }
+
+        public int parseResponse(byte[] serverMessage) {
+            // Returns the SENDME increment that the exit is going to use, 0 if it didn't agree to use congestion control, or -1 if the increment is invalid.
+            if (serverMessage == null || serverMessage.length == 0) return 0;
+            ByteBuffer buffer = ByteBuffer.wrap(serverMessage);
+            int extensions = buffer.get() & 0xFF;
+            for (int i = 0; i < extensions && buffer.remaining() >= 2; i++) {
+                byte type = buffer.get();
+                int length = buffer.get() & 0xFF;
+                if (buffer.remaining() < length) return -1;
+                if (type == EXTENSION_RESPONSE && length >= 1) {
+                    int exitSendMeIncrement = buffer.get(buffer.position()) & 0xFF;
+                    // The exit has to use (almost) the same increment as the one in our consensus.
+                    return exitSendMeIncrement != 0 && Math.abs(exitSendMeIncrement - sendMeIncrement) <= 1 ? exitSendMeIncrement : -1;
+                }
+                buffer.position(buffer.position() + length);
+            }
+            return 0;
+        }
+    }
+
+    private final Params params;
+    private final int sendMeIncrement;
+    private int cwnd;
+    private int inflight = 0;
+    private boolean inSlowStart = true;
+    // Whether the window was (nearly) used up since it was last updated, since it should only grow if we actually need more of it.
+    private boolean cwndFull = false;
+    // The number of SENDMEs left until the window is updated again (which happens about once per window).
+    private int nextUpdate;
+    private long ewmaRttNanos = 0;
+    private long minRttNanos = Long.MAX_VALUE;
+
+    public CongestionControl(Params params, int sendMeIncrement) {
+        this.params = params;
+        this.sendMeIncrement = sendMeIncrement;
+        this.cwnd = params.cwndInit();
+        this.nextUpdate = updateRate();
+    }
+
+    private int updateRate() {
+        // How many SENDMEs there are between updates, which is once per window (rounded to the nearest SENDME), divided by cc_cwnd_inc_rate.
+        return Math.max(1, (cwnd + sendMeIncrement / 2) / sendMeIncrement / params.cwndIncrementRate());
+    }
+
+    public boolean canSend() {
+        return inflight < cwnd;
+    }
+
+    public void sent() {
+        inflight++;
+        if (inflight + params.cwndFullGap() * sendMeIncrement >= cwnd) cwndFull = true;
+    }
+
+    public boolean acknowledged(long rttNanos) {
+        // Called for every circuit-level SENDME, with the time since the cell it acknowledges was sent.
+        // Returns false if the SENDME acknowledges more than what's in flight, which is a protocol violation.
+        if (inflight < sendMeIncrement) return false;
+        inflight -= sendMeIncrement;
+        if (rttNanos > 0) updateRtt(rttNanos);
+        if (--nextUpdate > 0) return true;
+
+        if (ewmaRttNanos > 0) {
+            // The estimated bandwidth-delay product, and how much of the window is (probably) sitting in queues rather than on the wire.
+            long bdp = cwnd * minRttNanos / ewmaRttNanos;
+            long queueUse = cwnd - bdp;
+            long newCwnd = cwnd;
+            if (inSlowStart) {
+                if (queueUse < params.gamma()) {
+                    if (cwndFull) newCwnd = cwnd + Math.max(params.cwndIncrement(), (long) cwnd * params.cwndIncrementPercentSlowStart() / 100);
+                    if (newCwnd >= params.slowStartCwndMax()) {
+                        newCwnd = params.slowStartCwndMax();
+                        inSlowStart = false;
+                    }
+                }
+                else {
+                    newCwnd = bdp + params.gamma();
+                    inSlowStart = false;
+                }
+            }
+            else if (queueUse > params.delta()) newCwnd = bdp + params.delta() - params.cwndIncrement();
+            else if (queueUse > params.beta()) newCwnd = cwnd - params.cwndIncrement();
+            else if (queueUse < params.alpha() && cwndFull) newCwnd = cwnd + params.cwndIncrement();
+            cwnd = (int) Math.max(params.cwndMin(), Math.min(params.cwndMax(), newCwnd));
+        }
+        cwndFull = inflight + params.cwndFullGap() * sendMeIncrement >= cwnd;
+        nextUpdate = updateRate();
+        return true;
+    }
+
+    private void updateRtt(long rttNanos) {
+        // An N-EWMA, where N is a fraction of the SENDMEs per window (and fixed while in slow start, to react faster).
+        int n = inSlowStart ? params.ewmaSlowStart() : Math.max(2, Math.min(params.ewmaMax(), updateRate() * params.ewmaCwndPercent() / 100));
+        ewmaRttNanos = ewmaRttNanos == 0 ? rttNanos : (2 * rttNanos + (n - 1) * ewmaRttNanos) / (n + 1);
+        minRttNanos = Math.min(minRttNanos, ewmaRttNanos);
+    }
+
+    public int getSendMeIncrement() {
+        return sendMeIncrement;
+    }
+
+    public int getCwnd() {
+        return cwnd;
+    }
+
+    public int getInflight() {
+        return inflight;
+    }
+
+    public long getMinRttNanos() {
+        return minRttNanos;
+    }
+
+    public long getEwmaRttNanos() {
+        return ewmaRttNanos;
+    }
+
+}
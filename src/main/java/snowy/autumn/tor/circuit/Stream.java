@@ -4,18 +4,49 @@ public class Stream {
 
     short streamId;
 
+    // Stream windows aren't configurable, unlike the circuit's.
     static final int WINDOW_INIT = 500;
+    static final int WINDOW_INCREMENT = 50;
+    // The exit can't send more than a full deliver window of DATA cells before we acknowledge them, and then there's the END cell.
+    static final int QUEUE_CAPACITY = WINDOW_INIT + 1;
+    // With congestion control there are no stream windows, so instead the exit is asked to stop sending (XOFF) once this many cells are waiting to be read,
+    // and to continue (XON) once the reader caught up with half of them.
+    static final int XOFF_THRESHOLD = 500;
+    static final int XON_THRESHOLD = XOFF_THRESHOLD / 2;
 
+    // Whether the stream is on a circuit with congestion control (and so uses XON / XOFF rather than windows).
+    final boolean flowControlled;
     int deliverWindow = WINDOW_INIT;
+    // The rest is guarded by the circuit's window lock.
+    // The number of DATA cells we can still send before the exit acknowledges them.
+    int packageWindow = WINDOW_INIT;
+    // The number of DATA cells that arrived but weren't read yet, and whether the exit was asked to stop sending.
+    int queued = 0;
+    boolean xoffSent = false;
+    // Whether the exit asked us to stop sending.
+    boolean xoffReceived = false;
+    final CellQueue cellQueue;
 
     public Stream(short streamId) {
+        this(streamId, false);
+    }
+
+    public Stream(short streamId, boolean flowControlled) {
         this.streamId = streamId;
+        this.flowControlled = flowControlled;
+        // After an XOFF, the exit might still have up to a whole congestion window in flight, so the queue can't be bounded by a window here.
+        this.cellQueue = new CellQueue(flowControlled ? Integer.MAX_VALUE : QUEUE_CAPACITY);
     }
 
-    public void received(Circuit circuit, byte[] digest) {
-        if (--deliverWindow <= 450) {
-            circuit.handleSendMe(streamId, digest);
-            deliverWindow += 50;
+    public void consumed(Circuit circuit) {
+        if (flowControlled) {
+            circuit.updateStreamFlow(this, -1);
+            return;
+        }
+        // The window is only moved once the data was actually read, so that the queue can never outgrow its capacity.
+        if (--deliverWindow <= WINDOW_INIT - WINDOW_INCREMENT) {
+            circuit.handleSendMe(streamId, null);
+            deliverWindow += WINDOW_INCREMENT;
         }
     }
 
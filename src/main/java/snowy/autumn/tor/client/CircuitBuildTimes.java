@@ -0,0 +1,143 @@
+package snowy.autumn.tor.client;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class CircuitBuildTimes {
+
+    // Learns how long circuits take to build, and derives a timeout from it the same way C-tor does (circuit-build-timeout):
+    // build times are assumed to follow a Pareto distribution, and builds that take longer than its 80th percentile are abandoned.
+    // Abandoned builds are kept as samples as well (stored as the negated timeout they were abandoned at), since all we know about them
+    // is that they would have taken at least that long. Leaving them out would mean only ever learning from builds that were faster
+    // than the previous timeout, which would make the timeout keep shrinking.
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60_000;
+    private static final long MIN_TIMEOUT_MILLIS = 1_500;
+    private static final int MAX_SAMPLES = 1000;
+    private static final int MIN_SAMPLES = 100;
+    private static final double TIMEOUT_QUANTILE = 0.8;
+    private static final int BIN_WIDTH_MILLIS = 10;
+    // The mode is estimated from the most common bins, which is more stable than just taking the single most common one.
+    private static final int MODE_BINS = 10;
+    // If almost all recent builds timed out, then the network probably changed, and what we've learned is no longer useful.
+    private static final int RECENT_BUILDS = 20;
+    private static final int MAX_RECENT_TIMEOUTS = 18;
+
+    private final ArrayDeque<Integer> samples = new ArrayDeque<>();
+    private final ArrayDeque<Boolean> recentTimeouts = new ArrayDeque<>();
+    private int recentTimeoutCount = 0;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public long getTimeoutMillis() {
+        lock.lock();
+        try {
+            return timeoutMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addBuildTime(long buildTimeMillis) {
+        lock.lock();
+        try {
+            samples.add((int) Math.min(Integer.MAX_VALUE, buildTimeMillis));
+            if (samples.size() > MAX_SAMPLES) samples.poll();
+            addRecent(false);
+            recalculate();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addTimeout(long timeoutMillis) {
+        // timeoutMillis is the timeout the build was abandoned at.
+        lock.lock();
+        try {
+            samples.add((int) -Math.max(1, Math.min(Integer.MAX_VALUE, timeoutMillis)));
+            if (samples.size() > MAX_SAMPLES) samples.poll();
+            addRecent(true);
+            if (recentTimeoutCount >= MAX_RECENT_TIMEOUTS) {
+                // Start learning from scratch, with a timeout that is long enough for the new conditions.
+                samples.clear();
+                recentTimeouts.clear();
+                recentTimeoutCount = 0;
+                this.timeoutMillis = Math.max(DEFAULT_TIMEOUT_MILLIS, this.timeoutMillis * 2);
+            }
+            else recalculate();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addRecent(boolean timedOut) {
+        // The lock must be held by the caller.
+        recentTimeouts.add(timedOut);
+        if (timedOut) recentTimeoutCount++;
+        if (recentTimeouts.size() > RECENT_BUILDS && recentTimeouts.poll()) recentTimeoutCount--;
+    }
+
+    private void recalculate() {
+        // The lock must be held by the caller.
+        // Until there are enough samples, the timeout stays at whatever it was (which is the default unless we had to back off).
+        if (samples.size() < MIN_SAMPLES) return;
+        // Estimate Xm (the Pareto scale) as the weighted average of the most common bins of the builds that completed.
+        HashMap<Integer, Integer> bins = new HashMap<>();
+        for (int sample : samples)
+            if (sample >= 0) bins.merge(sample / BIN_WIDTH_MILLIS, 1, Integer::sum);
+        // Without a single completed build there is nothing to estimate from.
+        if (bins.isEmpty()) return;
+        List<Map.Entry<Integer, Integer>> modes = bins.entrySet().stream()
+                .sorted((a, b) -> Integer.compare(b.getValue(), a.getValue()))
+                .limit(MODE_BINS).toList();
+        double weightedSum = 0;
+        int count = 0;
+        for (Map.Entry<Integer, Integer> mode : modes) {
+            weightedSum += (mode.getKey() * BIN_WIDTH_MILLIS + BIN_WIDTH_MILLIS / 2.0) * mode.getValue();
+            count += mode.getValue();
+        }
+        double xm = Math.max(1, weightedSum / count);
+        // Maximum likelihood estimate of alpha, where samples below Xm are counted as Xm.
+        // Abandoned builds are right-censored at their timeout: they add to the sum, but aren't counted as observations.
+        double logSum = 0;
+        int completed = 0;
+        for (int sample : samples) {
+            if (sample >= 0) completed++;
+            logSum += Math.log(Math.max(Math.abs(sample), xm) / xm);
+        }
+        if (logSum <= 0) {
+            timeoutMillis = Math.max(MIN_TIMEOUT_MILLIS, (long) xm);
+            return;
+        }
+        double alpha = completed / logSum;
+        // The inverse CDF of the Pareto distribution.
+        double timeout = xm / Math.pow(1 - TIMEOUT_QUANTILE, 1 / alpha);
+        timeoutMillis = Math.max(MIN_TIMEOUT_MILLIS, Math.min(DEFAULT_TIMEOUT_MILLIS, (long) timeout));
+    }
+
+    public int[] getSamples() {
+        // Abandoned builds are negative, see above.
+        lock.lock();
+        try {
+            return samples.stream().mapToInt(Integer::intValue).toArray();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setSamples(int[] samples) {
+        lock.lock();
+        try {
+            this.samples.clear();
+            for (int sample : samples)
+                this.samples.add(sample);
+            while (this.samples.size() > MAX_SAMPLES) this.samples.poll();
+            recalculate();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -1,65 +1,125 @@
 package snowy.autumn.tor.client;
 
+import snowy.autumn.tor.cell.cells.relay.commands.EndCommand;
 import snowy.autumn.tor.cell.cells.relay.commands.IntroduceAckCommand;
 import snowy.autumn.tor.circuit.CanExtendTo;
 import snowy.autumn.tor.circuit.Circuit;
+import snowy.autumn.tor.circuit.CongestionControl;
 import snowy.autumn.tor.crypto.KeyPair;
 import snowy.autumn.tor.directory.Directory;
 import snowy.autumn.tor.directory.documents.MicrodescConsensus;
 import snowy.autumn.tor.directory.documents.RouterMicrodesc;
+import snowy.autumn.tor.directory.documents.WeightedRelays;
 import snowy.autumn.tor.hs.HSDirectory;
 import snowy.autumn.tor.hs.HiddenService;
 import snowy.autumn.tor.hs.HiddenServiceDescriptor;
 import snowy.autumn.tor.hs.IntroductionPoint;
 import snowy.autumn.tor.relay.Guard;
 import snowy.autumn.tor.relay.Handshakes;
+import snowy.autumn.tor.utils.Threads;
 
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 public class CircuitManager {
 
     public record RendezvousInfo(int circuitId, RouterMicrodesc rendezvousPoint, byte[] rendezvousCookie) {}
+    private record ExitCircuit(int circuitId, Circuit circuit, long firstUsed) {}
+
+    // New streams are only attached to a circuit for this long after it was first used, like tor's MaxCircuitDirtiness.
+    public static final long MAX_CIRCUIT_DIRTINESS_SECONDS = 10 * 60;
+    public static final int MAX_STREAMS_PER_CIRCUIT = 32;
+    // Raced builds each need their own second layer vanguard, and there are only 4 of them (one of which might be the last node).
+    public static final int MAX_RACED_BUILDS = 3;
+    // How long to wait for an exit to connect before trying another circuit, until we've seen enough connections to know better.
+    public static final long DEFAULT_HAPPY_EYEBALLS_DELAY_MILLIS = 1500;
+    private static final int RECENT_CONNECT_TIMES = 20;
+    // How long to wait for an exit to answer a BEGIN at all, after which the stream is given up on (tor waits about as long before it retries a stream elsewhere).
+    public static final long STREAM_CONNECT_TIMEOUT_MILLIS = 10_000;
 
     TorClient.ClientState clientState;
     Random random;
     HashMap<Integer, Circuit> circuitHashMap = new HashMap<>();
+    HashSet<Integer> reservedCircuitIds = new HashSet<>();
     HashMap<Long, ConnectionInfo> connectionInfoHashMap = new HashMap<>();
+    HashSet<Long> reservedStreams = new HashSet<>();
     ReentrantLock circuitsLock = new ReentrantLock();
     ReentrantLock streamsLock = new ReentrantLock();
+    CircuitPool circuitPool;
+    // Exit circuits that have already been handed out for connections, and can be shared by new streams.
+    ArrayList<ExitCircuit> exitCircuits = new ArrayList<>();
+    ReentrantLock exitCircuitsLock = new ReentrantLock();
+    // How long the most recent streams took to connect, in milliseconds.
+    ArrayDeque<Long> recentConnectTimes = new ArrayDeque<>();
+    ReentrantLock connectTimesLock = new ReentrantLock();
 
     public CircuitManager(TorClient.ClientState clientState) {
         this.clientState = clientState;
         this.random = new Random();
     }
 
-    private int getUnusedCircuitId() {
-        boolean holder = circuitsLock.isHeldByCurrentThread();
-        if (!circuitsLock.isLocked())
-            circuitsLock.lock();
-        int circuitId;
-        do {
-            circuitId = Circuit.getValidCircuitId(random.nextInt());
-            if (circuitHashMap.containsKey(circuitId) && !circuitHashMap.get(circuitId).isConnected())
-                circuitHashMap.remove(circuitId);
+    private int reserveCircuitId() {
+        // Only picking the id needs mutual exclusion, the circuit itself is built without holding any lock.
+        circuitsLock.lock();
+        try {
+            int circuitId;
+            do {
+                circuitId = Circuit.getValidCircuitId(random.nextInt());
+                Circuit existing = circuitHashMap.get(circuitId);
+                if (existing != null && !existing.isConnected())
+                    circuitHashMap.remove(circuitId);
+            }
+            while (circuitHashMap.containsKey(circuitId) || reservedCircuitIds.contains(circuitId));
+            reservedCircuitIds.add(circuitId);
+            return circuitId;
         }
-        while (circuitHashMap.containsKey(circuitId));
-        if (!holder && circuitsLock.isHeldByCurrentThread())
+        finally {
             circuitsLock.unlock();
-        return circuitId;
+        }
+    }
+
+    private void releaseCircuitId(int circuitId, Circuit circuit) {
+        // Turns a reservation into an actual entry in the hashmap, or drops it if the circuit is null.
+        circuitsLock.lock();
+        reservedCircuitIds.remove(circuitId);
+        if (circuit != null) circuitHashMap.put(circuitId, circuit);
+        circuitsLock.unlock();
+    }
+
+    void destroyCircuit(Circuit circuit) {
+        // Destroys the circuit without terminating its guard, and forgets about it.
+        if (circuit.isConnected()) circuit.destroy(false);
+        circuitsLock.lock();
+        circuitHashMap.remove(circuit.getCircuitId(), circuit);
+        circuitsLock.unlock();
     }
 
     private RouterMicrodesc getRandomRouterMicrodesc() {
-        List<RouterMicrodesc> microdescs = clientState.microdescConsensus.getMicrodescs();
-        return microdescs.get(random.nextInt(microdescs.size()));
+        // Relays are picked in proportion to their weighted bandwidth, so that slow relays don't get as much traffic as fast ones.
+        return clientState.microdescConsensus.getWeightedMiddles().pick(random);
     }
 
     private RouterMicrodesc getPotentialExit(int port, CanExtendTo... usedRouters) {
-        List<RouterMicrodesc> microdescs = MicrodescConsensus.getAllExcept(clientState.microdescConsensus.getMicrodescs(), usedRouters);
-        if (port != -1) microdescs = MicrodescConsensus.getAllWithExitPolicy(microdescs, port);
-        return microdescs.get(random.nextInt(microdescs.size()));
+        MicrodescConsensus microdescConsensus = clientState.microdescConsensus;
+        // Exits for a port are looked up in the consensus' index, and are weighted by their bandwidth for the exit position.
+        WeightedRelays candidates = port == -1 ? microdescConsensus.getWeightedMiddles() : microdescConsensus.getWeightedExits(port);
+        RouterMicrodesc exit = candidates.pick(random, usedRouters);
+        if (exit == null) throw new RuntimeException("No relay in the consensus can be used as an exit for port " + port + ".");
+        return exit;
     }
 
     private long longFromCircuitAndStream(int circuitId, short streamId) {
@@ -67,59 +127,107 @@ public class CircuitManager {
     }
 
     public int createDefaultCircuit(int port, CanExtendTo lastNode, boolean reserve) {
+        return createDefaultCircuit(port, lastNode, reserve, null);
+    }
+
+    private int createDefaultCircuit(int port, CanExtendTo lastNode, boolean reserve, BuildRace race) {
         // Note: If a lastNode is given, then specifying a port would not have an effect on the circuit.
-        // Acquire the circuits lock to allow multithreading activity.
-        circuitsLock.lock();
-        // Create a variable to hold the final circuit id.
-        int circuitId = 0;
         // Attempt to build a circuit at most 5 times.
         for (int i = 0; i < 5; i++) {
-            // Generate a new random circuit id.
-            circuitId = getUnusedCircuitId();
+            // Reserve a new random circuit id.
+            int circuitId = reserveCircuitId();
             // Get a random primary guard.
             Guard.GuardInfo guardInfo = clientState.vanguardsLite.getEntryGuard(lastNode);
             // Create a new circuit using that guard.
             Circuit circuit = new Circuit(circuitId, guardInfo.guard());
-            // Update the circuit from the current microdesc consensus (mainly to keep sendMeVersion correct).
-            circuit.updateFromConsensus(clientState.microdescConsensus);
-            // Attempt to initialise the circuit with an NTORv3 handshake.
-            boolean created = circuit.create2(guardInfo.guardMicrodesc(), Handshakes.NTORv3);
-            if (!created) continue;
-            // Get a new second layer vanguard router microdesc.
-            RouterMicrodesc secondLayerMicrodesc = clientState.vanguardsLite.getSecondLayerVanguard(lastNode);
-            // If there is no available second layer vanguard, then the circuit will always fail.
-            if (secondLayerMicrodesc == null) {
-                // Destroy the circuit without the terminating the guard.
-                circuit.destroy(false);
-                // Return 0 (Since 0 is not associated with any circuit.)
-                return 0;
+            // Give up on the build if it takes longer than what we've learned to be a reasonable amount of time.
+            // The timeout is only learned from (and applied to) regular three hop circuits, since longer ones would skew the distribution.
+            long start = System.nanoTime();
+            long timeoutMillis = clientState.circuitBuildTimes.getTimeoutMillis();
+            if (!reserve) circuit.setBuildDeadline(start + timeoutMillis * 1_000_000);
+            // Attempt to build the rest of the circuit.
+            byte result = buildCircuit(circuit, guardInfo, port, lastNode, reserve, race);
+            circuit.clearBuildDeadline();
+            if (!reserve) {
+                if (result == BUILD_SUCCESSFUL)
+                    clientState.circuitBuildTimes.addBuildTime((System.nanoTime() - start) / 1_000_000);
+                else if (circuit.hasBuildTimedOut())
+                    clientState.circuitBuildTimes.addTimeout(timeoutMillis);
             }
-            // Extend the circuit.
-            boolean extended = circuit.extend2(secondLayerMicrodesc);
-            if (!extended) continue;
-            // If lastNode is null, then we need to find a proper potential exit. If the given port is -1, then this circuit is not an exit circuit.
-            CanExtendTo thirdNode = lastNode;
-            if (lastNode == null || reserve)
-                thirdNode = getPotentialExit(port, guardInfo.guardMicrodesc(), secondLayerMicrodesc, lastNode);
-            // Extend the circuit.
-            extended = circuit.extend2(thirdNode);
-            if (!extended) continue;
-            if (reserve) {
-                // Extend the circuit.
-                extended = circuit.extend2(lastNode);
-                if (!extended) continue;
+            if (result == BUILD_SUCCESSFUL) {
+                // Add the circuit to the hashmap.
+                releaseCircuitId(circuitId, circuit);
+                // If we managed to build a circuit, we can return here.
+                return circuitId;
             }
-            // Add the circuit to the hashmap.
-            circuitHashMap.put(circuitId, circuit);
-            // If we managed to build a circuit, we can break here.
-            break;
+            // Destroy the circuit without the terminating the guard, and give up its id.
+            circuit.destroy(false);
+            releaseCircuitId(circuitId, null);
+            // If there is no available second layer vanguard, then the circuit will always fail.
+            // Return 0 (Since 0 is not associated with any circuit.)
+            if (result == BUILD_IMPOSSIBLE) return 0;
         }
         // If we weren't able to build a circuit, throw an exception.
-        if (circuitId == 0) throw new RuntimeException("Failed to build circuit.");
-        // Release the lock.
-        circuitsLock.unlock();
-        // Return the circuit id.
-        return circuitId;
+        throw new RuntimeException("Failed to build circuit.");
+    }
+
+    private static final byte BUILD_SUCCESSFUL = 0;
+    private static final byte BUILD_FAILED = 1;
+    private static final byte BUILD_IMPOSSIBLE = 2;
+
+    private static class BuildRace {
+
+        // The relays that were picked by the builds of a single race, so that each build would go through a different path.
+        private final ArrayList<CanExtendTo> picked = new ArrayList<>();
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private RouterMicrodesc pick(Function<CanExtendTo[], RouterMicrodesc> picker, CanExtendTo... usedRouters) {
+            // Picking and remembering the relay is done under the lock, so that two builds wouldn't end up picking the same relay.
+            lock.lock();
+            try {
+                ArrayList<CanExtendTo> excluded = new ArrayList<>(picked);
+                excluded.addAll(Arrays.asList(usedRouters));
+                RouterMicrodesc microdesc = picker.apply(excluded.toArray(new CanExtendTo[0]));
+                if (microdesc != null) picked.add(microdesc);
+                return microdesc;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+    private byte buildCircuit(Circuit circuit, Guard.GuardInfo guardInfo, int port, CanExtendTo lastNode, boolean reserve, BuildRace race) {
+        // Update the circuit from the current microdesc consensus (mainly to keep sendMeVersion correct).
+        circuit.updateFromConsensus(clientState.microdescConsensus);
+        // Attempt to initialise the circuit with an NTORv3 handshake.
+        boolean created = circuit.create2(guardInfo.guardMicrodesc(), Handshakes.NTORv3);
+        if (!created) return BUILD_FAILED;
+        // Get a new second layer vanguard router microdesc.
+        // If the circuit is part of a race, then it shouldn't go through the vanguard that any of the other builds are using.
+        RouterMicrodesc secondLayerMicrodesc = race == null ? clientState.vanguardsLite.getSecondLayerVanguard(lastNode)
+                : race.pick(clientState.vanguardsLite::getSecondLayerVanguard, lastNode);
+        if (secondLayerMicrodesc == null) return BUILD_IMPOSSIBLE;
+        // Extend the circuit.
+        boolean extended = circuit.extend2(secondLayerMicrodesc);
+        if (!extended) return BUILD_FAILED;
+        // If lastNode is null, then we need to find a proper potential exit. If the given port is -1, then this circuit is not an exit circuit.
+        CanExtendTo thirdNode = lastNode;
+        if (lastNode == null || reserve)
+            thirdNode = race == null ? getPotentialExit(port, guardInfo.guardMicrodesc(), secondLayerMicrodesc, lastNode)
+                    : race.pick(usedRouters -> getPotentialExit(port, usedRouters), guardInfo.guardMicrodesc(), secondLayerMicrodesc, lastNode);
+        // Extend the circuit.
+        // Congestion control is only negotiated with the exit of exit circuits, since that's the only hop that data is sent to and received from.
+        CongestionControl.Params congestionControlParams = port != -1 && !reserve ? CongestionControl.Params.fromConsensus(clientState.microdescConsensus) : null;
+        extended = congestionControlParams != null && thirdNode instanceof RouterMicrodesc exitMicrodesc ? circuit.extend2(exitMicrodesc, congestionControlParams)
+                : circuit.extend2(thirdNode);
+        if (!extended) return BUILD_FAILED;
+        if (reserve) {
+            // Extend the circuit.
+            extended = circuit.extend2(lastNode);
+            if (!extended) return BUILD_FAILED;
+        }
+        return BUILD_SUCCESSFUL;
     }
 
     public int createDefaultCircuit(int port, CanExtendTo lastNode) {
@@ -131,101 +239,307 @@ public class CircuitManager {
         return createDefaultCircuit(port, null, false);
     }
 
+    public Circuit getCircuit(int circuitId) {
+        // Acquire the lock.
+        circuitsLock.lock();
+        try {
+            // Get the circuit from the hashmap.
+            return circuitHashMap.get(circuitId);
+        }
+        finally {
+            // Release the lock.
+            circuitsLock.unlock();
+        }
+    }
+
+    public void startCircuitPool(int circuitsPerPort, int... ports) {
+        // Start building exit circuits in the background, so that connecting doesn't have to wait for a whole circuit to be built.
+        circuitPool = new CircuitPool(this, circuitsPerPort, ports);
+        circuitPool.start();
+    }
+
+    public void stopCircuitPool() {
+        if (circuitPool != null) circuitPool.shutdown();
+        circuitPool = null;
+    }
+
+    private int reuseExitCircuit(int port, Circuit excluded) {
+        long now = Instant.now().getEpochSecond();
+        ArrayList<Circuit> retired = new ArrayList<>();
+        ExitCircuit found = null;
+        int foundStreams = MAX_STREAMS_PER_CIRCUIT;
+        // Acquire the lock.
+        exitCircuitsLock.lock();
+        try {
+            Iterator<ExitCircuit> iterator = exitCircuits.iterator();
+            while (iterator.hasNext()) {
+                ExitCircuit exitCircuit = iterator.next();
+                // Circuits that were closed or have been in use for too long don't get any new streams.
+                if (!exitCircuit.circuit().isConnected() || now - exitCircuit.firstUsed() >= MAX_CIRCUIT_DIRTINESS_SECONDS) {
+                    iterator.remove();
+                    retired.add(exitCircuit.circuit());
+                    continue;
+                }
+                // Prefer the circuit with the least streams on it, out of the ones whose exit allows the port.
+                int streams = exitCircuit.circuit().getStreamCount();
+                if (streams < foundStreams && exitCircuit.circuit() != excluded && exitCircuit.circuit().allowsExitTo(port)) {
+                    found = exitCircuit;
+                    foundStreams = streams;
+                }
+            }
+        }
+        finally {
+            // Release the lock.
+            exitCircuitsLock.unlock();
+        }
+        // The retired circuits are destroyed once their last stream is closed (right away if they have none), since there's no point in keeping them open.
+        retired.forEach(circuit -> circuit.retire(() -> destroyCircuit(circuit)));
+        return found == null ? 0 : found.circuitId();
+    }
+
+    private int raceExitCircuits(int port, int builds) {
+        // Build several circuits at the same time, and use whichever one finishes first.
+        BuildRace race = new BuildRace();
+        ReentrantLock raceLock = new ReentrantLock();
+        Condition raceChanged = raceLock.newCondition();
+        // [0] is the id of the winning circuit, [1] is the number of builds that have finished (successfully or not).
+        int[] state = new int[2];
+        for (int i = 0; i < builds; i++) {
+            Threads.start(clientState.virtualThreads, "circuit-race-" + port + "-" + i, () -> {
+                int circuitId = 0;
+                boolean won = false;
+                try {
+                    circuitId = createDefaultCircuit(port, null, false, race);
+                } catch (RuntimeException ignored) {
+                    // The build failed, which is fine as long as one of the others succeeds.
+                } finally {
+                    // This has to happen even if the build thread dies with an Error, or the caller would be left waiting for it forever.
+                    raceLock.lock();
+                    try {
+                        if (circuitId != 0 && state[0] == 0) {
+                            state[0] = circuitId;
+                            won = true;
+                        }
+                        state[1]++;
+                        raceChanged.signalAll();
+                    } finally {
+                        raceLock.unlock();
+                    }
+                }
+                if (circuitId == 0 || won) return;
+                // The circuit lost the race, but it can still be used for a later connection if the pool takes it.
+                // Otherwise it's destroyed, and its id is given up as well.
+                Circuit circuit = getCircuit(circuitId);
+                CircuitPool pool = circuitPool;
+                if (circuit != null && (pool == null || !pool.offer(port, circuitId, circuit))) destroyCircuit(circuit);
+            });
+        }
+        raceLock.lock();
+        try {
+            while (state[0] == 0 && state[1] < builds)
+                raceChanged.awaitUninterruptibly();
+            // If we weren't able to build any circuit, throw an exception.
+            if (state[0] == 0) throw new RuntimeException("Failed to build circuit.");
+            return state[0];
+        } finally {
+            raceLock.unlock();
+        }
+    }
+
+    public int getExitCircuit(int port) {
+        return getExitCircuit(port, ConnectOptions.DEFAULT);
+    }
+
+    public int getExitCircuit(int port, ConnectOptions connectOptions) {
+        // Attach the connection to an open circuit if there's one that can take it.
+        int circuitId = reuseExitCircuit(port, null);
+        if (circuitId != 0) return circuitId;
+        // Otherwise, take a ready circuit from the pool if there is one.
+        CircuitPool pool = circuitPool;
+        circuitId = pool == null ? 0 : pool.take(port);
+        // Otherwise, build a new one (or race a few builds against each other, if asked to).
+        int builds = Math.min(connectOptions.racedBuilds(), MAX_RACED_BUILDS);
+        if (circuitId == 0) circuitId = builds > 1 ? raceExitCircuits(port, builds) : createDefaultCircuit(port);
+        // Remember the circuit, so that later connections can share it.
+        trackExitCircuit(circuitId);
+        // Return the circuit id.
+        return circuitId;
+    }
+
+    private void trackExitCircuit(int circuitId) {
+        Circuit circuit = getCircuit(circuitId);
+        exitCircuitsLock.lock();
+        exitCircuits.add(new ExitCircuit(circuitId, circuit, Instant.now().getEpochSecond()));
+        exitCircuitsLock.unlock();
+    }
+
+    private int getSecondExitCircuit(int port, Circuit first) {
+        // Only circuits that are already built are used for a second attempt, since building one would take longer than just waiting.
+        int circuitId = reuseExitCircuit(port, first);
+        if (circuitId != 0) return circuitId;
+        CircuitPool pool = circuitPool;
+        circuitId = pool == null ? 0 : pool.take(port);
+        if (circuitId != 0) trackExitCircuit(circuitId);
+        return circuitId;
+    }
+
     public Directory createDirectoryCircuit(RouterMicrodesc directoryMicrodesc) {
         // Build a circuit to a directory in the network.
         int circuitId = createDefaultCircuit(-1, directoryMicrodesc);
-        // Acquire the lock.
-        circuitsLock.lock();
         // Get the circuit from the hashmap.
-        Circuit circuit = circuitHashMap.get(circuitId);
-        // Release the lock.
-        circuitsLock.unlock();
+        Circuit circuit = getCircuit(circuitId);
         // Return a new directory instance.
-        return new Directory(clientState.microdescConsensus, directoryMicrodesc, circuit);
+        return new Directory(clientState.microdescConsensus, directoryMicrodesc, circuit, clientState.virtualThreads);
     }
 
-    public ConnectionInfo connectWithCircuit(int circuitId, String host, int port) {
-        // Acquire the circuits lock to allow multithreading activity.
-        circuitsLock.lock();
-        // Attempt to get the circuit from the hashmap.
-        Circuit circuit;
-        if (circuitHashMap.containsKey(circuitId))
-            circuit = circuitHashMap.get(circuitId);
-        else throw new RuntimeException("Attempted to get a non-existent circuit.");
-        // Attempt to open a stream to the target.
-        short streamId = 0;
+    private short reserveStreamId(int circuitId) {
+        short streamId;
         // Acquire the streams lock.
         streamsLock.lock();
         try {
-            while (streamId == 0) {
+            // Find a stream id that isn't used by a live connection on this circuit, and isn't currently being opened by someone else.
+            while (true) {
                 streamId = (short) random.nextInt();
-                if (!connectionInfoHashMap.containsKey(longFromCircuitAndStream(circuitId, streamId)))
+                if (streamId == 0) continue;
+                long circuitStreamId = longFromCircuitAndStream(circuitId, streamId);
+                ConnectionInfo connectionInfo = connectionInfoHashMap.get(circuitStreamId);
+                if ((connectionInfo == null || !connectionInfo.isConnected()) && !reservedStreams.contains(circuitStreamId))
                     break;
-                else {
-                    ConnectionInfo connectionInfo = connectionInfoHashMap.get(longFromCircuitAndStream(circuitId, streamId));
-                    if (connectionInfo == null || !connectionInfo.isConnected()) break;
-                }
             }
-            int streamStatus = circuit.openStream(streamId, host, port);
-            // Get long representation of circuit and stream.
-            long circuitStreamId = longFromCircuitAndStream(circuitId, streamId);
-            ConnectionInfo connectionInfo = new ConnectionInfo(new ConnectionIO(circuit, streamId), (byte) streamStatus);
-            // Release the lock.
-            circuitsLock.unlock();
-            // If the connection failed, then return connectionInfo now.
-            if (!connectionInfo.isConnected())
-                return connectionInfo;
-            // Put connectionInfo in the connectionInfos hashmap.
-            connectionInfoHashMap.put(circuitStreamId, connectionInfo);
-            // Return connectionInfo.
-            return connectionInfo;
+            reservedStreams.add(longFromCircuitAndStream(circuitId, streamId));
+            return streamId;
         }
         finally {
             // Release the lock.
             streamsLock.unlock();
         }
-
     }
 
-    public ConnectionInfo connectHSWithCircuit(int circuitId, int port) {
-        // Acquire the circuits lock to allow multithreading activity.
-        circuitsLock.lock();
-        // Attempt to get the circuit from the hashmap.
-        Circuit circuit;
-        if (circuitHashMap.containsKey(circuitId))
-            circuit = circuitHashMap.get(circuitId);
-        else throw new RuntimeException("Attempted to get a non-existent circuit.");
-        // Attempt to open a stream to the target port.
-        short streamId = 0;
+    private ConnectionInfo registerConnection(Circuit circuit, short streamId, int streamStatus) {
+        // Get long representation of circuit and stream.
+        long circuitStreamId = longFromCircuitAndStream(circuit.getCircuitId(), streamId);
+        ConnectionInfo connectionInfo = new ConnectionInfo(new ConnectionIO(circuit, streamId, clientState.virtualThreads), (byte) streamStatus);
         // Acquire the streams lock.
         streamsLock.lock();
-        try {
-            while (streamId == 0) {
-                streamId = (short) random.nextInt();
-                if (!connectionInfoHashMap.containsKey(longFromCircuitAndStream(circuitId, streamId)))
-                    break;
-                else {
-                    ConnectionInfo connectionInfo = connectionInfoHashMap.get(longFromCircuitAndStream(circuitId, streamId));
-                    if (connectionInfo == null || !connectionInfo.isConnected()) break;
-                }
-            }
-            int streamStatus = circuit.openHSStream(streamId, port);
-            // Get long representation of circuit and stream.
-            long circuitStreamId = longFromCircuitAndStream(circuitId, streamId);
-            ConnectionInfo connectionInfo = new ConnectionInfo(new ConnectionIO(circuit, streamId), (byte) streamStatus);
-            // Release the lock.
-            circuitsLock.unlock();
-            // If the connection failed, then return connectionInfo now.
-            if (!connectionInfo.isConnected())
-                return connectionInfo;
-            // Put connectionInfo in the connectionInfos hashmap.
+        reservedStreams.remove(circuitStreamId);
+        // Put connectionInfo in the connectionInfos hashmap, unless the connection failed.
+        if (connectionInfo.isConnected())
             connectionInfoHashMap.put(circuitStreamId, connectionInfo);
-            // Return connectionInfo.
-            return connectionInfo;
-        } finally {
-            // Release the lock.
-            streamsLock.unlock();
+        // Release the lock.
+        streamsLock.unlock();
+        // Return connectionInfo.
+        return connectionInfo;
+    }
+
+    public ConnectionInfo connectWithCircuit(int circuitId, String host, int port) {
+        // Attempt to get the circuit from the hashmap.
+        Circuit circuit = getCircuit(circuitId);
+        if (circuit == null) throw new RuntimeException("Attempted to get a non-existent circuit.");
+        // Attempt to open a stream to the target, without holding any lock while waiting for the exit to connect.
+        // The connect time is recorded here as well, since most streams are opened this way and the happy eyeballs delay is based on them.
+        short streamId = reserveStreamId(circuit.getCircuitId());
+        CompletableFuture<Integer> attempt = beginStream(circuit, streamId, host, port);
+        return registerConnection(circuit, streamId, awaitStreamStatus(circuit, streamId, attempt, streamConnectDeadline()));
+    }
+
+    private void addConnectTime(long connectTimeMillis) {
+        connectTimesLock.lock();
+        recentConnectTimes.add(connectTimeMillis);
+        if (recentConnectTimes.size() > RECENT_CONNECT_TIMES) recentConnectTimes.poll();
+        connectTimesLock.unlock();
+    }
+
+    private long getHappyEyeballsDelayMillis() {
+        // Twice the median of the recent connect times, so that only exits that are unusually slow get a second attempt.
+        connectTimesLock.lock();
+        try {
+            if (recentConnectTimes.size() < RECENT_CONNECT_TIMES / 2) return DEFAULT_HAPPY_EYEBALLS_DELAY_MILLIS;
+            long[] sorted = recentConnectTimes.stream().mapToLong(Long::longValue).sorted().toArray();
+            return sorted[sorted.length / 2] * 2;
+        }
+        finally {
+            connectTimesLock.unlock();
+        }
+    }
+
+    private CompletableFuture<Integer> beginStream(Circuit circuit, short streamId, String host, int port) {
+        long start = System.nanoTime();
+        return circuit.beginStream(streamId, host, port).whenComplete((streamStatus, throwable) -> {
+            if (streamStatus != null && streamStatus == Circuit.STREAM_SUCCESSFUL) addConnectTime((System.nanoTime() - start) / 1_000_000);
+        });
+    }
+
+    private static long streamConnectDeadline() {
+        return System.nanoTime() + STREAM_CONNECT_TIMEOUT_MILLIS * 1_000_000;
+    }
+
+    private static int awaitStreamStatus(Circuit circuit, short streamId, CompletableFuture<Integer> attempt, long deadline) {
+        try {
+            return attempt.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // The exit never answered, so the stream is closed (which also completes the attempt as a failure).
+            circuit.closeStream(streamId, EndCommand.EndReason.REASON_TIMEOUT.getReason());
+            return Circuit.STREAM_FAILURE_UNKNOWN;
+        } catch (InterruptedException | ExecutionException e) {
+            return Circuit.STREAM_FAILURE_UNKNOWN;
+        }
+    }
+
+    public ConnectionInfo connectHappyEyeballs(int circuitId, String host, int port) {
+        // Attempt to get the circuit from the hashmap.
+        Circuit circuit = getCircuit(circuitId);
+        if (circuit == null) throw new RuntimeException("Attempted to get a non-existent circuit.");
+        // Send the BEGIN, and give the exit a while to answer.
+        long deadline = streamConnectDeadline();
+        short streamId = reserveStreamId(circuit.getCircuitId());
+        CompletableFuture<Integer> attempt = beginStream(circuit, streamId, host, port);
+        try {
+            int streamStatus = attempt.get(getHappyEyeballsDelayMillis(), TimeUnit.MILLISECONDS);
+            return registerConnection(circuit, streamId, streamStatus);
+        } catch (TimeoutException e) {
+            // The exit is taking too long, so the connection is attempted on another circuit as well.
+        } catch (InterruptedException | ExecutionException e) {
+            return registerConnection(circuit, streamId, Circuit.STREAM_FAILURE_UNKNOWN);
+        }
+        Circuit secondCircuit = getCircuit(getSecondExitCircuit(port, circuit));
+        // If there's no other circuit ready, then all we can do is keep waiting for the first one (until the deadline).
+        if (secondCircuit == null) return registerConnection(circuit, streamId, awaitStreamStatus(circuit, streamId, attempt, deadline));
+        short secondStreamId = reserveStreamId(secondCircuit.getCircuitId());
+        CompletableFuture<Integer> secondAttempt = beginStream(secondCircuit, secondStreamId, host, port);
+        // Wait for whichever attempt answers first. If it failed, then the other one is the only chance left.
+        try {
+            CompletableFuture.anyOf(attempt, secondAttempt).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException | InterruptedException | ExecutionException ignored) {
+            // Neither answered in time, so both are given up on below.
+        }
+        boolean firstWon = attempt.isDone() && awaitStreamStatus(circuit, streamId, attempt, deadline) == Circuit.STREAM_SUCCESSFUL;
+        boolean secondWon = !firstWon && secondAttempt.isDone() && awaitStreamStatus(secondCircuit, secondStreamId, secondAttempt, deadline) == Circuit.STREAM_SUCCESSFUL;
+        if (!firstWon && !secondWon) {
+            // Neither has connected yet, so whichever one is still pending gets the final say.
+            firstWon = !attempt.isDone() && awaitStreamStatus(circuit, streamId, attempt, deadline) == Circuit.STREAM_SUCCESSFUL;
+            secondWon = !firstWon && awaitStreamStatus(secondCircuit, secondStreamId, secondAttempt, deadline) == Circuit.STREAM_SUCCESSFUL;
         }
+        Circuit winner = secondWon ? secondCircuit : circuit;
+        short winnerStreamId = secondWon ? secondStreamId : streamId;
+        CompletableFuture<Integer> winnerAttempt = secondWon ? secondAttempt : attempt;
+        Circuit loser = secondWon ? circuit : secondCircuit;
+        short loserStreamId = secondWon ? streamId : secondStreamId;
+        CompletableFuture<Integer> loserAttempt = secondWon ? attempt : secondAttempt;
+        // The other stream is closed, unless the exit has already refused it.
+        if (!loserAttempt.isDone() || awaitStreamStatus(loser, loserStreamId, loserAttempt, deadline) == Circuit.STREAM_SUCCESSFUL)
+            loser.closeStream(loserStreamId, EndCommand.EndReason.REASON_DONE.getReason());
+        registerConnection(loser, loserStreamId, Circuit.STREAM_FAILURE_UNKNOWN);
+        return registerConnection(winner, winnerStreamId, awaitStreamStatus(winner, winnerStreamId, winnerAttempt, deadline));
+    }
+
+    public ConnectionInfo connectHSWithCircuit(int circuitId, int port) {
+        // Attempt to get the circuit from the hashmap.
+        Circuit circuit = getCircuit(circuitId);
+        if (circuit == null) throw new RuntimeException("Attempted to get a non-existent circuit.");
+        // Attempt to open a stream to the target port.
+        short streamId = reserveStreamId(circuit.getCircuitId());
+        int streamStatus = circuit.openHSStream(streamId, port);
+        return registerConnection(circuit, streamId, streamStatus);
     }
 
     HashMap<String, HiddenServiceDescriptor> hsDescHashmap = new HashMap<>();
@@ -243,12 +557,8 @@ public class CircuitManager {
         RouterMicrodesc hsDirMicrodesc = fetchDirectories.get(random.nextInt(fetchDirectories.size()));
         // Create a new circuit before extending to the HSDirectory.
         int circuitId = createDefaultCircuit(-1);
-        // Acquire the lock.
-        circuitsLock.lock();
         // Get the circuit that was created from the circuit hashmap.
-        Circuit circuit = circuitHashMap.get(circuitId);
-        // Release the lock.
-        circuitsLock.unlock();
+        Circuit circuit = getCircuit(circuitId);
         // Attempt to extend to the selected HSDirectory.
         HSDirectory hsDirectory = new HSDirectory(clientState.microdescConsensus, hsDirMicrodesc, circuit);
         // If we couldn't extend to the HSDirectory for whatever reason, we return null.
@@ -270,12 +580,8 @@ public class CircuitManager {
         RouterMicrodesc rendezvousPoint = getRandomRouterMicrodesc();
         // Build a circuit to the rendezvous point.
         int rendezvousCircuitId = createDefaultCircuit(-1, rendezvousPoint);
-        // Acquire the lock.
-        circuitsLock.lock();
         // Get the rendezvous circuit from the hashmap.
-        Circuit rendezvousCircuit = circuitHashMap.get(rendezvousCircuitId);
-        // Release the lock.
-        circuitsLock.unlock();
+        Circuit rendezvousCircuit = getCircuit(rendezvousCircuitId);
         // Attempt to do an EstablishRendezvous on the circuit and get the rendezvous cookie.
         byte[] rendezvousCookie = rendezvousCircuit.establishRendezvous();
         // If the rendezvous failed, return null.
@@ -289,12 +595,8 @@ public class CircuitManager {
         int circuitId = createDefaultCircuit(-1, introductionPoint, true);
         // If the circuitId is 0, then the circuit creation has failed.
         if (circuitId == 0) return null;
-        // Acquire the lock.
-        circuitsLock.lock();
         // Get the created circuit from the hashmap.
-        Circuit circuit = circuitHashMap.get(circuitId);
-        // Release the lock.
-        circuitsLock.unlock();
+        Circuit circuit = getCircuit(circuitId);
         // Attempt to send an introduce1 relay command through the introduction circuit.
         IntroduceAckCommand.IntroduceAckStatus introduceAckStatus = circuit.introduce1(introductionPoint, rendezvousInfo.rendezvousPoint(), rendezvousInfo.rendezvousCookie(), hiddenService);
         // Destroy the introduction circuit without terminating the guard.
@@ -304,23 +606,15 @@ public class CircuitManager {
     }
 
     public boolean finishRendezvous(int circuitId, IntroductionPoint introductionPoint, KeyPair keyPair) {
-        // Acquire the lock.
-        circuitsLock.lock();
         // Get the rendezvous circuit from the hashmap.
-        Circuit circuit = circuitHashMap.get(circuitId);
-        // Release the lock.
-        circuitsLock.unlock();
+        Circuit circuit = getCircuit(circuitId);
         // Attempt to complete the rendezvous with the hidden service and return whether it was successful.
         return circuit.rendezvous(keyPair, introductionPoint);
     }
 
     public void tearCircuit(int circuitId) {
-        // Acquire the lock.
-        circuitsLock.lock();
         // Get the circuit from the hashmap.
-        Circuit circuit = circuitHashMap.get(circuitId);
-        // Release the lock.
-        circuitsLock.unlock();
+        Circuit circuit = getCircuit(circuitId);
         // If the circuit is null, return.
         if (circuit == null) return;
         // Destroy the circuit without terminating the guard.
@@ -0,0 +1,194 @@
+package snowy.autumn.tor.client;
+
+import snowy.autumn.tor.circuit.Circuit;
+import snowy.autumn.tor.utils.Threads;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class CircuitPool {
+
+    public static final int DEFAULT_CIRCUITS_PER_PORT = 2;
+    public static final int[] DEFAULT_PORTS = {80, 443};
+    // Circuits that were built but never used are dropped after this long, so that the pool doesn't hold on to the same paths forever.
+    private static final long MAX_IDLE_SECONDS = 30 * 60;
+    // Ports that haven't been asked for in this long stop being built for (the default ports are always kept).
+    private static final long PREDICTED_PORT_LIFETIME_SECONDS = 60 * 60;
+    private static final long PRUNE_INTERVAL_SECONDS = 60;
+    private static final long RETRY_DELAY_SECONDS = 5;
+
+    private record PooledCircuit(int circuitId, Circuit circuit, long builtAt) {}
+
+    private final CircuitManager circuitManager;
+    private final int circuitsPerPort;
+    private final int[] defaultPorts;
+    private final HashMap<Integer, ArrayDeque<PooledCircuit>> pool = new HashMap<>();
+    private final HashMap<Integer, Long> lastRequested = new HashMap<>();
+    private final ReentrantLock poolLock = new ReentrantLock();
+    private final Condition poolChanged = poolLock.newCondition();
+    private boolean running = false;
+
+    public CircuitPool(CircuitManager circuitManager, int circuitsPerPort, int... defaultPorts) {
+        this.circuitManager = circuitManager;
+        this.circuitsPerPort = circuitsPerPort;
+        this.defaultPorts = defaultPorts;
+        for (int port : defaultPorts)
+            pool.put(port, new ArrayDeque<>());
+    }
+
+    public void start() {
+        poolLock.lock();
+        try {
+            if (running) return;
+            running = true;
+        } finally {
+            poolLock.unlock();
+        }
+        Threads.start(circuitManager.clientState.virtualThreads, "circuit-pool", this::run);
+    }
+
+    public void shutdown() {
+        ArrayList<PooledCircuit> remaining = new ArrayList<>();
+        poolLock.lock();
+        running = false;
+        pool.values().forEach(remaining::addAll);
+        pool.clear();
+        poolChanged.signalAll();
+        poolLock.unlock();
+        for (PooledCircuit pooledCircuit : remaining)
+            circuitManager.destroyCircuit(pooledCircuit.circuit());
+    }
+
+    private boolean isUsable(PooledCircuit pooledCircuit, long now) {
+        return pooledCircuit.circuit().isConnected() && now - pooledCircuit.builtAt() < MAX_IDLE_SECONDS;
+    }
+
+    public int take(int port) {
+        // Returns the id of a ready circuit whose exit allows the given port, or 0 if there is none.
+        // Asking for a port also makes the pool start building circuits for it.
+        ArrayList<PooledCircuit> discarded = new ArrayList<>();
+        PooledCircuit found = null;
+        long now = Instant.now().getEpochSecond();
+        poolLock.lock();
+        try {
+            lastRequested.put(port, now);
+            ArrayDeque<PooledCircuit> circuits = pool.computeIfAbsent(port, key -> new ArrayDeque<>());
+            while (found == null && !circuits.isEmpty()) {
+                PooledCircuit pooledCircuit = circuits.poll();
+                if (isUsable(pooledCircuit, now)) found = pooledCircuit;
+                else discarded.add(pooledCircuit);
+            }
+            // A circuit that was built for a different port might still have an exit that allows this one.
+            for (ArrayDeque<PooledCircuit> others : pool.values()) {
+                if (found != null) break;
+                for (PooledCircuit pooledCircuit : others) {
+                    if (isUsable(pooledCircuit, now) && pooledCircuit.circuit().allowsExitTo(port)) {
+                        found = pooledCircuit;
+                        others.remove(pooledCircuit);
+                        break;
+                    }
+                }
+            }
+            poolChanged.signalAll();
+        } finally {
+            poolLock.unlock();
+        }
+        for (PooledCircuit pooledCircuit : discarded)
+            circuitManager.destroyCircuit(pooledCircuit.circuit());
+        return found == null ? 0 : found.circuitId();
+    }
+
+    public boolean offer(int port, int circuitId, Circuit circuit) {
+        // Adds a circuit that was built elsewhere (e.g. one that lost a race) to the pool, if there's room for it.
+        // Returns false if the pool didn't take the circuit, in which case it's up to the caller to destroy it.
+        poolLock.lock();
+        try {
+            if (!running || !circuit.isConnected()) return false;
+            ArrayDeque<PooledCircuit> circuits = pool.get(port);
+            if (circuits == null || circuits.size() >= circuitsPerPort) return false;
+            circuits.add(new PooledCircuit(circuitId, circuit, Instant.now().getEpochSecond()));
+            poolChanged.signalAll();
+            return true;
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    private ArrayList<PooledCircuit> prune(long now) {
+        // The lock must be held by the caller.
+        ArrayList<PooledCircuit> discarded = new ArrayList<>();
+        for (ArrayDeque<PooledCircuit> circuits : pool.values()) {
+            circuits.removeIf(pooledCircuit -> {
+                if (isUsable(pooledCircuit, now)) return false;
+                discarded.add(pooledCircuit);
+                return true;
+            });
+        }
+        pool.keySet().removeIf(port -> {
+            for (int defaultPort : defaultPorts)
+                if (port == defaultPort) return false;
+            if (now - lastRequested.getOrDefault(port, 0L) < PREDICTED_PORT_LIFETIME_SECONDS) return false;
+            discarded.addAll(pool.get(port));
+            lastRequested.remove(port);
+            return true;
+        });
+        return discarded;
+    }
+
+    private int nextDeficientPort() {
+        // The lock must be held by the caller.
+        int port = -1;
+        int smallest = circuitsPerPort;
+        for (var entry : pool.entrySet()) {
+            if (entry.getValue().size() < smallest) {
+                smallest = entry.getValue().size();
+                port = entry.getKey();
+            }
+        }
+        return port;
+    }
+
+    private void run() {
+        poolLock.lock();
+        try {
+            while (running) {
+                ArrayList<PooledCircuit> discarded = prune(Instant.now().getEpochSecond());
+                int port = nextDeficientPort();
+                // Circuits are built and destroyed without holding the lock, so that taking from the pool never has to wait for the network.
+                poolLock.unlock();
+                int circuitId = 0;
+                try {
+                    for (PooledCircuit pooledCircuit : discarded)
+                        circuitManager.destroyCircuit(pooledCircuit.circuit());
+                    if (port != -1) circuitId = circuitManager.createDefaultCircuit(port);
+                } catch (RuntimeException ignored) {
+                    // The build failed, so we'll just try again later.
+                } finally {
+                    poolLock.lock();
+                }
+                if (port == -1) {
+                    poolChanged.await(PRUNE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+                    continue;
+                }
+                Circuit circuit = circuitManager.getCircuit(circuitId);
+                if (circuit == null || !circuit.isConnected()) {
+                    poolChanged.await(RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+                    continue;
+                }
+                ArrayDeque<PooledCircuit> circuits = pool.get(port);
+                if (!running || circuits == null) circuitManager.destroyCircuit(circuit);
+                else circuits.add(new PooledCircuit(circuitId, circuit, Instant.now().getEpochSecond()));
+            }
+        } catch (InterruptedException e) {
+            running = false;
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+}
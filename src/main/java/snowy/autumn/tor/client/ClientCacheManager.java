@@ -3,6 +3,7 @@ package snowy.autumn.tor.client;
 import snowy.autumn.tor.directory.DirectoryKeys;
 import snowy.autumn.tor.directory.documents.DirectoryKeyNetDoc;
 import snowy.autumn.tor.directory.documents.MicrodescConsensus;
+import snowy.autumn.tor.directory.documents.MicrodescStore;
 import snowy.autumn.tor.directory.documents.RouterMicrodesc;
 import snowy.autumn.tor.relay.Guard;
 import snowy.autumn.tor.vanguards.VanguardsLayer;
@@ -17,8 +18,10 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
@@ -208,9 +211,12 @@ public class ClientCacheManager {
         return new RouterMicrodesc(flags, host, port, fingerprint, ed25519Id, ntorOnionKey, microdescHash, ipv6host, ipv6port, family, ipv4ExitPolicy);
     }
 
-    public void storeClientData(DirectoryKeys authorityKeys, MicrodescConsensus microdescConsensus, VanguardsLite vanguardsLite) {
+    public void storeClientData(TorClient.ClientState clientState) {
         // If the cache file has not been initialised, then the client is probably in ephemeral mode.
         if (cacheFilePath == null) return;
+        DirectoryKeys authorityKeys = clientState.authorityKeys;
+        MicrodescConsensus microdescConsensus = clientState.microdescConsensus;
+        VanguardsLite vanguardsLite = clientState.vanguardsLite;
         try {
             // Create an output stream and clear the cache file.
             CacheFileOutputStream outputStream = new CacheFileOutputStream(cacheFilePath);
@@ -292,6 +298,58 @@ public class ClientCacheManager {
                 outputStream.writeLong(vanguard.getRotate());
             }
 
+            // Serialise the raw consensus document, so that the next consensus could be fetched as a diff from it.
+            // This is stored last, so that cache files that were written without it could still be loaded.
+            byte[] document = microdescConsensus.getDocument();
+            byte[] digestAsSigned = microdescConsensus.getDigestAsSigned();
+            if (document != null && digestAsSigned != null) {
+                // Store a marker byte to indicate that the document is present.
+                outputStream.write(1);
+                // Store the length of the document (int) and the document itself.
+                outputStream.writeInt(document.length);
+                outputStream.write(document);
+                // Store the document's sha3-256 digest (32 bytes).
+                outputStream.write(digestAsSigned);
+            }
+            else outputStream.write(0);
+
+            // Serialise the microdescriptors in the store that aren't listed in the consensus (the listed ones were already stored above).
+            List<MicrodescStore.StoredMicrodesc> unlisted = clientState.microdescStore.getUnlisted(microdescConsensus);
+            // Store the number of unlisted microdescriptors.
+            outputStream.writeInt(unlisted.size());
+            for (MicrodescStore.StoredMicrodesc stored : unlisted) {
+                // Store the microdescriptor.
+                storeRouterMicrodesc(stored.microdesc(), outputStream);
+                // Store the last time it was listed (long).
+                outputStream.writeLong(stored.lastListed());
+            }
+
+            // Serialise the relays' bandwidths, in the same order as the microdescriptors were stored in.
+            outputStream.writeInt(routerMicrodescs.size());
+            for (RouterMicrodesc routerMicrodesc : routerMicrodescs) {
+                // Store the relay's bandwidth (int).
+                outputStream.writeInt(routerMicrodesc.getBandwidth());
+            }
+            // Store the bandwidth weights.
+            HashMap<String, Integer> bandwidthWeights = microdescConsensus.getBandwidthWeights();
+            // Store the number of bandwidth weights (short).
+            outputStream.writeShort((short) bandwidthWeights.size());
+            for (Map.Entry<String, Integer> entry : bandwidthWeights.entrySet()) {
+                // Store the weight name.
+                outputStream.writeShortString(entry.getKey());
+                // Store the weight value.
+                outputStream.writeInt(entry.getValue());
+            }
+
+            // Serialise the circuit build times, so that the build timeout doesn't have to be learned from scratch every time.
+            int[] buildTimes = clientState.circuitBuildTimes.getSamples();
+            // Store the number of build times (short).
+            outputStream.writeShort((short) buildTimes.length);
+            for (int buildTime : buildTimes) {
+                // Store the build time in milliseconds (int), which is negative for builds that were abandoned at that timeout.
+                outputStream.writeInt(buildTime);
+            }
+
             // Finally, close the cache file output stream.
             outputStream.close();
             logger.info("Client data written to cache file.");
@@ -350,12 +408,16 @@ public class ClientCacheManager {
             for (int i = 0; i < microdescriptors; i++) {
                 routerMicrodescs.add(loadRouterMicrodesc(inputStream));
             }
+            // Keep the order in which the microdescriptors were stored, since the consensus shuffles them.
+            ArrayList<RouterMicrodesc> storedOrder = new ArrayList<>(routerMicrodescs);
             // Store the microdesc consensus data in clientState.
             clientState.microdescConsensus = new MicrodescConsensus(validAfter, freshUntil, validUntil, previousSRV, currentSRV, parameters, routerMicrodescs);
+            // Everything listed in the consensus goes into the microdesc store as well.
+            clientState.microdescStore.addAll(clientState.microdescConsensus);
 
             // Load the serialised VanguardsLite instance.
             // Create a new VanguardsLite instance in clientState.
-            clientState.vanguardsLite = new VanguardsLite(clientState.microdescConsensus);
+            clientState.vanguardsLite = new VanguardsLite(clientState.microdescConsensus, clientState.virtualThreads);
             // Load the serialised guard system data.
             ArrayList<RouterMicrodesc> sampled = new ArrayList<>();
             // Read the number of sampled relays.
@@ -412,6 +474,57 @@ public class ClientCacheManager {
                 // Update the vanguard at the current index in the second layer.
                 clientState.vanguardsLite.getSecondLayer().setVanguard(i, vanguard);
             }
+            // Load the raw consensus document if it was stored (older cache files end right after the vanguards, in which case read() returns -1).
+            if (inputStream.read() == 1) {
+                // Read the length of the document and the document itself.
+                byte[] document = inputStream.readNBytes(inputStream.readInt());
+                // Read the document's sha3-256 digest.
+                byte[] digestAsSigned = inputStream.readNBytes(32);
+                clientState.microdescConsensus.setDocument(document, digestAsSigned);
+            }
+            // Load the unlisted microdescriptors in the store, if they were stored.
+            byte[] unlistedCount = inputStream.readNBytes(4);
+            if (unlistedCount.length == 4) {
+                int unlisted = ByteBuffer.wrap(unlistedCount).getInt();
+                for (int i = 0; i < unlisted; i++) {
+                    // Read the microdescriptor.
+                    RouterMicrodesc microdesc = loadRouterMicrodesc(inputStream);
+                    // Read the last time it was listed.
+                    clientState.microdescStore.add(microdesc, inputStream.readLong());
+                }
+                clientState.microdescStore.prune(Instant.now().getEpochSecond());
+            }
+            // Load the relays' bandwidths and the bandwidth weights, if they were stored.
+            byte[] bandwidthCount = inputStream.readNBytes(4);
+            if (bandwidthCount.length == 4) {
+                int bandwidths = ByteBuffer.wrap(bandwidthCount).getInt();
+                for (int i = 0; i < bandwidths; i++) {
+                    // Read the relay's bandwidth.
+                    int bandwidth = inputStream.readInt();
+                    if (i < storedOrder.size()) storedOrder.get(i).setBandwidth(bandwidth);
+                }
+                // Read the number of bandwidth weights.
+                int weightsStored = inputStream.readShort();
+                HashMap<String, Integer> bandwidthWeights = new HashMap<>(weightsStored);
+                for (int i = 0; i < weightsStored; i++) {
+                    // Read the weight name and value.
+                    String key = inputStream.readShortString();
+                    bandwidthWeights.put(key, inputStream.readInt());
+                }
+                clientState.microdescConsensus.setBandwidthWeights(bandwidthWeights);
+                // The weighted selection tables depend on the bandwidths, so the consensus' index has to be rebuilt.
+                clientState.microdescConsensus.postUpdate();
+            }
+            // Load the circuit build times, if they were stored.
+            byte[] buildTimeCount = inputStream.readNBytes(2);
+            if (buildTimeCount.length == 2) {
+                int[] buildTimes = new int[Short.toUnsignedInt(ByteBuffer.wrap(buildTimeCount).getShort())];
+                for (int i = 0; i < buildTimes.length; i++) {
+                    // Read the build time.
+                    buildTimes[i] = inputStream.readInt();
+                }
+                clientState.circuitBuildTimes.setSamples(buildTimes);
+            }
             // Make sure that we don't just lose routers when they get unlisted without replacing them.
             clientState.vanguardsLite.getGuardSystem().initSampled();
             // Make sure to rotate old vanguards and replace null vanguards with new ones.
@@ -0,0 +1,18 @@
+package snowy.autumn.tor.client;
+
+public record ConnectOptions(int racedBuilds, boolean happyEyeballs) {
+
+    // By default, a single circuit is built whenever there isn't one ready to use, and a single stream is opened on it.
+    public static final ConnectOptions DEFAULT = new ConnectOptions(1, false);
+
+    public ConnectOptions withRacedBuilds(int racedBuilds) {
+        // racedBuilds is the number of circuits that are built at the same time when a new one is needed, where only the first one to finish is used.
+        return new ConnectOptions(racedBuilds, happyEyeballs);
+    }
+
+    public ConnectOptions withHappyEyeballs(boolean happyEyeballs) {
+        // If the exit takes too long to connect, then the same connection is attempted on another ready circuit, and whichever connects first is used.
+        return new ConnectOptions(racedBuilds, happyEyeballs);
+    }
+
+}
@@ -4,20 +4,28 @@ import snowy.autumn.tor.cell.cells.relay.RelayCell;
 import snowy.autumn.tor.cell.cells.relay.commands.DataCommand;
 import snowy.autumn.tor.cell.cells.relay.commands.EndCommand;
 import snowy.autumn.tor.circuit.Circuit;
+import snowy.autumn.tor.utils.Threads;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class ConnectionIO {
 
-    boolean connected;
+    // Cleared by whichever thread sees the stream end, which for asynchronous reads is one of the callback threads.
+    volatile boolean connected;
     ReentrantLock writeLock = new ReentrantLock();
     ReentrantLock readLock = new ReentrantLock();
     Circuit circuit;
     short streamId;
+    // Asynchronous reads are completed on this instead of the link's event loop, since whatever is chained onto them might block (e.g. a write waiting for the window).
+    Executor callbacks;
 
-    public ConnectionIO(Circuit circuit, short streamId) {
+    public ConnectionIO(Circuit circuit, short streamId, boolean virtualThreads) {
         this.circuit = circuit;
         this.streamId = streamId;
+        this.callbacks = Threads.callbacks(virtualThreads);
         this.connected = true;
     }
 
@@ -32,24 +40,55 @@ public class ConnectionIO {
         }
     }
 
-    public byte[] read() {
-        if (!(connected = connected && circuit.isConnected())) return null;
-        readLock.lock();
-        RelayCell relayCell = circuit.waitForRelayCell(streamId, RelayCell.DATA, RelayCell.END);
+    private byte[] handleRead(RelayCell relayCell) {
         byte[] data = null;
         if (relayCell instanceof DataCommand dataCommand)
             data = dataCommand.getData();
-        else if (relayCell instanceof EndCommand endCommand)
+        else if (relayCell instanceof EndCommand)
             connected = false;
+        return data;
+    }
 
+    public byte[] read() {
+        if (!(connected = connected && circuit.isConnected())) return null;
+        readLock.lock();
         try {
-            return data;
+            return handleRead(circuit.waitForRelayCell(streamId, RelayCell.DATA, RelayCell.END));
         }
         finally {
             readLock.unlock();
         }
     }
 
+    public CompletableFuture<byte[]> readAsync() {
+        // Completes with null once the stream has been closed, just like read.
+        // Pending reads are completed in the order in which they were made, but shouldn't be mixed with blocking reads on the same stream.
+        if (!(connected = connected && circuit.isConnected())) return CompletableFuture.completedFuture(null);
+        CompletableFuture<RelayCell> cell = circuit.waitForRelayCellAsync(streamId, RelayCell.DATA, RelayCell.END);
+        // Data that's already queued is returned right away, and only reads that have to wait for the event loop are handed off to a callback thread.
+        if (cell.isDone()) return cell.thenApply(this::handleRead);
+        return cell.thenApplyAsync(this::handleRead, callbacks);
+    }
+
+    public void onData(Consumer<byte[]> handler) {
+        // Calls the handler with every piece of data that arrives on the stream, and with null once the stream is closed.
+        // The handler runs on a callback thread (or the caller's, for data that's already queued), never on the link's event loop, so it's free to block or write.
+        while (true) {
+            CompletableFuture<byte[]> future = readAsync();
+            if (!future.isDone()) {
+                future.thenAccept(data -> {
+                    handler.accept(data);
+                    if (data != null) onData(handler);
+                });
+                return;
+            }
+            // Data that's already queued is handled in a loop, rather than recursively.
+            byte[] data = future.join();
+            handler.accept(data);
+            if (data == null) return;
+        }
+    }
+
     public byte getConnected() {
         return circuit.getConnected();
     }
@@ -60,7 +99,7 @@ public class ConnectionIO {
 
     public void close() {
         connected = false;
-        circuit.sendRelayCell(new EndCommand(circuit.getCircuitId(), streamId, EndCommand.EndReason.REASON_DONE.getReason()));
+        circuit.closeStream(streamId, EndCommand.EndReason.REASON_DONE.getReason());
     }
 
 }
@@ -1,7 +1,9 @@
 package snowy.autumn.tor.client;
 
+import snowy.autumn.tor.circuit.CanExtendTo;
 import snowy.autumn.tor.directory.documents.MicrodescConsensus;
 import snowy.autumn.tor.directory.documents.RouterMicrodesc;
+import snowy.autumn.tor.directory.documents.WeightedRelays;
 import snowy.autumn.tor.relay.Guard;
 import snowy.autumn.tor.relay.RouterMicrodescList;
 
@@ -12,25 +14,39 @@ public class GuardSystem implements RouterMicrodescList {
     int sampleSize = 20;
     int primarySize = 2;
 
-    MicrodescConsensus microdescConsensus;
-    ArrayList<RouterMicrodesc> sampled = new ArrayList<>();
+    // These are replaced as a whole whenever a new consensus is published, so that other threads always see a consistent set.
+    volatile MicrodescConsensus microdescConsensus;
+    volatile ArrayList<RouterMicrodesc> sampled = new ArrayList<>();
     // Note: Filtered here means usable_filtered.
-    ArrayList<RouterMicrodesc> filtered = new ArrayList<>();
-    ArrayList<Guard.GuardInfo> primary = new ArrayList<>();
+    volatile ArrayList<RouterMicrodesc> filtered = new ArrayList<>();
+    volatile ArrayList<Guard.GuardInfo> primary = new ArrayList<>();
 
     Random random = new Random();
+    // Whether the links to the guards are read by virtual threads instead of the shared event loops.
+    final boolean virtualThreads;
 
-    public GuardSystem(MicrodescConsensus microdescConsensus) {
+    public GuardSystem(MicrodescConsensus microdescConsensus, boolean virtualThreads) {
         primary.ensureCapacity(primarySize);
         this.microdescConsensus = microdescConsensus;
+        this.virtualThreads = virtualThreads;
         initSampled();
     }
 
+    public GuardSystem(MicrodescConsensus microdescConsensus) {
+        this(microdescConsensus, false);
+    }
+
     public void initSampled() {
-        ArrayList<RouterMicrodesc> guardMicrodescs = new ArrayList<>(microdescConsensus.getAllWithFlags(RouterMicrodesc.Flags.GUARD, RouterMicrodesc.Flags.V2DIR));
-        // Todo: Replace with the appropriate weighted shuffling algorithm.
-        Collections.shuffle(guardMicrodescs);
-        sampled.addAll(guardMicrodescs.stream().limit(Math.max(0, guardMicrodescs.size() - sampleSize)).toList());
+        // Top the sample up to its full size, picking guards in proportion to their weighted bandwidth.
+        WeightedRelays guards = microdescConsensus.getWeightedGuards();
+        ArrayList<RouterMicrodesc> sampled = new ArrayList<>(this.sampled);
+        while (sampled.size() < sampleSize) {
+            RouterMicrodesc guard = guards.pick(random, sampled.toArray(CanExtendTo[]::new));
+            // There aren't enough guards left to fill the sample.
+            if (guard == null) break;
+            sampled.add(guard);
+        }
+        this.sampled = sampled;
     }
 
     private boolean primaryFull() {
@@ -47,7 +63,7 @@ public class GuardSystem implements RouterMicrodescList {
             catch (Exception ignored) {}
             return null;
         }
-        guard.startCellListener();
+        guard.startCellListener(virtualThreads);
         return new Guard.GuardInfo(guard, routerMicrodesc);
     }
     private Guard.GuardInfo promoteNextGuard() {
@@ -89,6 +105,33 @@ public class GuardSystem implements RouterMicrodescList {
         return promoteNextGuard();
     }
 
+    private static ArrayList<RouterMicrodesc> relist(ArrayList<RouterMicrodesc> relays, MicrodescConsensus microdescConsensus) {
+        // Relays are matched by their identity, since a relay's microdesc hash changes whenever it rotates its onion keys.
+        ArrayList<RouterMicrodesc> listed = new ArrayList<>(relays.size());
+        for (RouterMicrodesc relay : relays) {
+            RouterMicrodesc listedRelay = microdescConsensus.findWithFingerprint(relay.getFingerprint());
+            if (listedRelay != null) listed.add(listedRelay);
+        }
+        return listed;
+    }
+
+    public void updateConsensus(MicrodescConsensus microdescConsensus) {
+        ArrayList<RouterMicrodesc> sampled = relist(this.sampled, microdescConsensus);
+        ArrayList<RouterMicrodesc> filtered = relist(this.filtered, microdescConsensus);
+        ArrayList<Guard.GuardInfo> primary = new ArrayList<>(primarySize);
+        for (Guard.GuardInfo guardInfo : this.primary) {
+            RouterMicrodesc listedGuard = microdescConsensus.findWithFingerprint(guardInfo.guardMicrodesc().getFingerprint());
+            // Guards that are no longer listed aren't used for new circuits, but their connections are left alone for the circuits that are already using them.
+            if (listedGuard != null) primary.add(new Guard.GuardInfo(guardInfo.guard(), listedGuard));
+        }
+        this.microdescConsensus = microdescConsensus;
+        this.sampled = sampled;
+        this.filtered = filtered;
+        this.primary = primary;
+        // Replace the sampled guards that are no longer listed.
+        initSampled();
+    }
+
     public ArrayList<Guard.GuardInfo> getPrimary() {
         return primary;
     }
@@ -4,26 +4,38 @@ import snowy.autumn.tor.cell.cells.relay.commands.IntroduceAckCommand;
 import snowy.autumn.tor.directory.Directory;
 import snowy.autumn.tor.directory.DirectoryKeys;
 import snowy.autumn.tor.directory.documents.MicrodescConsensus;
+import snowy.autumn.tor.directory.documents.MicrodescStore;
 import snowy.autumn.tor.directory.documents.RouterMicrodesc;
 import snowy.autumn.tor.hs.HiddenService;
 import snowy.autumn.tor.hs.HiddenServiceDescriptor;
 import snowy.autumn.tor.hs.IntroductionPoint;
+import snowy.autumn.tor.utils.Threads;
+import snowy.autumn.tor.utils.Utils;
 import snowy.autumn.tor.vanguards.VanguardsLite;
 
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TorClient {
 
     public static class ClientState {
         public DirectoryKeys authorityKeys;
-        public MicrodescConsensus microdescConsensus;
+        // The consensus is swapped out by the consensus refresher while the client is running.
+        public volatile MicrodescConsensus microdescConsensus;
         public VanguardsLite vanguardsLite;
+        public MicrodescStore microdescStore;
+        public CircuitBuildTimes circuitBuildTimes;
         public CircuitManager circuitManager;
         public Random random;
+        // Whether the client's links and background work use virtual threads.
+        public boolean virtualThreads;
 
         public ClientState(DirectoryKeys authorityKeys, MicrodescConsensus microdescConsensus, VanguardsLite vanguardsLite) {
             this();
@@ -34,26 +46,51 @@ public class TorClient {
 
         public ClientState() {
             this.random = new Random();
+            this.microdescStore = new MicrodescStore();
+            this.circuitBuildTimes = new CircuitBuildTimes();
             this.circuitManager = new CircuitManager(this);
         }
 
     }
 
+    private static final int MIRROR_DIRECTORIES = 4;
+    private static final long MIRROR_CONNECT_TIMEOUT_NANOS = 10_000_000_000L;
+    private static final long CONSENSUS_REFRESH_RETRY_SECONDS = 60;
+
     Logger logger;
     ClientCacheManager cacheManager;
     ClientState clientState;
     boolean bootstrapped;
+    int circuitPoolSize = CircuitPool.DEFAULT_CIRCUITS_PER_PORT;
+    int[] circuitPoolPorts = CircuitPool.DEFAULT_PORTS;
+    final ReentrantLock refresherLock = new ReentrantLock();
+    final Condition refresherWakeup = refresherLock.newCondition();
+    boolean refresherRunning = false;
 
-    public TorClient(String cacheFilePath, boolean debug) {
+    public TorClient(String cacheFilePath, boolean debug, boolean virtualThreads) {
+        // In virtual thread mode every link gets its own virtual reader thread instead of being served by the shared event loops.
+        // All of the client's blocking waits use ReentrantLocks, so callers can also block on virtual threads without pinning a carrier.
         logger = new Logger(debug);
         cacheManager = new ClientCacheManager(cacheFilePath == null ? null : Path.of(cacheFilePath), logger);
         clientState = new ClientState();
+        clientState.virtualThreads = virtualThreads;
+    }
+
+    public TorClient(String cacheFilePath, boolean debug) {
+        this(cacheFilePath, debug, false);
     }
 
     public TorClient(String cacheFilePath) {
         this(cacheFilePath, false);
     }
 
+    public void configureCircuitPool(int circuitsPerPort, int... ports) {
+        // Must be called before the client is initialised. A size of 0 disables the pool, and every connection builds its own circuit.
+        // Ports that are connected to are added to the pool automatically, so the given ports are just the ones that are always kept ready.
+        this.circuitPoolSize = circuitsPerPort;
+        this.circuitPoolPorts = ports;
+    }
+
     private void handleAuthorityKeys(Directory directory) {
         if (clientState.authorityKeys == null)
             logger.info("No authority keys found. Fetching..");
@@ -64,7 +101,47 @@ public class TorClient {
         logger.info("Authority keys fetched.");
     }
 
-    private boolean fetchMicrodescConsensus(Directory directory) {
+    private ArrayList<Directory> openMirrors(MicrodescConsensus microdescConsensus, int count) {
+        // Mirrors are reached over one-hop circuits (just like the authorities), since they only serve public documents.
+        List<RouterMicrodesc> candidates = microdescConsensus.getAllWithFlags(RouterMicrodesc.Flags.V2DIR);
+        ArrayList<Directory> mirrors = new ArrayList<>();
+        if (candidates.isEmpty()) return mirrors;
+        ReentrantLock mirrorsLock = new ReentrantLock();
+        boolean[] timedOut = new boolean[1];
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            RouterMicrodesc candidate = candidates.get(clientState.random.nextInt(candidates.size()));
+            threads.add(Threads.start(clientState.virtualThreads, "directory-connect-" + candidate.getHost(), () -> {
+                Directory mirror = new Directory(candidate.getHost(), candidate.getPort(), clientState.virtualThreads);
+                boolean prepared;
+                try {
+                    prepared = mirror.prepareCircuit();
+                } catch (RuntimeException e) {
+                    prepared = false;
+                }
+                if (!prepared) return;
+                mirrorsLock.lock();
+                // Mirrors that only managed to connect after we've stopped waiting for them are of no use anymore.
+                if (timedOut[0]) mirror.destroyCircuit();
+                else mirrors.add(mirror);
+                mirrorsLock.unlock();
+            }));
+        }
+        long deadline = System.nanoTime() + MIRROR_CONNECT_TIMEOUT_NANOS;
+        try {
+            for (Thread thread : threads)
+                thread.join(Duration.ofNanos(Math.max(1, deadline - System.nanoTime())));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        mirrorsLock.lock();
+        timedOut[0] = true;
+        ArrayList<Directory> connected = new ArrayList<>(mirrors);
+        mirrorsLock.unlock();
+        return connected;
+    }
+
+    private boolean fetchMicrodescConsensus(Directory directory, boolean bootstrapping) {
         // Prepare the directory circuit.
         if (!directory.prepareCircuit()) {
             logger.error("Failed to connect to directory " + directory + ".");
@@ -77,26 +154,92 @@ public class TorClient {
 
         // Attempt to fetch a microdesc consensus.
         logger.info("Attempting to fetch a microdesc consensus from " + directory + ".");
-        clientState.microdescConsensus = directory.fetchMicrodescConsensus(clientState.authorityKeys);
-        if (clientState.microdescConsensus == null) {
+        // If there's a cached consensus, the directory is asked for a diff from it, which is a lot smaller than a whole consensus.
+        MicrodescConsensus microdescConsensus = directory.fetchMicrodescConsensus(clientState.authorityKeys, clientState.microdescConsensus);
+        if (microdescConsensus == null) {
             logger.error("Failed to fetch microdesc consensus.");
             return false;
         }
         logger.info("Fetched microdesc consensus.");
+        // Microdescriptors that we already have are resolved from the store instead of being fetched again.
+        int resolved = clientState.microdescStore.resolve(microdescConsensus);
+        logger.info("Resolved " + resolved + " out of " + microdescConsensus.getMicrodescs().size() + " microdescriptors locally.");
+
+        // On the first bootstrap, open a few more directory connections, so that the microdescriptors could be fetched in parallel.
+        // Later on the client has guards, and direct connections to random relays would bypass them. By then most microdescriptors are
+        // resolved from the store anyway, so the directory circuit that was passed in fetches the few that are missing on its own.
+        ArrayList<Directory> directories = bootstrapping ? openMirrors(microdescConsensus, MIRROR_DIRECTORIES) : new ArrayList<>();
+        directories.addFirst(directory);
 
         // Attempt to fetch all microdescriptors that are listed on the microdesc consensus.
-        logger.info("Attempting to fetch all microdescriptors from directory " + directory + ".");
-        if (!directory.fetchMicrodescriptors(clientState.microdescConsensus)) {
+        logger.info("Attempting to fetch all microdescriptors from " + directories.size() + " directories.");
+        boolean fetched = microdescConsensus.fetchMicrodescriptors(directories.toArray(Directory[]::new));
+        directories.forEach(Directory::destroyCircuit);
+        if (!fetched) {
             logger.error("Failed to fetch all microdescriptors.");
             return false;
         }
-
-        directory.destroyCircuit();
+        clientState.microdescStore.addAll(microdescConsensus);
+        clientState.microdescStore.prune(Utils.getCurrentTime().toEpochSecond());
+        // The old consensus is only replaced once the new one is complete, so that a failed attempt could still be retried as a diff.
+        clientState.microdescConsensus = microdescConsensus;
 
         logger.info("Microdescriptors fetched successfully.");
         return true;
     }
 
+    private long nextRefreshTime(MicrodescConsensus microdescConsensus) {
+        // Pick a random time within the first three quarters of the period between fresh-until and valid-until, so that clients don't all refresh at once.
+        long window = Math.max(1, (microdescConsensus.getValidUntil() - microdescConsensus.getFreshUntil()) * 3 / 4);
+        return microdescConsensus.getFreshUntil() + clientState.random.nextLong(window);
+    }
+
+    private boolean refreshConsensus() {
+        List<RouterMicrodesc> potentialDirectories = clientState.microdescConsensus.getAllWithFlags(RouterMicrodesc.Flags.V2DIR);
+        if (potentialDirectories.isEmpty()) return false;
+        RouterMicrodesc dirMicrodesc = potentialDirectories.get(clientState.random.nextInt(potentialDirectories.size()));
+        logger.info("Refreshing the microdesc consensus from directory " + dirMicrodesc.getHost() + ":" + dirMicrodesc.getPort() + ".");
+        try {
+            Directory directory = clientState.circuitManager.createDirectoryCircuit(dirMicrodesc);
+            if (!directory.isConnected() || !fetchMicrodescConsensus(directory, false)) return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+        // Circuits that are already being built keep using whatever relays they picked, and only new ones see the new consensus.
+        clientState.vanguardsLite.updateConsensus(clientState.microdescConsensus);
+        cacheManager.storeClientData(clientState);
+        logger.info("Microdesc consensus refreshed.");
+        return true;
+    }
+
+    private void runConsensusRefresher() {
+        refresherLock.lock();
+        try {
+            long refreshAt = nextRefreshTime(clientState.microdescConsensus);
+            while (refresherRunning) {
+                long now = Utils.getCurrentTime().toEpochSecond();
+                if (now < refreshAt) {
+                    refresherWakeup.await(refreshAt - now, TimeUnit.SECONDS);
+                    continue;
+                }
+                // The refresh itself is done without holding the lock, so that shutting down never has to wait for it.
+                refresherLock.unlock();
+                boolean refreshed;
+                try {
+                    refreshed = refreshConsensus();
+                } finally {
+                    refresherLock.lock();
+                }
+                if (!refreshed) logger.info("Failed to refresh the microdesc consensus. Retrying in " + CONSENSUS_REFRESH_RETRY_SECONDS + " seconds.");
+                refreshAt = refreshed ? nextRefreshTime(clientState.microdescConsensus) : now + CONSENSUS_REFRESH_RETRY_SECONDS;
+            }
+        } catch (InterruptedException e) {
+            refresherRunning = false;
+        } finally {
+            refresherLock.unlock();
+        }
+    }
+
     public boolean initClient() {
         // Create an arraylist that contains all known authorities. Should also add fallbacks in the future.
         ArrayList<Directory.Authorities> authorities = new ArrayList<>(Arrays.stream(Directory.Authorities.values()).toList());
@@ -105,7 +248,7 @@ public class TorClient {
             // Pick a random authority to use as the directory for bootstrapping.
             Directory.Authorities authority = authorities.get(clientState.random.nextInt(authorities.size()));
             // Create a Directory object for the authority.
-            Directory directory = new Directory(authority.getIpv4(), authority.getORPort());
+            Directory directory = new Directory(authority.getIpv4(), authority.getORPort(), clientState.virtualThreads);
             // Attempt to initialise the client with the authority.
             initClient(directory);
             // If we've managed to bootstrap, we can break out of the loop.
@@ -137,20 +280,20 @@ public class TorClient {
                     RouterMicrodesc dirMicrodesc = potentialDirectories.get(clientState.random.nextInt(potentialDirectories.size()));
                     logger.info("Attempting to build a circuit to directory " + dirMicrodesc.getHost() + ":" + dirMicrodesc.getPort() + ".");
                     Directory directoryPreference = clientState.circuitManager.createDirectoryCircuit(dirMicrodesc);
-                    if (!(fetched = fetchMicrodescConsensus(directoryPreference)))
+                    if (!(fetched = fetchMicrodescConsensus(directoryPreference, false)))
                         logger.info("Failed to fetch a microdesc consensus from " + directoryPreference + ". Retrying.");
                     else break;
                 }
                 if (!fetched) {
                     logger.info("Failed to fetch from random directories. Defaulting to fallback " + directory + ".");
-                    fetched = fetchMicrodescConsensus(directory);
+                    fetched = fetchMicrodescConsensus(directory, false);
                 }
                 if (!fetched) {
                     logger.error("Failed to fetch microdesc consensus. Terminating client.");
                     return;
                 }
                 // Storing the new microdesc consensus.
-                cacheManager.storeClientData(clientState.authorityKeys, clientState.microdescConsensus, clientState.vanguardsLite);
+                cacheManager.storeClientData(clientState);
                 // Reloading all client data.
                 if (!cacheManager.loadClientData(clientState)) {
                     logger.error("Failed to load the new microdesc consensus from file. Try rerunning the client.");
@@ -160,26 +303,55 @@ public class TorClient {
         }
         else if (cacheManagerStatus == ClientCacheManager.NEW_CACHE || cacheManagerStatus == ClientCacheManager.EPHEMERAL_MODE) {
             // Attempt to fetch a microdesc consensus.
-            if (!fetchMicrodescConsensus(directory))
+            if (!fetchMicrodescConsensus(directory, true))
                 return;
             // Initialise the vanguards-lite system (that includes the regular guards system).
             logger.info("Initialising Vanguards and Entry Guards.");
-            clientState.vanguardsLite = new VanguardsLite(clientState.microdescConsensus);
+            clientState.vanguardsLite = new VanguardsLite(clientState.microdescConsensus, clientState.virtualThreads);
             logger.info("Vanguards Lite initialised.");
 
-            cacheManager.storeClientData(clientState.authorityKeys, clientState.microdescConsensus, clientState.vanguardsLite);
+            cacheManager.storeClientData(clientState);
         }
 
+        finishBootstrap();
+    }
+
+    public void initClient(MicrodescConsensus microdescConsensus) {
+        // Bootstraps from a consensus that was obtained some other way (such as a synthetic one for a simulated network), without contacting any directory.
+        // The cache file is neither read nor written, since the consensus didn't come from the authorities.
+        clientState.microdescConsensus = microdescConsensus;
+        clientState.microdescStore.addAll(microdescConsensus);
+        logger.info("Initialising Vanguards and Entry Guards.");
+        clientState.vanguardsLite = new VanguardsLite(microdescConsensus, clientState.virtualThreads);
+        logger.info("Vanguards Lite initialised.");
+        finishBootstrap();
+    }
+
+    private void finishBootstrap() {
         bootstrapped = true;
+        if (circuitPoolSize > 0)
+            clientState.circuitManager.startCircuitPool(circuitPoolSize, circuitPoolPorts);
+        // Keep the consensus up to date for as long as the client is running.
+        refresherLock.lock();
+        if (!refresherRunning) {
+            refresherRunning = true;
+            Threads.start(clientState.virtualThreads, "consensus-refresher", this::runConsensusRefresher);
+        }
+        refresherLock.unlock();
         logger.info("Client::Ready.");
     }
 
     public ConnectionInfo connect(String host, int port) {
+        return connect(host, port, ConnectOptions.DEFAULT);
+    }
+
+    public ConnectionInfo connect(String host, int port, ConnectOptions connectOptions) {
         if (!bootstrapped) throw new RuntimeException("Client must be initialised before building circuits.");
         logger.info("Attempting to connect to " + host + ':' + port + '.');
-        int circuitId = clientState.circuitManager.createDefaultCircuit(port);
-        logger.info("Created a new circuit through the tor network, circuitId: " + circuitId + '.');
-        ConnectionInfo connectionInfo = clientState.circuitManager.connectWithCircuit(circuitId, host, port);
+        int circuitId = clientState.circuitManager.getExitCircuit(port, connectOptions);
+        logger.info("Using circuit " + circuitId + " through the tor network.");
+        ConnectionInfo connectionInfo = connectOptions.happyEyeballs() ? clientState.circuitManager.connectHappyEyeballs(circuitId, host, port)
+                : clientState.circuitManager.connectWithCircuit(circuitId, host, port);
         if (connectionInfo == null) logger.info("Failed to establish a connection to " + host + ':' + port + '.');
         else logger.info("Connected to " + host + ':' + port + '.');
         return connectionInfo;
@@ -224,6 +396,11 @@ public class TorClient {
 
     public void shutdown() {
         logger.info("Client::Shutdown");
+        clientState.circuitManager.stopCircuitPool();
+        refresherLock.lock();
+        refresherRunning = false;
+        refresherWakeup.signalAll();
+        refresherLock.unlock();
         clientState.vanguardsLite.getGuardSystem().getPrimary().forEach(guard -> guard.guard().terminate());
         bootstrapped = false;
     }
@@ -29,6 +29,9 @@ public class Cryptography {
     public static byte MAC_KEY_LENGTH = 32;
     public static byte IV_LENGTH = 16;
 
+    // getInstanceStrong reads from /dev/random, which can block (and pin virtual threads inside native code), so a single non-blocking instance is shared instead.
+    public static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
     public static final String NTOR_PROTOID  = "ntor-curve25519-sha256-1";
     public static final String NTOR_t_mac    = NTOR_PROTOID + ":mac";
     public static final String NTOR_t_key    = NTOR_PROTOID + ":key_extract";
@@ -65,19 +68,15 @@ public class Cryptography {
         return digest;
     }
 
-    public static MessageDigest cloneDigest(MessageDigest digest) {
+    public static void updateInPlace(Cipher cipher, byte[] data) {
+        // AES-CTR keeps the length of the data, so it can be encrypted (or decrypted) into the same array.
         try {
-            return (MessageDigest) digest.clone();
-        } catch (CloneNotSupportedException e) {
+            cipher.update(data, 0, data.length, data, 0);
+        } catch (ShortBufferException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public static byte[] updateDigest(MessageDigest digest, byte[] data) {
-        digest.update(data);
-        return cloneDigest(digest).digest();
-    }
-
     public static boolean verifyRSASignature(byte[] publicKey, byte[] signature, byte[] hash) {
         RSAPublicKey rsaPublicKey = RSAPublicKey.getInstance(publicKey);
         BigInteger signatureInteger = new BigInteger(1, signature);
@@ -369,11 +368,7 @@ public class Cryptography {
 
     public static KeyPair generateX25519KeyPair() {
         X25519KeyPairGenerator keyPairGenerator = new X25519KeyPairGenerator();
-        try {
-            keyPairGenerator.init(new X25519KeyGenerationParameters(SecureRandom.getInstanceStrong()));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        keyPairGenerator.init(new X25519KeyGenerationParameters(SECURE_RANDOM));
 
         AsymmetricCipherKeyPair asymmetricCipherKeyPair = keyPairGenerator.generateKeyPair();
         return new KeyPair(((X25519PrivateKeyParameters) asymmetricCipherKeyPair.getPrivate()).getEncoded(), ((X25519PublicKeyParameters) asymmetricCipherKeyPair.getPublic()).getEncoded());
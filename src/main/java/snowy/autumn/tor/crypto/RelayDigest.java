@@ -0,0 +1,44 @@
+package snowy.autumn.tor.crypto;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.digests.SHA3Digest;
+import org.bouncycastle.util.Memoable;
+
+public class RelayDigest {
+
+    // The running digest of one direction of a relay crypto layer.
+    // Every relay cell needs the digest of everything up to and including it, so instead of cloning the running digest for each cell,
+    // its state is copied into a second digest that is the one to be finalised.
+    private final Digest running;
+    private final Digest snapshot;
+    private final byte[] output;
+
+    private RelayDigest(Digest running, Digest snapshot, byte[] seed) {
+        this.running = running;
+        this.snapshot = snapshot;
+        this.output = new byte[running.getDigestSize()];
+        running.update(seed, 0, seed.length);
+    }
+
+    public static RelayDigest sha1(byte[] seed) {
+        return new RelayDigest(new SHA1Digest(), new SHA1Digest(), seed);
+    }
+
+    public static RelayDigest sha3(byte[] seed) {
+        // Keccak's state can't be copied into an existing instance, so these (which are only used for hidden services) still get a copy per cell.
+        return new RelayDigest(new SHA3Digest(256), null, seed);
+    }
+
+    public byte[] update(byte[] data) {
+        // Returns the digest so far. The returned array is reused, so it's only valid until the next update.
+        running.update(data, 0, data.length);
+        if (snapshot != null) {
+            ((Memoable) snapshot).reset((Memoable) running);
+            snapshot.doFinal(output, 0);
+        }
+        else new SHA3Digest((SHA3Digest) running).doFinal(output, 0);
+        return output;
+    }
+
+}
@@ -5,15 +5,19 @@ import snowy.autumn.tor.cell.cells.relay.RelayCell;
 import snowy.autumn.tor.cell.cells.relay.commands.DataCommand;
 import snowy.autumn.tor.cell.cells.relay.commands.EndCommand;
 import snowy.autumn.tor.circuit.Circuit;
+import snowy.autumn.tor.directory.documents.ConsensusDiff;
 import snowy.autumn.tor.directory.documents.DirectoryKeyNetDoc;
 import snowy.autumn.tor.directory.documents.MicrodescConsensus;
 import snowy.autumn.tor.directory.documents.RouterMicrodesc;
 import snowy.autumn.tor.relay.Guard;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HexFormat;
 import java.util.List;
 import java.util.Random;
+import java.util.function.Consumer;
 
 public class Directory {
 
@@ -63,15 +67,31 @@ public class Directory {
     Guard guard;
     protected MicrodescConsensus microdescConsensus;
     RouterMicrodesc directoryMicrodesc;
+    // Whether the directory's link (and the threads that fetch from it) use virtual threads, which is up to the client that uses it.
+    boolean virtualThreads;
 
-    public Directory(MicrodescConsensus microdescConsensus, RouterMicrodesc directoryMicrodesc, Circuit circuit) {
+    public Directory(MicrodescConsensus microdescConsensus, RouterMicrodesc directoryMicrodesc, Circuit circuit, boolean virtualThreads) {
         this.microdescConsensus = microdescConsensus;
         this.directoryMicrodesc = directoryMicrodesc;
         this.circuit = circuit;
+        this.virtualThreads = virtualThreads;
     }
 
-    public Directory(String host, int port) {
+    public Directory(MicrodescConsensus microdescConsensus, RouterMicrodesc directoryMicrodesc, Circuit circuit) {
+        this(microdescConsensus, directoryMicrodesc, circuit, false);
+    }
+
+    public Directory(String host, int port, boolean virtualThreads) {
         this.guard = new Guard(host, port, new byte[20]);
+        this.virtualThreads = virtualThreads;
+    }
+
+    public Directory(String host, int port) {
+        this(host, port, false);
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
     }
 
     public boolean extendToDirectory() {
@@ -84,48 +104,49 @@ public class Directory {
         if (guard == null) return true; // This is true since this only happens when the directory instance has been initialised with a circuit directly.
         if (!guard.connect()) return false;
         if (!guard.generalTorHandshake()) return false;
-        guard.startCellListener();
+        guard.startCellListener(virtualThreads);
         this.circuit = new Circuit(random.nextInt(), guard);
         return circuit.createFast();
     }
 
-    protected String httpRequest(String request) {
-        return httpRequest(request, null);
-    }
-
-    protected String httpRequest(String request, MicrodescConsensus microdescConsensus) {
+    private boolean request(String request, Consumer<byte[]> onData) {
         short streamId = (short) random.nextInt();
-        if (!circuit.openDirStream(streamId)) return null;
+        if (!circuit.openDirStream(streamId)) return false;
         circuit.sendData(streamId, request.getBytes());
         RelayCell relayCell;
-        StringBuilder response = new StringBuilder();
         while (true) {
             relayCell = circuit.waitForRelayCell(streamId, RelayCell.DATA, RelayCell.END);
-            if (relayCell == null) return null;
+            if (relayCell == null) return false;
             if (relayCell instanceof EndCommand) break;
-            response.append(new String(((DataCommand) relayCell).getData()));
-            if (microdescConsensus != null) {
-                String paramsSubstring = response.toString().replaceAll("\r\n", "\n");
-                int index = paramsSubstring.indexOf("\nparams ");
-                int paramsEnd = paramsSubstring.indexOf('\n', index + 1);
-                if (index != -1 && paramsEnd != -1) {
-                    paramsSubstring = paramsSubstring.substring(index, paramsEnd);
-                    MicrodescConsensus.parseMicrodescConsensusParams(paramsSubstring, microdescConsensus);
-                    // Note: This is done in order to prevent the directory from tearing the connection for the reason of protocol violation,
-                    // since the consensus might contain a different minimum send_me version (1) than the default, which is 0.
-                    circuit.updateFromConsensus(microdescConsensus);
-                    microdescConsensus = null;
-                }
-            }
+            onData.accept(((DataCommand) relayCell).getData());
         }
-        if (((EndCommand) relayCell).getReason() == EndCommand.EndReason.REASON_DONE.getReason())
-            return response.toString();
-        return null;
+        return ((EndCommand) relayCell).getReason() == EndCommand.EndReason.REASON_DONE.getReason();
+    }
+
+    protected String httpRequest(String request) {
+        // Returns the whole response, including the status line and the headers.
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        if (!request(request, response::writeBytes)) return null;
+        return response.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    protected boolean httpRequest(String request, HttpResponseReader.BodyConsumer bodyConsumer) {
+        // Streams the (decompressed) body into the consumer as it arrives, and returns whether the whole response was received successfully.
+        HttpResponseReader reader = new HttpResponseReader(bodyConsumer);
+        if (!request(request, reader::read)) return false;
+        return reader.isHeadComplete() && reader.getStatusCode() == 200 && reader.isBodyValid();
+    }
+
+    protected String httpRequestBody(String request) {
+        // Returns only the (decompressed) body of a successful response.
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (!httpRequest(request, body::write)) return null;
+        return body.toString(StandardCharsets.ISO_8859_1);
     }
 
     public DirectoryKeyNetDoc fetchDirectoryKeyCertsNetDoc(byte[] fingerprint) {
         if (circuit == null) throw new Error("Cannot fetch any net-doc when the circuit is null.");
-        String netdoc = httpRequest("GET /tor/keys/fp/" + HexFormat.of().formatHex(fingerprint).toUpperCase() + " HTTP/1.0\r\n\r\n");
+        String netdoc = httpRequestBody("GET /tor/keys/fp/" + HexFormat.of().formatHex(fingerprint).toUpperCase() + " HTTP/1.0\r\n" + HttpResponseReader.ACCEPT_ENCODING + "\r\n");
         if (netdoc == null) return null;
         netdoc = Arrays.stream(netdoc.replaceAll("\r\n", "\n").split("\n\n")).toList().getLast();
         return DirectoryKeyNetDoc.parse(netdoc, fingerprint);
@@ -143,18 +164,39 @@ public class Directory {
     }
 
     public MicrodescConsensus fetchMicrodescConsensus(DirectoryKeys authDirectoryKeys) {
+        return fetchMicrodescConsensus(authDirectoryKeys, null);
+    }
+
+    public MicrodescConsensus fetchMicrodescConsensus(DirectoryKeys authDirectoryKeys, MicrodescConsensus previous) {
         if (circuit == null) throw new Error("Cannot fetch any type of consensus when the circuit is null.");
         MicrodescConsensus microdescConsensus = new MicrodescConsensus();
-        String consensus = httpRequest("GET /tor/status-vote/current/consensus-microdesc/F533C8+2F3DF9+E8A9C4+ED03BB+0232AF+49015F+23D15D+27102B+70849B HTTP/1.0\r\n\r\n", microdescConsensus);
-        if (consensus == null) return microdescConsensus = null;
-        consensus = Arrays.stream(consensus.replaceAll("\r\n", "\n").split("\n\n")).toList().getLast();
-        MicrodescConsensus.parse(authDirectoryKeys, consensus, microdescConsensus);
+        // Note: The circuit is updated as soon as the params are parsed in order to prevent the directory from tearing the connection for the reason of protocol violation,
+        // since the consensus might contain a different minimum send_me version (1) than the default, which is 0.
+        MicrodescConsensus.Parser parser = new MicrodescConsensus.Parser(authDirectoryKeys, microdescConsensus, () -> circuit.updateFromConsensus(microdescConsensus), true);
+        String request = "GET /tor/status-vote/current/consensus-microdesc/F533C8+2F3DF9+E8A9C4+ED03BB+0232AF+49015F+23D15D+27102B+70849B HTTP/1.0\r\n" + HttpResponseReader.ACCEPT_ENCODING;
+        // If we still have the previous consensus, then we can ask for a diff from it instead of the whole document.
+        boolean diffable = previous != null && previous.getDocument() != null && previous.getDigestAsSigned() != null;
+        if (diffable) request += "X-Or-Diff-From-Consensus: " + HexFormat.of().withUpperCase().formatHex(previous.getDigestAsSigned()) + "\r\n";
+        request += "\r\n";
+
+        // The directory doesn't have to answer with a diff, so the response is only buffered if it turns out to be one.
+        ConsensusDiff.Receiver receiver = new ConsensusDiff.Receiver(parser);
+        if (!httpRequest(request, diffable ? receiver : parser))
+            return null;
+        if (diffable && receiver.isDiff()) {
+            byte[] document = ConsensusDiff.apply(previous.getDocument(), previous.getDigestAsSigned(), receiver.getDiff());
+            // A diff that couldn't be applied isn't necessarily the directory's fault, so we'll just fall back to fetching the whole consensus.
+            if (document == null) return fetchMicrodescConsensus(authDirectoryKeys, null);
+            parser.accept(document, 0, document.length);
+        }
+        // The signatures are validated on the resulting document either way.
+        parser.finish();
         return microdescConsensus;
     }
 
     public boolean fetchMicrodescriptors(List<RouterMicrodesc> microdescs) {
         String requestPath = String.join("-", microdescs.stream().map(RouterMicrodesc::getEncodedMicrodescHash).toList());
-        String response = httpRequest("GET /tor/micro/d/" + requestPath + " HTTP/1.0\r\n\r\n");
+        String response = httpRequestBody("GET /tor/micro/d/" + requestPath + " HTTP/1.0\r\n" + HttpResponseReader.ACCEPT_ENCODING + "\r\n");
         if (response == null) return false;
         String[] microdescriptors = response.substring(response.indexOf("onion-key\n") + "onion-key\n".length()).split("onion-key\n");
         if (microdescriptors.length != microdescs.size())
@@ -172,12 +214,17 @@ public class Directory {
         return microdescConsensus.fetchMicrodescriptors(this);
     }
 
+    public boolean isConnected() {
+        return circuit != null && circuit.isConnected();
+    }
+
     public void updateCircuit(MicrodescConsensus microdescConsensus) {
         circuit.updateFromConsensus(microdescConsensus);
     }
 
     public boolean destroyCircuit() {
-        return circuit.destroy(true);
+        // The guard connection is only ours to terminate if it was opened just for this directory, otherwise it's shared with the client's other circuits.
+        return circuit.destroy(guard != null);
     }
 
     @Override
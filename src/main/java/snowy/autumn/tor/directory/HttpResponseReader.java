@@ -0,0 +1,140 @@
+package snowy.autumn.tor.directory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class HttpResponseReader {
+
+    public interface BodyConsumer {
+        // The data array is only valid for the duration of the call, so consumers must copy whatever they want to keep.
+        void accept(byte[] data, int offset, int length);
+    }
+
+    // Only deflate is supported, since zstd and lzma would require pulling in extra dependencies.
+    public static final String ACCEPT_ENCODING = "Accept-Encoding: deflate, identity\r\n";
+
+    private static class InflatingConsumer implements BodyConsumer {
+
+        // Decompresses a deflate (zlib) encoded body as it arrives and passes the output on.
+        private final BodyConsumer bodyConsumer;
+        private final Inflater inflater = new Inflater();
+        private final byte[] output = new byte[16384];
+        private boolean failed = false;
+
+        public InflatingConsumer(BodyConsumer bodyConsumer) {
+            this.bodyConsumer = bodyConsumer;
+        }
+
+        @Override
+        public void accept(byte[] data, int offset, int length) {
+            if (failed || inflater.finished()) return;
+            inflater.setInput(data, offset, length);
+            try {
+                while (!inflater.finished()) {
+                    int inflated = inflater.inflate(output);
+                    if (inflated > 0) bodyConsumer.accept(output, 0, inflated);
+                    else if (inflater.needsInput()) break;
+                    else if (inflater.needsDictionary()) {
+                        failed = true;
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                failed = true;
+            }
+            if (failed || inflater.finished()) inflater.end();
+        }
+
+        public boolean isComplete() {
+            return !failed && inflater.finished();
+        }
+
+    }
+
+    private BodyConsumer bodyConsumer;
+    private InflatingConsumer inflatingConsumer;
+    private boolean unsupportedEncoding = false;
+    private byte[] head = new byte[1024];
+    private int headLength = 0;
+    private boolean headComplete = false;
+    private int statusCode = -1;
+    private final HashMap<String, String> headers = new HashMap<>();
+
+    public HttpResponseReader(BodyConsumer bodyConsumer) {
+        this.bodyConsumer = bodyConsumer;
+    }
+
+    public void read(byte[] data) {
+        read(data, 0, data.length);
+    }
+
+    public void read(byte[] data, int offset, int length) {
+        if (headComplete) {
+            bodyConsumer.accept(data, offset, length);
+            return;
+        }
+        // The status line and the headers are small, so they're collected until the empty line that ends them.
+        if (headLength + length > head.length)
+            head = Arrays.copyOf(head, Math.max(head.length * 2, headLength + length));
+        System.arraycopy(data, offset, head, headLength, length);
+        int searchFrom = Math.max(0, headLength - 3);
+        headLength += length;
+        for (int i = searchFrom; i + 3 < headLength; i++) {
+            if (head[i] == '\r' && head[i + 1] == '\n' && head[i + 2] == '\r' && head[i + 3] == '\n') {
+                parseHead(new String(head, 0, i, StandardCharsets.ISO_8859_1));
+                headComplete = true;
+                // The body is decoded before it reaches the consumer, so consumers never have to care about the encoding.
+                String contentEncoding = getHeader("Content-Encoding");
+                if (contentEncoding != null && (contentEncoding.equalsIgnoreCase("deflate") || contentEncoding.equalsIgnoreCase("x-deflate")))
+                    bodyConsumer = inflatingConsumer = new InflatingConsumer(bodyConsumer);
+                else if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) {
+                    // We never ask for any other encoding, so a body like this is just dropped.
+                    unsupportedEncoding = true;
+                    bodyConsumer = (body, bodyOffset, bodyLength) -> {};
+                }
+                int bodyStart = i + 4;
+                if (bodyStart < headLength) bodyConsumer.accept(head, bodyStart, headLength - bodyStart);
+                head = null;
+                return;
+            }
+        }
+    }
+
+    private void parseHead(String head) {
+        String[] lines = head.split("\r\n");
+        // The status line looks like this: HTTP/1.0 200 OK
+        String[] statusLine = lines[0].split(" ", 3);
+        if (statusLine.length >= 2) {
+            try {
+                statusCode = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException ignored) {}
+        }
+        for (int i = 1; i < lines.length; i++) {
+            int separator = lines[i].indexOf(':');
+            if (separator == -1) continue;
+            headers.put(lines[i].substring(0, separator).trim().toLowerCase(), lines[i].substring(separator + 1).trim());
+        }
+    }
+
+    public boolean isHeadComplete() {
+        return headComplete;
+    }
+
+    public boolean isBodyValid() {
+        // Returns whether the body could be decoded, which should only be checked once the whole response was read.
+        if (unsupportedEncoding) return false;
+        return inflatingConsumer == null || inflatingConsumer.isComplete();
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+}
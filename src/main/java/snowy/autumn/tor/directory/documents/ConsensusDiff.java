@@ -0,0 +1,180 @@
+package snowy.autumn.tor.directory.documents;
+
+import snowy.autumn.tor.crypto.Cryptography;
+import snowy.autumn.tor.directory.HttpResponseReader;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+public class ConsensusDiff {
+
+    public static final String DIFF_VERSION_LINE = "network-status-diff-version 1";
+    private static final byte[] DIFF_MAGIC = "network-status-diff-version".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] SIGNATURE_KEYWORD = "directory-signature ".getBytes(StandardCharsets.ISO_8859_1);
+
+    private record Command(int start, int end, char type, ArrayList<byte[]> lines) {}
+
+    public static class Receiver implements HttpResponseReader.BodyConsumer {
+
+        // A directory that was asked for a diff might still answer with a whole consensus, so the first few bytes decide where the body goes.
+        private final HttpResponseReader.BodyConsumer documentConsumer;
+        private final ByteArrayOutputStream start = new ByteArrayOutputStream();
+        private ByteArrayOutputStream diff;
+        private boolean decided = false;
+
+        public Receiver(HttpResponseReader.BodyConsumer documentConsumer) {
+            this.documentConsumer = documentConsumer;
+        }
+
+        @Override
+        public void accept(byte[] data, int offset, int length) {
+            if (decided) {
+                if (diff != null) diff.write(data, offset, length);
+                else documentConsumer.accept(data, offset, length);
+                return;
+            }
+            start.write(data, offset, length);
+            if (start.size() < DIFF_MAGIC.length) return;
+            decide();
+        }
+
+        private void decide() {
+            byte[] buffered = start.toByteArray();
+            decided = true;
+            if (buffered.length >= DIFF_MAGIC.length && Arrays.equals(buffered, 0, DIFF_MAGIC.length, DIFF_MAGIC, 0, DIFF_MAGIC.length)) {
+                diff = new ByteArrayOutputStream();
+                diff.writeBytes(buffered);
+            }
+            else documentConsumer.accept(buffered, 0, buffered.length);
+        }
+
+        public boolean isDiff() {
+            // Bodies that were too short to tell are handed over to the document consumer at this point.
+            if (!decided) decide();
+            return diff != null;
+        }
+
+        public byte[] getDiff() {
+            return diff == null ? null : diff.toByteArray();
+        }
+
+    }
+
+    public static byte[] digestAsSigned(byte[] document) {
+        // The digest covers everything from the start of the document up to and including the first "directory-signature ".
+        int end = -1;
+        for (int i = 0; i + SIGNATURE_KEYWORD.length <= document.length; i++) {
+            if ((i == 0 || document[i - 1] == '\n') && Arrays.equals(document, i, i + SIGNATURE_KEYWORD.length, SIGNATURE_KEYWORD, 0, SIGNATURE_KEYWORD.length)) {
+                end = i + SIGNATURE_KEYWORD.length;
+                break;
+            }
+        }
+        if (end == -1) return null;
+        MessageDigest sha3 = Cryptography.createDigest("SHA3-256");
+        sha3.update(document, 0, end);
+        return sha3.digest();
+    }
+
+    private static ArrayList<byte[]> splitLines(byte[] document) {
+        ArrayList<byte[]> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < document.length; i++) {
+            if (document[i] == '\n') {
+                lines.add(Arrays.copyOfRange(document, start, i));
+                start = i + 1;
+            }
+        }
+        if (start < document.length) lines.add(Arrays.copyOfRange(document, start, document.length));
+        return lines;
+    }
+
+    private static int parseLineNumber(String value, int lastLine) {
+        return value.equals("$") ? lastLine : Integer.parseInt(value);
+    }
+
+    public static byte[] apply(byte[] base, byte[] baseDigest, byte[] diff) {
+        // Applies an ed-style consensus diff to the given base document.
+        // Returns null if the diff isn't for this base, is malformed, or doesn't produce the document it claims to produce.
+        ArrayList<byte[]> diffLines = splitLines(diff);
+        if (diffLines.size() < 2 || !new String(diffLines.get(0), StandardCharsets.ISO_8859_1).equals(DIFF_VERSION_LINE)) return null;
+        String[] hashLine = new String(diffLines.get(1), StandardCharsets.ISO_8859_1).split(" ");
+        if (hashLine.length != 3 || !hashLine[0].equals("hash")) return null;
+        byte[] fromDigest;
+        byte[] toDigest;
+        try {
+            fromDigest = HexFormat.of().parseHex(hashLine[1]);
+            toDigest = HexFormat.of().parseHex(hashLine[2]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!Arrays.equals(fromDigest, baseDigest)) return null;
+
+        ArrayList<byte[]> baseLines = splitLines(base);
+        ArrayList<Command> commands = new ArrayList<>();
+        try {
+            int index = 2;
+            // The commands are listed from the end of the document to its start, so they must never overlap or go back up.
+            int lowestLine = baseLines.size() + 1;
+            while (index < diffLines.size()) {
+                String commandLine = new String(diffLines.get(index++), StandardCharsets.ISO_8859_1);
+                if (commandLine.isEmpty()) return null;
+                char type = commandLine.charAt(commandLine.length() - 1);
+                String[] range = commandLine.substring(0, commandLine.length() - 1).split(",", 2);
+                int start = parseLineNumber(range[0], baseLines.size());
+                int end = range.length == 2 ? parseLineNumber(range[1], baseLines.size()) : start;
+                ArrayList<byte[]> lines = new ArrayList<>();
+                if (type == 'a' || type == 'c') {
+                    // Added lines are terminated with a line that only contains a dot.
+                    while (true) {
+                        if (index >= diffLines.size()) return null;
+                        byte[] line = diffLines.get(index++);
+                        if (line.length == 1 && line[0] == '.') break;
+                        lines.add(line);
+                    }
+                }
+                else if (type != 'd') return null;
+                if (type == 'a') {
+                    // Lines are appended after the given line, so this is an empty range right after it.
+                    if (range.length != 1) return null;
+                    start++;
+                    end = start - 1;
+                }
+                else if (start < 1 || end < start) return null;
+                if (end >= lowestLine || end > baseLines.size()) return null;
+                lowestLine = start;
+                commands.add(new Command(start, end, type, lines));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        // Since the commands are sorted in a descending order, walking them backwards lets the document be rebuilt in a single pass.
+        ByteArrayOutputStream result = new ByteArrayOutputStream(base.length + diff.length);
+        int next = 1;
+        for (int i = commands.size() - 1; i >= 0; i--) {
+            Command command = commands.get(i);
+            for (; next < command.start(); next++) {
+                result.writeBytes(baseLines.get(next - 1));
+                result.write('\n');
+            }
+            for (byte[] line : command.lines()) {
+                result.writeBytes(line);
+                result.write('\n');
+            }
+            next = Math.max(next, command.end() + 1);
+        }
+        for (; next <= baseLines.size(); next++) {
+            result.writeBytes(baseLines.get(next - 1));
+            result.write('\n');
+        }
+
+        byte[] document = result.toByteArray();
+        if (!Arrays.equals(digestAsSigned(document), toDigest)) return null;
+        return document;
+    }
+
+}
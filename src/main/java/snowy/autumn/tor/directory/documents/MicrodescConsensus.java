@@ -4,16 +4,25 @@ import snowy.autumn.tor.circuit.CanExtendTo;
 import snowy.autumn.tor.crypto.Cryptography;
 import snowy.autumn.tor.directory.Directory;
 import snowy.autumn.tor.directory.DirectoryKeys;
+import snowy.autumn.tor.directory.HttpResponseReader;
 import snowy.autumn.tor.hs.HiddenService;
+import snowy.autumn.tor.utils.Threads;
 import snowy.autumn.tor.utils.Utils;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public class MicrodescConsensus {
 
     HashMap<String, Integer> params = new HashMap<>();
+    // The bandwidth-weights line from the footer of the consensus (Wgg, Wmd, Wee, ...).
+    HashMap<String, Integer> bandwidthWeights = new HashMap<>();
     ArrayList<RouterMicrodesc> microdescs = new ArrayList<>();
     ArrayList<HiddenService.HSDir> hsDirs = new ArrayList<>();
 
@@ -25,6 +34,13 @@ public class MicrodescConsensus {
     long freshUntil;
     long validUntil;
 
+    // The raw document and its SHA3-256 "as signed" digest, which are kept so that the next consensus could be fetched as a diff against this one.
+    byte[] document;
+    byte[] digestAsSigned;
+
+    // Built from the relays once they're all known, and rebuilt whenever they change.
+    private volatile RelayIndex relayIndex;
+
     public MicrodescConsensus() {
         // Default params: these params might be changed according to values from the consensus, but unless they're present these should be at their default values.
         params.put("hsdir_n_replicas", 2);
@@ -57,34 +73,29 @@ public class MicrodescConsensus {
         if (directories.length < 1)
             throw new IllegalArgumentException("At least one directory needs to be passed in order to fetch microdescriptors for a microdesc-consensus.");
 
-        ArrayList<Directory> directoryList = new ArrayList<>(List.of(directories));
-
         int maxPerMirror = 128;
         int maxPerRequest = 92;
+        // Only the microdescriptors that we don't already have (e.g. from a previous consensus) are fetched.
+        List<RouterMicrodesc> missing = microdescs.stream().filter(microdesc -> !microdesc.hasMicrodesc()).toList();
         // We sort them in their respective chunks in a descending order, so that we could more easily identify them later on.
-        List<List<RouterMicrodesc>> chunks = IntStream.range(0, (microdescs.size() + maxPerMirror - 1) / maxPerMirror)
-                .mapToObj(i -> microdescs.subList(i * maxPerMirror, Math.min(microdescs.size(), (i + 1) * maxPerMirror))
+        List<List<RouterMicrodesc>> chunks = IntStream.range(0, (missing.size() + maxPerMirror - 1) / maxPerMirror)
+                .mapToObj(i -> missing.subList(i * maxPerMirror, Math.min(missing.size(), (i + 1) * maxPerMirror))
                         .stream().sorted((a, b) ->
                                 Arrays.compareUnsigned(b.getMicrodescHash(), a.getMicrodescHash()))
                         .toList()).toList();
 
-        for (int chunkIndex = 0; chunkIndex < chunks.size(); chunkIndex++) {
-            Directory directory = directoryList.get(chunkIndex % directoryList.size());
-            List<RouterMicrodesc> chunk = chunks.get(chunkIndex);
-            if (chunk.size() > maxPerRequest) {
-                List<List<RouterMicrodesc>> temporary = IntStream.range(0, 2).mapToObj(i -> chunk.subList(i * maxPerRequest, Math.min(chunk.size(), (i + 1) * maxPerRequest))).toList();
-                for (List<RouterMicrodesc> sub : temporary)
-                    if (!directory.fetchMicrodescriptors(sub)) {
-                        directoryList.remove(directory);
-                        chunkIndex--;
-                        break;
-                    }
-            }
-            else if (!directory.fetchMicrodescriptors(chunk)) {
-                directoryList.remove(directory);
-                chunkIndex--;
-            }
-            if (directoryList.isEmpty()) return false;
+        // Every request is a separate unit of work, so that the directories could fetch them in parallel.
+        ArrayDeque<List<RouterMicrodesc>> requests = new ArrayDeque<>();
+        for (List<RouterMicrodesc> chunk : chunks) {
+            for (int i = 0; i < chunk.size(); i += maxPerRequest)
+                requests.add(chunk.subList(i, Math.min(chunk.size(), i + maxPerRequest)));
+        }
+
+        if (!requests.isEmpty()) {
+            MicrodescFetch fetch = new MicrodescFetch(requests, directories.length);
+            for (Directory directory : directories)
+                Threads.start(directory.usesVirtualThreads(), "microdesc-fetch-" + directory, () -> fetch.work(directory));
+            if (!fetch.await()) return false;
         }
 
         postUpdate();
@@ -92,85 +103,262 @@ public class MicrodescConsensus {
         return true;
     }
 
-    private static boolean validate(DirectoryKeys authDirectoryKeys, String consensusData) {
-        String signed = consensusData.substring(0, consensusData.indexOf("\ndirectory-signature ")) + "\ndirectory-signature ";
-        String[] directorySignatures = consensusData.substring(consensusData.indexOf("\ndirectory-signature ") +  + "directory-signature ".length()).trim().split("directory-signature ");
-        byte[] signedHash = null;
-        String algorithm = "";
-        HashSet<DirectoryKeyNetDoc> authoritiesSigned = new HashSet<>();
-        for (String directorySignature : directorySignatures) {
-            String[] signatureIdParts = directorySignature.trim().split(" ");
-            DirectoryKeyNetDoc directoryKeyNetDoc = authDirectoryKeys.getDirectoryKeys(signatureIdParts[1]);
-            if (directoryKeyNetDoc == null) continue;
-            if (!algorithm.equals(algorithm = signatureIdParts[0])) {
-                if (algorithm.equalsIgnoreCase("sha256")) algorithm = "SHA-256";
-                else if (algorithm.equalsIgnoreCase("sha1")) algorithm = "SHA-1";
-                else continue;
-                signedHash = Cryptography.createDigest(algorithm).digest(signed.getBytes());
+    private static class MicrodescFetch {
+
+        private final ArrayDeque<List<RouterMicrodesc>> requests;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private int remaining;
+        private int workers;
+
+        private MicrodescFetch(ArrayDeque<List<RouterMicrodesc>> requests, int workers) {
+            this.requests = requests;
+            this.remaining = requests.size();
+            this.workers = workers;
+        }
+
+        private void work(Directory directory) {
+            // Each directory fetches one request at a time. A directory that fails a request is not used again,
+            // and the request is handed back so that one of the other directories could retry it.
+            while (true) {
+                List<RouterMicrodesc> request;
+                lock.lock();
+                try {
+                    // Idle directories stick around while other requests are in flight, in case one of those fails and has to be retried.
+                    while ((request = requests.poll()) == null) {
+                        if (remaining == 0) {
+                            workers--;
+                            changed.signalAll();
+                            return;
+                        }
+                        changed.await();
+                    }
+                } catch (InterruptedException e) {
+                    workers--;
+                    changed.signalAll();
+                    return;
+                }
+                finally {
+                    lock.unlock();
+                }
+                boolean fetched;
+                try {
+                    fetched = directory.fetchMicrodescriptors(request);
+                } catch (RuntimeException e) {
+                    fetched = false;
+                }
+                lock.lock();
+                try {
+                    if (fetched) remaining--;
+                    else {
+                        requests.addFirst(request);
+                        workers--;
+                    }
+                    changed.signalAll();
+                    if (!fetched) return;
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private boolean await() {
+            // Returns whether every request was fetched, or false once there are no directories left to retry the remaining ones.
+            lock.lock();
+            try {
+                while (remaining > 0 && workers > 0)
+                    changed.await();
+                return remaining == 0;
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                lock.unlock();
             }
-            String[] lines = directorySignature.substring(directorySignature.indexOf('\n') + 1).trim().split("\n");
-            byte[] signature = Base64.getDecoder().decode(String.join("", Arrays.copyOfRange(lines, 1, lines.length - 1)));
-            if (directoryKeyNetDoc.verifyRSASignature(signature, signedHash))
-                authoritiesSigned.add(directoryKeyNetDoc);
         }
 
-        return authoritiesSigned.size() * 2 >= authDirectoryKeys.getDirectoryCount();
     }
 
-    public static void parseMicrodescConsensusParams(String params, MicrodescConsensus microdescConsensus) {
-        int paramsStart = params.indexOf("\nparams ") + 8;
-        int paramsEnd = params.indexOf('\n', paramsStart);
-        params = params.substring(paramsStart, paramsEnd == -1 ? params.length() : paramsEnd);
+    public static class Parser implements HttpResponseReader.BodyConsumer {
+
+        // Parses a microdesc consensus line by line as it arrives, without ever holding the whole document in memory.
+        private final DirectoryKeys authDirectoryKeys;
+        private final MicrodescConsensus microdescConsensus;
+        // Called as soon as the params line was parsed, since the params could affect the circuit that the consensus is being fetched over.
+        private final Runnable onParams;
+
+        // The line that is currently being read, which could be split across multiple DATA cells.
+        private byte[] line = new byte[256];
+        private int lineLength = 0;
+
+        // Everything up to and including the first "directory-signature " is signed, and is hashed on the fly.
+        private final MessageDigest sha1 = Cryptography.createDigest("SHA-1");
+        private final MessageDigest sha256 = Cryptography.createDigest("SHA-256");
+        // Consensus diffs refer to documents by their SHA3-256 digest, which is only needed when the document itself is kept.
+        private final MessageDigest sha3;
+        private final ByteArrayOutputStream document;
+        private boolean signedPortionDone = false;
+
+        private Set<String> knownFlags = Set.of();
+        private boolean inRouters = false;
+        private boolean inFooter = false;
+        // The fields of the router entry that is currently being parsed.
+        private String[] routerInfo;
+        private String routerIpv6Info;
+        private String statusFlags;
+        private String microdescHash;
+        private String bandwidthInfo;
+
+        private record Signature(String algorithm, String identity, byte[] signature) {}
+        private final ArrayList<Signature> signatures = new ArrayList<>();
+        private String[] signatureIdParts;
+        private StringBuilder signatureBody;
+
+        public Parser(DirectoryKeys authDirectoryKeys, MicrodescConsensus microdescConsensus, Runnable onParams) {
+            this(authDirectoryKeys, microdescConsensus, onParams, false);
+        }
 
-        for (String param : params.split(" ")) {
-            microdescConsensus.params.put(param.split("=")[0], Integer.valueOf(param.split("=")[1]));
+        public Parser(DirectoryKeys authDirectoryKeys, MicrodescConsensus microdescConsensus, Runnable onParams, boolean keepDocument) {
+            this.authDirectoryKeys = authDirectoryKeys;
+            this.microdescConsensus = microdescConsensus;
+            this.onParams = onParams;
+            this.sha3 = keepDocument ? Cryptography.createDigest("SHA3-256") : null;
+            this.document = keepDocument ? new ByteArrayOutputStream() : null;
         }
-    }
 
-    public static void parse(DirectoryKeys authDirectoryKeys, String consensusData, MicrodescConsensus microdescConsensus) {
-        if (authDirectoryKeys != null && !validate(authDirectoryKeys, consensusData))
-            throw new RuntimeException("Attempted to parse a microdesc consensus, but the consensus was not signed correctly.");
-
-        microdescConsensus.validAfter = Utils.parseDate(consensusData.substring(consensusData.indexOf("valid-after ")).split("\n", 2)[0].split(" ", 2)[1]);
-        microdescConsensus.freshUntil = Utils.parseDate(consensusData.substring(consensusData.indexOf("fresh-until ")).split("\n", 2)[0].split(" ", 2)[1]);
-        microdescConsensus.validUntil = Utils.parseDate(consensusData.substring(consensusData.indexOf("valid-until ")).split("\n", 2)[0].split(" ", 2)[1]);
-
-        // Parsing the known-flags listing.
-        int startKnownFlags = consensusData.indexOf("\nknown-flags ");
-        int endKnownFlags = consensusData.indexOf("\n", startKnownFlags + 1);
-        Set<String> knownFlags = Arrays.stream(consensusData.substring(startKnownFlags, endKnownFlags).trim().split(" ")).collect(Collectors.toSet());
-
-        // Parsing the random shared secrets. (We'll assume they're adjacent in the consensus)
-        int prevSRVStart = consensusData.indexOf("\nshared-rand-previous-value");
-        int currentSRVStart = consensusData.indexOf("\nshared-rand-current-value", prevSRVStart);
-        String[] SRVs = consensusData.substring(prevSRVStart + 1, consensusData.indexOf('\n', currentSRVStart + 1)).split("\n");
-        // According to the 'Shared Random Subsystem' spec, the previous SRV value should be listed before the current one.
-        // SRVs are listed in this format: "shared-rand-value" NUM_REVEALS VALUE NL, so the value will always be the third one.
-        microdescConsensus.previousSRV = Base64.getDecoder().decode(SRVs[0].split(" ")[2]);
-        microdescConsensus.currentSRV = Base64.getDecoder().decode(SRVs[1].split(" ")[2]);
-
-        // Parsing the relays listed in the microdesc-consensus.
-        String[] routerMicrodescRefs = consensusData.substring(consensusData.indexOf("\nr ") + 3, consensusData.indexOf("\ndirectory-footer")).split("\nr ");
-        for (String ref : routerMicrodescRefs) {
-            String[] routerInfo = ref.substring(0, ref.indexOf('\n')).split(" ");
+        @Override
+        public void accept(byte[] data, int offset, int length) {
+            if (document != null) document.write(data, offset, length);
+            int end = offset + length;
+            while (offset < end) {
+                int newline = offset;
+                while (newline < end && data[newline] != '\n') newline++;
+                int count = newline - offset;
+                if (lineLength + count > line.length)
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + count));
+                System.arraycopy(data, offset, line, lineLength, count);
+                lineLength += count;
+                if (newline == end) return;
+                processLine();
+                offset = newline + 1;
+            }
+        }
+
+        private boolean startsWith(String keyword) {
+            if (lineLength < keyword.length()) return false;
+            for (int i = 0; i < keyword.length(); i++)
+                if (line[i] != keyword.charAt(i)) return false;
+            return true;
+        }
+
+        private String lineValue(String keyword) {
+            return new String(line, keyword.length(), lineLength - keyword.length(), StandardCharsets.ISO_8859_1);
+        }
+
+        private void processLine() {
+            // Documents are supposed to use plain newlines, but just in case.
+            if (lineLength > 0 && line[lineLength - 1] == '\r') lineLength--;
+            if (!signedPortionDone) {
+                if (startsWith("directory-signature ")) {
+                    sha1.update(line, 0, "directory-signature ".length());
+                    sha256.update(line, 0, "directory-signature ".length());
+                    if (sha3 != null) sha3.update(line, 0, "directory-signature ".length());
+                    signedPortionDone = true;
+                }
+                else {
+                    sha1.update(line, 0, lineLength);
+                    sha1.update((byte) '\n');
+                    sha256.update(line, 0, lineLength);
+                    sha256.update((byte) '\n');
+                    if (sha3 != null) {
+                        sha3.update(line, 0, lineLength);
+                        sha3.update((byte) '\n');
+                    }
+                }
+            }
+
+            if (inRouters) {
+                if (startsWith("r ")) {
+                    finishRouter();
+                    routerInfo = lineValue("r ").split(" ");
+                }
+                // Only the first address line is used.
+                else if (startsWith("a ") && routerIpv6Info == null) routerIpv6Info = lineValue("a ");
+                else if (startsWith("s ") && statusFlags == null) statusFlags = lineValue("s ").strip();
+                else if (startsWith("m ") && microdescHash == null) microdescHash = lineValue("m ");
+                else if (startsWith("w ") && bandwidthInfo == null) bandwidthInfo = lineValue("w ");
+                else if (startsWith("directory-footer")) {
+                    finishRouter();
+                    inRouters = false;
+                    inFooter = true;
+                }
+            }
+            else if (inFooter) {
+                if (startsWith("bandwidth-weights ")) {
+                    for (String weight : lineValue("bandwidth-weights ").trim().split(" "))
+                        microdescConsensus.bandwidthWeights.put(weight.split("=")[0], Integer.valueOf(weight.split("=")[1]));
+                }
+                else if (startsWith("directory-signature ")) {
+                    finishSignature();
+                    signatureIdParts = lineValue("directory-signature ").trim().split(" ");
+                    signatureBody = new StringBuilder();
+                }
+                else if (signatureBody != null && !startsWith("-----"))
+                    signatureBody.append(new String(line, 0, lineLength, StandardCharsets.ISO_8859_1));
+            }
+            else if (startsWith("r ")) {
+                inRouters = true;
+                routerInfo = lineValue("r ").split(" ");
+            }
+            else if (startsWith("params ")) {
+                for (String param : lineValue("params ").split(" "))
+                    microdescConsensus.params.put(param.split("=")[0], Integer.valueOf(param.split("=")[1]));
+                if (onParams != null) onParams.run();
+            }
+            else if (startsWith("valid-after ")) microdescConsensus.validAfter = Utils.parseDate(lineValue("valid-after "));
+            else if (startsWith("fresh-until ")) microdescConsensus.freshUntil = Utils.parseDate(lineValue("fresh-until "));
+            else if (startsWith("valid-until ")) microdescConsensus.validUntil = Utils.parseDate(lineValue("valid-until "));
+            else if (startsWith("known-flags ")) knownFlags = Arrays.stream(lineValue("known-flags ").trim().split(" ")).collect(Collectors.toSet());
+            // SRVs are listed in this format: "shared-rand-value" NUM_REVEALS VALUE NL, so the value will always be the second one after the keyword.
+            else if (startsWith("shared-rand-previous-value ")) microdescConsensus.previousSRV = Base64.getDecoder().decode(lineValue("shared-rand-previous-value ").split(" ")[1]);
+            else if (startsWith("shared-rand-current-value ")) microdescConsensus.currentSRV = Base64.getDecoder().decode(lineValue("shared-rand-current-value ").split(" ")[1]);
+
+            lineLength = 0;
+        }
+
+        private void finishRouter() {
+            if (routerInfo == null) return;
+            String[] routerInfo = this.routerInfo;
+            String routerIpv6Info = this.routerIpv6Info;
+            String statusFlags = this.statusFlags == null ? "" : this.statusFlags;
+            String microdescHash = this.microdescHash;
+            String bandwidthInfo = this.bandwidthInfo;
+            this.routerInfo = null;
+            this.routerIpv6Info = null;
+            this.statusFlags = null;
+            this.microdescHash = null;
+            this.bandwidthInfo = null;
+
             byte[] fingerprint = Base64.getDecoder().decode(routerInfo[1]);
             String host = routerInfo[4];
             int port = Integer.parseInt(routerInfo[5]);
-            String microdescHash = ref.substring(ref.indexOf("\nm ") + 3).split("\n")[0];
 
             // I'm not sure whether I'm supposed to do this, but since I don't think we'll ever be in a situation where this would occur, then I've added it anyway.
-            String statusFlags = ref.substring(ref.indexOf("\ns ") + 3).split("\n")[0].strip();
-            if (!Arrays.stream(statusFlags.split(" ")).allMatch(knownFlags::contains)) continue;
+            if (!Arrays.stream(statusFlags.split(" ")).allMatch(knownFlags::contains)) return;
             statusFlags = statusFlags.toLowerCase();
 
-            String[] routerIpv6Info = new String[2];
-
-            if (ref.contains("\na "))
-                routerIpv6Info = ref.substring(ref.indexOf("\na ") + 3).split("\n")[0].substring(1).split("]:");
+            String[] routerIpv6 = new String[2];
+            if (routerIpv6Info != null)
+                routerIpv6 = routerIpv6Info.substring(1).split("]:");
 
             // We'll check whether the node is listed as Stable, Running and Valid.
-            if (!(statusFlags.contains("stable") && statusFlags.contains("running") && statusFlags.contains("valid"))) continue;
-            RouterMicrodesc microdesc = new RouterMicrodesc(host, port, fingerprint, microdescHash, routerIpv6Info[0], routerIpv6Info[0] == null ? -1 : Integer.parseInt(routerIpv6Info[1]), statusFlags.split(" "));
+            if (!(statusFlags.contains("stable") && statusFlags.contains("running") && statusFlags.contains("valid"))) return;
+            RouterMicrodesc microdesc = new RouterMicrodesc(host, port, fingerprint, microdescHash, routerIpv6[0], routerIpv6[0] == null ? -1 : Integer.parseInt(routerIpv6[1]), statusFlags.split(" "));
+            // The bandwidth line looks like this: w Bandwidth=NUM [Measured=NUM] [Unmeasured=1]
+            if (bandwidthInfo != null) {
+                for (String entry : bandwidthInfo.trim().split(" "))
+                    if (entry.startsWith("Bandwidth=")) microdesc.setBandwidth(Integer.parseInt(entry.substring("Bandwidth=".length())));
+            }
 
             if (microdesc.isFlag(RouterMicrodesc.Flags.HS_DIR))
                 microdescConsensus.hsDirs.add(new HiddenService.HSDir(microdesc, new byte[0]));
@@ -178,7 +366,55 @@ public class MicrodescConsensus {
             microdescConsensus.microdescs.add(microdesc);
         }
 
-        Collections.shuffle(microdescConsensus.microdescs);
+        private void finishSignature() {
+            if (signatureIdParts == null) return;
+            if (signatureIdParts.length >= 2)
+                signatures.add(new Signature(signatureIdParts[0], signatureIdParts[1], Base64.getDecoder().decode(signatureBody.toString())));
+            signatureIdParts = null;
+            signatureBody = null;
+        }
+
+        private boolean validate() {
+            byte[] sha1Hash = sha1.digest();
+            byte[] sha256Hash = sha256.digest();
+            HashSet<DirectoryKeyNetDoc> authoritiesSigned = new HashSet<>();
+            for (Signature signature : signatures) {
+                DirectoryKeyNetDoc directoryKeyNetDoc = authDirectoryKeys.getDirectoryKeys(signature.identity());
+                if (directoryKeyNetDoc == null) continue;
+                byte[] signedHash;
+                if (signature.algorithm().equalsIgnoreCase("sha256")) signedHash = sha256Hash;
+                else if (signature.algorithm().equalsIgnoreCase("sha1")) signedHash = sha1Hash;
+                else continue;
+                if (directoryKeyNetDoc.verifyRSASignature(signature.signature(), signedHash))
+                    authoritiesSigned.add(directoryKeyNetDoc);
+            }
+
+            return authoritiesSigned.size() * 2 >= authDirectoryKeys.getDirectoryCount();
+        }
+
+        public void finish() {
+            if (lineLength > 0) processLine();
+            finishRouter();
+            finishSignature();
+            if (!signedPortionDone)
+                throw new RuntimeException("Attempted to parse a microdesc consensus, but the consensus was incomplete.");
+            if (authDirectoryKeys != null && !validate())
+                throw new RuntimeException("Attempted to parse a microdesc consensus, but the consensus was not signed correctly.");
+
+            if (document != null) {
+                microdescConsensus.document = document.toByteArray();
+                microdescConsensus.digestAsSigned = sha3.digest();
+            }
+            Collections.shuffle(microdescConsensus.microdescs);
+        }
+
+    }
+
+    public static void parse(DirectoryKeys authDirectoryKeys, String consensusData, MicrodescConsensus microdescConsensus) {
+        Parser parser = new Parser(authDirectoryKeys, microdescConsensus, null);
+        byte[] data = consensusData.getBytes(StandardCharsets.ISO_8859_1);
+        parser.accept(data, 0, data.length);
+        parser.finish();
     }
 
     public void postUpdate() {
@@ -190,6 +426,29 @@ public class MicrodescConsensus {
                 hsDirA.calculateHsRelayIndexConditional(srv, validAfter),
                 hsDirB.calculateHsRelayIndexConditional(srv, validAfter)
         ));
+
+        // The microdescriptors (and with them the exit policies) might have changed, so the index has to be rebuilt.
+        relayIndex = new RelayIndex(this, microdescs);
+    }
+
+    private RelayIndex index() {
+        RelayIndex relayIndex = this.relayIndex;
+        if (relayIndex == null) this.relayIndex = relayIndex = new RelayIndex(this, microdescs);
+        return relayIndex;
+    }
+
+    double getWeightedBandwidth(RouterMicrodesc microdesc, byte position) {
+        // Weights a relay's bandwidth for the given position, the same way that C-tor does.
+        // The weights are named W + the position (g, m, e) + the relay's kind (g for guard, e for exit, d for both and m for neither).
+        boolean guard = microdesc.isFlag(RouterMicrodesc.Flags.GUARD);
+        boolean exit = microdesc.isFlag(RouterMicrodesc.Flags.EXIT) && !microdesc.isFlag(RouterMicrodesc.Flags.BAD_EXIT);
+        char positionChar = position == WeightedRelays.GUARD ? 'g' : position == WeightedRelays.MIDDLE ? 'm' : 'e';
+        char kind = guard && exit ? 'd' : guard ? 'g' : exit ? 'e' : 'm';
+        int scale = params.getOrDefault("bwweightscale", 10000);
+        // Exits are never used as guards, unless they're guards as well.
+        int defaultWeight = position == WeightedRelays.GUARD && kind == 'e' ? 0 : scale;
+        int weight = bandwidthWeights.getOrDefault("W" + positionChar + kind, defaultWeight);
+        return (double) microdesc.getBandwidth() * weight / scale;
     }
 
     public int getSendMeMinVersion() {
@@ -201,6 +460,11 @@ public class MicrodescConsensus {
         return minVersion;
     }
 
+    public int getCircuitWindow() {
+        // The number of data cells that can be sent on a circuit before the first circuit-level SENDME arrives (clamped to the range that C-tor accepts).
+        return Math.max(100, Math.min(1000, params.getOrDefault("circwindow", 1000)));
+    }
+
     public int hsDirNReplicas() {
         return params.get("hsdir_n_replicas");
     }
@@ -221,6 +485,19 @@ public class MicrodescConsensus {
         return currentSRV;
     }
 
+    public byte[] getDocument() {
+        return document;
+    }
+
+    public byte[] getDigestAsSigned() {
+        return digestAsSigned;
+    }
+
+    public void setDocument(byte[] document, byte[] digestAsSigned) {
+        this.document = document;
+        this.digestAsSigned = digestAsSigned;
+    }
+
     public long getValidAfter() {
         return validAfter;
     }
@@ -246,11 +523,41 @@ public class MicrodescConsensus {
     }
 
     public List<RouterMicrodesc> getAllWithFlags(byte... flags) {
-		return getAllWithFlags(microdescs, flags);
+        // The returned list is shared and must not be modified.
+		return index().getAllWithFlags(flags);
+    }
+
+    public List<RouterMicrodesc> getExitsForPort(int port) {
+        // The returned list is shared and must not be modified.
+        return index().getExitsForPort(port);
+    }
+
+    public WeightedRelays getWeightedGuards() {
+        return index().getWeightedGuards();
+    }
+
+    public WeightedRelays getWeightedMiddles() {
+        return index().getWeightedMiddles();
+    }
+
+    public WeightedRelays getWeightedExits(int port) {
+        return index().getWeightedExits(port);
+    }
+
+    public HashMap<String, Integer> getBandwidthWeights() {
+        return bandwidthWeights;
+    }
+
+    public void setBandwidthWeights(HashMap<String, Integer> bandwidthWeights) {
+        this.bandwidthWeights = bandwidthWeights;
     }
 
     public RouterMicrodesc findWithHash(byte[] microdescHash) {
-        return microdescs.stream().filter(microdesc -> Arrays.equals(microdesc.getMicrodescHash(), microdescHash)).findFirst().orElse(null);
+        return index().findWithHash(Base64.getEncoder().withoutPadding().encodeToString(microdescHash));
+    }
+
+    public RouterMicrodesc findWithFingerprint(byte[] fingerprint) {
+        return index().findWithFingerprint(fingerprint);
     }
 
 	public static List<RouterMicrodesc> getAllWithFlags(List<RouterMicrodesc> microdescs, byte... flags) {
@@ -0,0 +1,89 @@
+package snowy.autumn.tor.directory.documents;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class MicrodescStore {
+
+    // Microdescriptors are kept for a while after their relay was last listed, since relays often drop out of a consensus or two and come back.
+    public static final long MAX_UNLISTED_SECONDS = 7 * 24 * 60 * 60;
+
+    public record StoredMicrodesc(RouterMicrodesc microdesc, long lastListed) {}
+
+    // Microdescriptors are content-addressed, so they're indexed by their (base64 encoded) sha256 hash.
+    private final HashMap<String, StoredMicrodesc> microdescs = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public void add(RouterMicrodesc microdesc, long lastListed) {
+        if (!microdesc.hasMicrodesc()) return;
+        lock.lock();
+        try {
+            String microdescHash = microdesc.getEncodedMicrodescHash();
+            StoredMicrodesc stored = microdescs.get(microdescHash);
+            if (stored == null || stored.lastListed() < lastListed)
+                microdescs.put(microdescHash, new StoredMicrodesc(microdesc, lastListed));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addAll(MicrodescConsensus microdescConsensus) {
+        // Everything listed in the consensus is marked as listed at the time the consensus became valid.
+        for (RouterMicrodesc microdesc : microdescConsensus.getMicrodescs())
+            add(microdesc, microdescConsensus.getValidAfter());
+    }
+
+    public int resolve(MicrodescConsensus microdescConsensus) {
+        // Fills in every microdescriptor in the consensus that is already in the store, so that only the rest have to be fetched.
+        // Returns the number of microdescriptors that were resolved.
+        int resolved = 0;
+        lock.lock();
+        try {
+            for (RouterMicrodesc microdesc : microdescConsensus.getMicrodescs()) {
+                if (microdesc.hasMicrodesc()) continue;
+                StoredMicrodesc stored = microdescs.get(microdesc.getEncodedMicrodescHash());
+                if (stored == null) continue;
+                microdesc.copyMicrodescFrom(stored.microdesc());
+                resolved++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return resolved;
+    }
+
+    public void prune(long now) {
+        lock.lock();
+        try {
+            microdescs.values().removeIf(stored -> now - stored.lastListed() > MAX_UNLISTED_SECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<StoredMicrodesc> getUnlisted(MicrodescConsensus microdescConsensus) {
+        // Returns the stored microdescriptors that aren't part of the given consensus.
+        HashMap<String, StoredMicrodesc> unlisted;
+        lock.lock();
+        try {
+            unlisted = new HashMap<>(microdescs);
+        } finally {
+            lock.unlock();
+        }
+        for (RouterMicrodesc microdesc : microdescConsensus.getMicrodescs())
+            unlisted.remove(microdesc.getEncodedMicrodescHash());
+        return new ArrayList<>(unlisted.values());
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return microdescs.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
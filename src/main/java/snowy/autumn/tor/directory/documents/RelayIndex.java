@@ -0,0 +1,126 @@
+package snowy.autumn.tor.directory.documents;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+class RelayIndex {
+
+    // Lookup structures over the relays of a single consensus, so that path selection doesn't have to scan every relay on every hop.
+    // An index is never modified after it was built (apart from the lazily built lists), and is replaced whenever the consensus is updated.
+    private final List<RouterMicrodesc> microdescs;
+    private final HashMap<String, RouterMicrodesc> byHash;
+    private final HashMap<String, RouterMicrodesc> byFingerprint;
+    // One bitset per flag bit, where bit i is set if the relay at index i has that flag.
+    private final BitSet[] byFlag = new BitSet[Byte.SIZE];
+
+    private final ReentrantLock cacheLock = new ReentrantLock();
+    private final HashMap<Byte, List<RouterMicrodesc>> withFlags = new HashMap<>();
+    private final HashMap<Integer, List<RouterMicrodesc>> exitsByPort = new HashMap<>();
+    // The weighted tables are built lazily as well, since each of them has to go over all of its relays.
+    private final MicrodescConsensus microdescConsensus;
+    private WeightedRelays weightedGuards;
+    private WeightedRelays weightedMiddles;
+    private final HashMap<Integer, WeightedRelays> weightedExitsByPort = new HashMap<>();
+
+    RelayIndex(MicrodescConsensus microdescConsensus, List<RouterMicrodesc> microdescs) {
+        this.microdescConsensus = microdescConsensus;
+        this.microdescs = List.copyOf(microdescs);
+        this.byHash = new HashMap<>(this.microdescs.size() * 2);
+        this.byFingerprint = new HashMap<>(this.microdescs.size() * 2);
+        for (int bit = 0; bit < byFlag.length; bit++)
+            byFlag[bit] = new BitSet(this.microdescs.size());
+        for (int i = 0; i < this.microdescs.size(); i++) {
+            RouterMicrodesc microdesc = this.microdescs.get(i);
+            byHash.put(microdesc.getEncodedMicrodescHash(), microdesc);
+            byFingerprint.put(HexFormat.of().formatHex(microdesc.getFingerprint()), microdesc);
+            for (int bit = 0; bit < byFlag.length; bit++)
+                if ((microdesc.getFlags() & (1 << bit)) != 0) byFlag[bit].set(i);
+        }
+    }
+
+    RouterMicrodesc findWithHash(String encodedMicrodescHash) {
+        return byHash.get(encodedMicrodescHash);
+    }
+
+    RouterMicrodesc findWithFingerprint(byte[] fingerprint) {
+        return byFingerprint.get(HexFormat.of().formatHex(fingerprint));
+    }
+
+    List<RouterMicrodesc> getAllWithFlags(byte... flags) {
+        byte mask = 0;
+        for (byte flag : flags) mask |= flag;
+        cacheLock.lock();
+        try {
+            List<RouterMicrodesc> cached = withFlags.get(mask);
+            if (cached != null) return cached;
+            // Intersect the bitsets of all the requested flags.
+            BitSet matching = new BitSet(microdescs.size());
+            matching.set(0, microdescs.size());
+            for (int bit = 0; bit < byFlag.length; bit++)
+                if ((mask & (1 << bit)) != 0) matching.and(byFlag[bit]);
+            ArrayList<RouterMicrodesc> relays = new ArrayList<>(matching.cardinality());
+            for (int i = matching.nextSetBit(0); i >= 0; i = matching.nextSetBit(i + 1))
+                relays.add(microdescs.get(i));
+            List<RouterMicrodesc> result = Collections.unmodifiableList(relays);
+            withFlags.put(mask, result);
+            return result;
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    List<RouterMicrodesc> getExitsForPort(int port) {
+        // These are only built for ports that are actually asked for, since exit policies vary a lot between ports.
+        cacheLock.lock();
+        try {
+            List<RouterMicrodesc> cached = exitsByPort.get(port);
+            if (cached != null) return cached;
+            ArrayList<RouterMicrodesc> exits = new ArrayList<>();
+            for (RouterMicrodesc microdesc : microdescs)
+                if (microdesc.getIpv4ExitPolicy() != null && microdesc.getIpv4ExitPolicy().check(port)) exits.add(microdesc);
+            List<RouterMicrodesc> result = Collections.unmodifiableList(exits);
+            exitsByPort.put(port, result);
+            return result;
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    WeightedRelays getWeightedGuards() {
+        // Guards are only sampled from relays that are also directory caches, just like the guard system does.
+        List<RouterMicrodesc> guards = getAllWithFlags(RouterMicrodesc.Flags.GUARD, RouterMicrodesc.Flags.V2DIR);
+        cacheLock.lock();
+        try {
+            if (weightedGuards == null) weightedGuards = new WeightedRelays(guards, WeightedRelays.GUARD, microdescConsensus);
+            return weightedGuards;
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    WeightedRelays getWeightedMiddles() {
+        cacheLock.lock();
+        try {
+            if (weightedMiddles == null) weightedMiddles = new WeightedRelays(microdescs, WeightedRelays.MIDDLE, microdescConsensus);
+            return weightedMiddles;
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    WeightedRelays getWeightedExits(int port) {
+        List<RouterMicrodesc> exits = getExitsForPort(port);
+        cacheLock.lock();
+        try {
+            return weightedExitsByPort.computeIfAbsent(port, key -> new WeightedRelays(exits, WeightedRelays.EXIT, microdescConsensus));
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+}
@@ -108,6 +108,8 @@ public class RouterMicrodesc implements CanExtendTo {
     // Only some flags will be stored in this value.
     // 1bit - Guard, 2bit - Exit, 3bit - BadExit, 4bit - Fast, 5bit - HSDir, 6bit - MiddleOnly
     byte flags = 0;
+    // The bandwidth listed in the consensus (in kilobytes per second), which is used to weight path selection.
+    int bandwidth = 0;
 
     public RouterMicrodesc(String host, int port, byte[] fingerprint, String microdescHash, String ipv6host, int ipv6port, String[] flags) {
         // We assume that every relay in the consensus has at least an ipv4 address, fingerprint and an ed25519 identity.
@@ -172,6 +174,14 @@ public class RouterMicrodesc implements CanExtendTo {
 		return flags;
 	}
 
+    public int getBandwidth() {
+        return bandwidth;
+    }
+
+    public void setBandwidth(int bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
     public boolean updateFromMicrodesc(String microdesc) {
         // Verify that the calculated microdesc hash matches the advertised hash in the microdesc consensus.
         byte[] calculatedMicrodescHash = Cryptography.createDigest("SHA-256").digest(("onion-key\n" + microdesc.trim() + '\n').getBytes());
@@ -209,6 +219,18 @@ public class RouterMicrodesc implements CanExtendTo {
         return true;
     }
 
+    public boolean hasMicrodesc() {
+        return ntorOnionKey != null;
+    }
+
+    public void copyMicrodescFrom(RouterMicrodesc routerMicrodesc) {
+        // Copies everything that comes from the microdescriptor itself, which is only valid when both have the same microdesc hash.
+        ntorOnionKey = routerMicrodesc.ntorOnionKey;
+        ed25519Id = routerMicrodesc.ed25519Id;
+        family = routerMicrodesc.family;
+        ipv4ExitPolicy = routerMicrodesc.ipv4ExitPolicy;
+    }
+
     public static byte[] ipv4linkSpecifier(String host, int port) {
         ByteBuffer buffer = ByteBuffer.allocate(8);
         // Link specifier type
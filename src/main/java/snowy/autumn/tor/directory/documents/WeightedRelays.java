@@ -0,0 +1,65 @@
+package snowy.autumn.tor.directory.documents;
+
+import snowy.autumn.tor.circuit.CanExtendTo;
+import snowy.autumn.tor.utils.AliasTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class WeightedRelays {
+
+    // Positions, as used for the consensus bandwidth weights.
+    public static final byte GUARD = 0;
+    public static final byte MIDDLE = 1;
+    public static final byte EXIT = 2;
+
+    private final List<RouterMicrodesc> relays;
+    private final double[] weights;
+    private final AliasTable aliasTable;
+
+    WeightedRelays(List<RouterMicrodesc> relays, byte position, MicrodescConsensus microdescConsensus) {
+        this.relays = relays;
+        this.weights = new double[relays.size()];
+        for (int i = 0; i < weights.length; i++)
+            weights[i] = microdescConsensus.getWeightedBandwidth(relays.get(i), position);
+        this.aliasTable = new AliasTable(weights);
+    }
+
+    private WeightedRelays(List<RouterMicrodesc> relays, double[] weights) {
+        this.relays = relays;
+        this.weights = weights;
+        this.aliasTable = new AliasTable(weights);
+    }
+
+    private static boolean isExcluded(RouterMicrodesc microdesc, CanExtendTo[] excluded) {
+        return Arrays.stream(excluded).anyMatch(routerMicrodesc -> routerMicrodesc != null && routerMicrodesc.equals(microdesc));
+    }
+
+    public RouterMicrodesc pick(Random random, CanExtendTo... excluded) {
+        // Picks a relay with a probability proportional to its weight, skipping the excluded ones.
+        if (relays.isEmpty()) return null;
+        // Only a handful of relays are usually excluded, so a few samples are almost always enough.
+        for (int attempt = 0; attempt < 16; attempt++) {
+            RouterMicrodesc microdesc = relays.get(aliasTable.sample(random));
+            if (!isExcluded(microdesc, excluded)) return microdesc;
+        }
+        // The excluded relays carry most of the weight, so just build a table without them.
+        ArrayList<RouterMicrodesc> remaining = new ArrayList<>();
+        ArrayList<Double> remainingWeights = new ArrayList<>();
+        for (int i = 0; i < relays.size(); i++) {
+            if (isExcluded(relays.get(i), excluded)) continue;
+            remaining.add(relays.get(i));
+            remainingWeights.add(weights[i]);
+        }
+        if (remaining.isEmpty()) return null;
+        WeightedRelays filtered = new WeightedRelays(remaining, remainingWeights.stream().mapToDouble(Double::doubleValue).toArray());
+        return filtered.relays.get(filtered.aliasTable.sample(random));
+    }
+
+    public List<RouterMicrodesc> getRelays() {
+        return relays;
+    }
+
+}
@@ -4,31 +4,33 @@ import snowy.autumn.tor.cell.Cell;
 import snowy.autumn.tor.cell.cells.*;
 import snowy.autumn.tor.circuit.Circuit;
 import snowy.autumn.tor.directory.documents.RouterMicrodesc;
+import snowy.autumn.tor.utils.Threads;
 
-import javax.net.ssl.*;
+import javax.net.ssl.SSLPeerUnverifiedException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.cert.CertificateEncodingException;
-import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class Guard extends Relay {
 
     public record GuardInfo(Guard guard, RouterMicrodesc guardMicrodesc) {}
 
-    private SSLSocket socket;
-    private InputStream inputStream;
-    private OutputStream outputStream;
+    // A TLS record can carry at most 16KB of plaintext, so this is as many cells as we can coalesce into a single record.
+    static final int MAX_BATCH_SIZE = 16384;
+    // How long a partially filled batch may wait for more cells before it gets flushed anyway.
+    static final long FLUSH_DELAY_NANOS = 1_000_000;
+
+    private LinkChannel linkChannel;
+    private LinkEventLoop eventLoop;
     private final ReentrantLock outputLock = new ReentrantLock();
-    private final ReentrantLock inputLock = new ReentrantLock();
+    private final ByteBuffer outboundCells = ByteBuffer.allocate(MAX_BATCH_SIZE);
     byte highestSupportedVersion;
-    boolean connected;
+    // Atomic, since the link can be torn down from several threads at once (e.g. the event loop and a failed write), and that must only happen once.
+    final AtomicBoolean connected = new AtomicBoolean();
 
     private final ReentrantLock circuitsLock = new ReentrantLock();
     private final HashMap<Integer, Circuit> circuitHashMap = new HashMap<>();
@@ -45,114 +47,164 @@ public class Guard extends Relay {
     }
 
     protected boolean write(byte[] data) {
-        outputLock.lock();
+        if (!linkChannel.write(ByteBuffer.wrap(data))) return false;
+        // If the channel is already in non-blocking mode, then whatever could not be written right away will be flushed by the event loop.
+        if (eventLoop != null && linkChannel.hasPendingOutput())
+            eventLoop.requestWrite(this);
+        return true;
+    }
+
+    private boolean fillPlaintext(int length) {
+        // This is only used before the connection is handed to an event loop, while the channel is still blocking.
         try {
-            outputStream.write(data);
+            while (linkChannel.plaintext().remaining() < length) {
+                if (linkChannel.readPlaintext() < 0) return false;
+            }
             return true;
         } catch (IOException e) {
             return false;
         }
-        finally {
-            outputLock.unlock();
-        }
     }
 
     public byte[] readExact(int length) {
-        inputLock.lock();
+        linkChannel.getInputLock().lock();
         try {
-            return inputStream.readNBytes(length);
-        } catch (IOException e) {
-            return terminated();
+            if (!fillPlaintext(length)) return terminated();
+            byte[] data = new byte[length];
+            linkChannel.plaintext().get(data);
+            return data;
         } finally {
-            inputLock.unlock();
+            linkChannel.getInputLock().unlock();
         }
     }
 
     public byte[] read(int maxLength) {
-        inputLock.lock();
+        linkChannel.getInputLock().lock();
         try {
-            byte[] buffer = new byte[maxLength];
-            int bytesRead = inputStream.read(buffer);
-            if (bytesRead == 0) return terminated();
-            if (bytesRead == maxLength) return buffer;
-            byte[] data = new byte[bytesRead];
-            System.arraycopy(buffer, 0, data, 0, bytesRead);
+            if (!fillPlaintext(1)) return terminated();
+            byte[] data = new byte[Math.min(maxLength, linkChannel.plaintext().remaining())];
+            linkChannel.plaintext().get(data);
             return data;
-        } catch (IOException e) {
-            return null;
         } finally {
-            inputLock.unlock();
+            linkChannel.getInputLock().unlock();
         }
     }
 
     public boolean connect() {
-        // Create a TrustManager that does not validate the certificates in the tls session
-        TrustManager[] trustManagers = new TrustManager[]{
-                new X509TrustManager() {
-                    public X509Certificate[] getAcceptedIssuers() {
-                        return null;
-                    }
-
-                    @Override
-                    public void checkClientTrusted(X509Certificate[] chain, String authType) {
-                    }
-
-                    @Override
-                    public void checkServerTrusted(X509Certificate[] certs, String authType) {
-                    }
-                }
-        };
-
         try {
-            SSLContext sslContext = SSLContext.getInstance("TLSv1.3");
-            sslContext.init(null, trustManagers, new SecureRandom());
-            this.socket = (SSLSocket) sslContext.getSocketFactory().createSocket(host, port);
-            this.inputStream = socket.getInputStream();
-            this.outputStream = socket.getOutputStream();
-            return connected = true;
-        } catch (NoSuchAlgorithmException | IOException | KeyManagementException e) {
+            this.linkChannel = LinkChannel.open(host, port);
+            connected.set(true);
+            return true;
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     public boolean sendCell(Cell cell) {
-        return write(cell.serialiseCell());
+        return sendCell(cell, true);
     }
 
-    private <T> T terminated() {
-        connected = false;
-        return null;
+    public boolean sendCell(Cell cell, boolean flush) {
+        byte[] serialised = cell.serialiseCell();
+        outputLock.lock();
+        try {
+            // If the cell doesn't fit in the current batch, then the batch has to go out first.
+            if (outboundCells.remaining() < serialised.length && !flushLocked()) return false;
+            if (serialised.length > outboundCells.capacity()) return write(serialised);
+            boolean wasEmpty = outboundCells.position() == 0;
+            outboundCells.put(serialised);
+            // Before the event loop takes over there's nothing that would flush the batch later on.
+            if (flush || eventLoop == null) return flushLocked();
+            if (wasEmpty) eventLoop.scheduleFlush(this, System.nanoTime() + FLUSH_DELAY_NANOS);
+            return true;
+        }
+        finally {
+            outputLock.unlock();
+        }
     }
 
-    public <T> T terminate() {
-        connected = false;
+    public boolean flush() {
+        outputLock.lock();
         try {
-            socket.close();
-        } catch (IOException ignored) {}
+            return flushLocked();
+        }
+        finally {
+            outputLock.unlock();
+        }
+    }
+
+    private boolean flushLocked() {
+        if (outboundCells.position() == 0) return true;
+        outboundCells.flip();
+        // Since the batch never exceeds the maximum plaintext size of a record, all of the cells in it go out as a single tls record.
+        boolean success = linkChannel.write(outboundCells);
+        outboundCells.clear();
+        if (eventLoop != null && linkChannel.hasPendingOutput())
+            eventLoop.requestWrite(this);
+        return success;
+    }
+
+    <T> T terminated() {
+        if (!connected.compareAndSet(true, false)) return null;
+        if (linkChannel != null) linkChannel.close();
+        // Every circuit on this connection is gone with it, so wake up anything that might still be waiting on them.
+        ArrayList<Circuit> circuits;
+        circuitsLock.lock();
+        circuits = new ArrayList<>(circuitHashMap.values());
+        circuitHashMap.clear();
+        circuitsLock.unlock();
+        for (Circuit circuit : circuits)
+            circuit.destroyed(DestroyCell.DestroyReason.CHANNEL_CLOSED.getReason());
         return null;
     }
 
-    public <T extends Cell> T receiveNextCell() {
-        int circuitId;
-        byte[] circuitIdBytes = readExact(highestSupportedVersion < 4 ? 2 : 4);
-        if (circuitIdBytes == null) return terminated();
-        if (circuitIdBytes.length == 2)
-            circuitId = ByteBuffer.allocate(2).put(circuitIdBytes).rewind().getShort();
-        else
-            circuitId = ByteBuffer.allocate(4).put(circuitIdBytes).rewind().getInt();
+    public <T> T terminate() {
+        return terminated();
+    }
 
-        byte[] commandBytes = readExact(1);
-        if (commandBytes == null || commandBytes.length == 0) return terminated();
-        byte command = commandBytes[0];
-        boolean fixedLengthCell = Cell.isFixedLengthCell(command);
-        byte[] body = readExact(fixedLengthCell ? Cell.FIXED_CELL_BODY_LENGTH : 2);
-        if (body != null && !fixedLengthCell) {
-            body = new byte[ByteBuffer.wrap(body).getShort()];
-            body = readExact(body.length);
-        }
-        if (body == null) return terminated();
+    private int nextCellLength() {
+        // Peeks at the header of the next cell in the plaintext buffer, and returns the length of the whole cell (or -1 if the header is incomplete).
+        ByteBuffer plaintext = linkChannel.plaintext();
+        int circuitIdLength = highestSupportedVersion < 4 ? 2 : 4;
+        if (plaintext.remaining() < circuitIdLength + 1) return -1;
+        byte command = plaintext.get(plaintext.position() + circuitIdLength);
+        if (Cell.isFixedLengthCell(command))
+            return circuitIdLength + 1 + Cell.FIXED_CELL_BODY_LENGTH;
+        if (plaintext.remaining() < circuitIdLength + 1 + 2) return -1;
+        return circuitIdLength + 1 + 2 + Short.toUnsignedInt(plaintext.getShort(plaintext.position() + circuitIdLength + 1));
+    }
 
-        return Cell.parseCell(circuitId, command, body);
+    private boolean cellAvailable() {
+        int cellLength = nextCellLength();
+        return cellLength != -1 && linkChannel.plaintext().remaining() >= cellLength;
+    }
+
+    public <T extends Cell> T receiveNextCell() {
+        linkChannel.getInputLock().lock();
+        try {
+            // Once the event loop owns the connection this never blocks, since it only asks for cells that are already fully buffered.
+            try {
+                while (!cellAvailable()) {
+                    if (linkChannel.readPlaintext() < 0) return terminated();
+                }
+            } catch (IOException e) {
+                return terminated();
+            }
+            // The cell is framed in place: the header is read with absolute gets, and the body is handed to the parser as a view into the buffer.
+            ByteBuffer plaintext = linkChannel.plaintext();
+            int start = plaintext.position();
+            int circuitIdLength = highestSupportedVersion < 4 ? 2 : 4;
+            int circuitId = circuitIdLength == 2 ? plaintext.getShort(start) : plaintext.getInt(start);
+            byte command = plaintext.get(start + circuitIdLength);
+            int bodyOffset = circuitIdLength + 1 + (Cell.isFixedLengthCell(command) ? 0 : 2);
+            int cellLength = nextCellLength();
+            ByteBuffer body = plaintext.slice(start + bodyOffset, cellLength - bodyOffset);
+            plaintext.position(start + cellLength);
+            // The view is only valid until the next read into the buffer, so the parser copies out whatever it needs to keep.
+            return Cell.parseCell(circuitId, command, body);
+        } finally {
+            linkChannel.getInputLock().unlock();
+        }
     }
 
     public boolean generalTorHandshake() {
@@ -165,7 +217,7 @@ public class Guard extends Relay {
         CertsCell certsCell = receiveNextCell();
         if (certsCell == null) return Boolean.TRUE.equals(terminated());
         try {
-            if (!certsCell.verifyCertificates(socket.getSession().getPeerCertificates()[0].getEncoded())) return Boolean.TRUE.equals(terminate());
+            if (!certsCell.verifyCertificates(linkChannel.getPeerCertificates()[0].getEncoded())) return Boolean.TRUE.equals(terminate());
         } catch (CertificateEncodingException | SSLPeerUnverifiedException e) {
             throw new RuntimeException(e);
         }
@@ -193,32 +245,74 @@ public class Guard extends Relay {
         circuitsLock.unlock();
     }
 
-    public void startCellListener() {
-        Thread listener = new Thread(() -> {
-            while (connected) {
-                Cell cell = receiveNextCell();
-                if (cell == null) continue;
-                try {
-                    circuitsLock.lock();
-                    if (!circuitHashMap.containsKey(cell.getCircuitId())) continue; // drop the cell
-                    Circuit circuit = circuitHashMap.get(cell.getCircuitId());
-                    if (cell instanceof DestroyCell destroyCell) {
-                        circuit.destroyed(destroyCell.getReason());
-                        circuitHashMap.remove(circuit.getCircuitId(), circuit);
-                        continue;
-                    }
-                    circuit.addCell(cell);
-                }
-                finally {
-                    circuitsLock.unlock();
-                }
+    public void startCellListener(boolean virtualThreads) {
+        if (virtualThreads) {
+            // A virtual thread blocked on the channel costs next to nothing, so each link simply gets its own reader, and writes are never deferred.
+            Threads.start(true, "guard-reader-" + host + ":" + port, this::onReadable);
+            return;
+        }
+        try {
+            linkChannel.configureBlocking(false);
+        } catch (IOException e) {
+            terminated();
+            return;
+        }
+        eventLoop = LinkEventLoop.next();
+        eventLoop.register(this);
+    }
 
+    void onReadable() {
+        // Called by the event loop whenever the channel has data available.
+        // In virtual thread mode the channel stays in blocking mode, so this keeps reading until the link is closed.
+        linkChannel.getInputLock().lock();
+        try {
+            int read;
+            do {
+                read = linkChannel.readPlaintext();
+                while (connected.get() && cellAvailable())
+                    handleCell(receiveNextCell());
             }
-        });
-        listener.start();
+            while (read > 0 && connected.get());
+            if (read < 0) terminated();
+        } catch (IOException e) {
+            terminated();
+        } finally {
+            linkChannel.getInputLock().unlock();
+        }
+    }
+
+    boolean onWritable() {
+        // Called by the event loop whenever the channel can accept more data. Returns whether everything pending has been written.
+        try {
+            return linkChannel.flushPending();
+        } catch (IOException e) {
+            terminated();
+            return true;
+        }
+    }
+
+    private void handleCell(Cell cell) {
+        if (cell == null) return;
+        Circuit circuit;
+        circuitsLock.lock();
+        try {
+            circuit = circuitHashMap.get(cell.getCircuitId());
+            if (circuit == null) return; // drop the cell
+            if (cell instanceof DestroyCell)
+                circuitHashMap.remove(circuit.getCircuitId(), circuit);
+        }
+        finally {
+            circuitsLock.unlock();
+        }
+        if (cell instanceof DestroyCell destroyCell) circuit.destroyed(destroyCell.getReason());
+        else circuit.addCell(cell);
+    }
+
+    LinkChannel getLinkChannel() {
+        return linkChannel;
     }
 
     public boolean isConnected() {
-        return connected;
+        return connected.get();
     }
 }
@@ -0,0 +1,267 @@
+package snowy.autumn.tor.relay;
+
+import javax.net.ssl.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class LinkChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    // All of these buffers are kept in read mode (position = next byte to consume, limit = end of data) between calls.
+    private ByteBuffer networkInput;
+    private ByteBuffer plaintextInput;
+    private ByteBuffer networkOutput;
+    // Encrypted records that could not be written yet because the channel is in non-blocking mode.
+    private final ArrayDeque<ByteBuffer> pendingOutput = new ArrayDeque<>();
+    private final ReentrantLock outputLock = new ReentrantLock();
+    private final ReentrantLock inputLock = new ReentrantLock();
+
+    private LinkChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        this.networkInput = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+        this.plaintextInput = ByteBuffer.allocateDirect(session.getApplicationBufferSize()).flip();
+        this.networkOutput = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+    }
+
+    public static LinkChannel open(String host, int port) throws IOException {
+        // Create a TrustManager that does not validate the certificates in the tls session
+        TrustManager[] trustManagers = new TrustManager[]{
+                new X509TrustManager() {
+                    public X509Certificate[] getAcceptedIssuers() {
+                        return null;
+                    }
+
+                    @Override
+                    public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                    }
+
+                    @Override
+                    public void checkServerTrusted(X509Certificate[] certs, String authType) {
+                    }
+                }
+        };
+
+        SSLEngine engine;
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLSv1.3");
+            sslContext.init(null, trustManagers, new SecureRandom());
+            engine = sslContext.createSSLEngine(host, port);
+            engine.setUseClientMode(true);
+        } catch (NoSuchAlgorithmException | KeyManagementException e) {
+            throw new RuntimeException(e);
+        }
+
+        // The channel stays in blocking mode until the link handshake is done, and is only handed to an event loop afterwards.
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        LinkChannel linkChannel = new LinkChannel(channel, engine);
+        try {
+            linkChannel.handshake();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return linkChannel;
+    }
+
+    private void handshake() throws IOException {
+        engine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP -> {
+                    outputLock.lock();
+                    try {
+                        status = wrap(EMPTY).getHandshakeStatus();
+                    } finally {
+                        outputLock.unlock();
+                    }
+                }
+                case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                    SSLEngineResult result = unwrap();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && fillNetworkInput() < 0)
+                        throw new EOFException("Connection closed during the tls handshake.");
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new EOFException("Connection closed during the tls handshake.");
+                    status = engine.getHandshakeStatus();
+                }
+                case NEED_TASK -> {
+                    runDelegatedTasks();
+                    status = engine.getHandshakeStatus();
+                }
+                default -> throw new IllegalStateException("Unexpected handshake status: " + status);
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+    }
+
+    private int fillNetworkInput() throws IOException {
+        networkInput.compact();
+        if (!networkInput.hasRemaining()) {
+            // The engine still needs more data even though the buffer is full, so the record must be larger than the buffer.
+            ByteBuffer larger = ByteBuffer.allocate(networkInput.capacity() * 2);
+            larger.put(networkInput.flip());
+            networkInput = larger;
+        }
+        try {
+            return channel.read(networkInput);
+        } finally {
+            networkInput.flip();
+        }
+    }
+
+    private SSLEngineResult unwrap() throws SSLException {
+        int free = plaintextInput.capacity() - plaintextInput.remaining();
+        if (free < engine.getSession().getApplicationBufferSize()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(plaintextInput.remaining() + engine.getSession().getApplicationBufferSize());
+            larger.put(plaintextInput);
+            plaintextInput = larger.flip();
+        }
+        plaintextInput.compact();
+        try {
+            return engine.unwrap(networkInput, plaintextInput);
+        } finally {
+            plaintextInput.flip();
+        }
+    }
+
+    private SSLEngineResult wrap(ByteBuffer plaintext) throws IOException {
+        // The output lock must be held by the caller.
+        networkOutput.clear();
+        SSLEngineResult result = engine.wrap(plaintext, networkOutput);
+        networkOutput.flip();
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            networkOutput = ByteBuffer.allocate(Math.max(engine.getSession().getPacketBufferSize(), networkOutput.capacity() * 2)).flip();
+            return wrap(plaintext);
+        }
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+            runDelegatedTasks();
+        if (networkOutput.hasRemaining()) {
+            if (pendingOutput.isEmpty()) channel.write(networkOutput);
+            if (networkOutput.hasRemaining())
+                pendingOutput.add(ByteBuffer.allocate(networkOutput.remaining()).put(networkOutput).flip());
+        }
+        return result;
+    }
+
+    public int readPlaintext() throws IOException {
+        inputLock.lock();
+        try {
+            while (true) {
+                int before = plaintextInput.remaining();
+                SSLEngineResult result = unwrap();
+                switch (result.getHandshakeStatus()) {
+                    case NEED_TASK -> runDelegatedTasks();
+                    case NEED_WRAP -> {
+                        // This happens with post-handshake messages, such as key updates.
+                        outputLock.lock();
+                        try {
+                            wrap(EMPTY);
+                        } finally {
+                            outputLock.unlock();
+                        }
+                    }
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) return -1;
+                int produced = plaintextInput.remaining() - before;
+                if (produced > 0) return produced;
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW || !networkInput.hasRemaining()) {
+                    int read = fillNetworkInput();
+                    if (read < 0) return -1;
+                    if (read == 0) return 0;
+                }
+            }
+        } finally {
+            inputLock.unlock();
+        }
+    }
+
+    public boolean write(ByteBuffer plaintext) {
+        outputLock.lock();
+        try {
+            while (plaintext.hasRemaining()) {
+                if (wrap(plaintext).getStatus() == SSLEngineResult.Status.CLOSED) return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    public boolean flushPending() throws IOException {
+        outputLock.lock();
+        try {
+            while (!pendingOutput.isEmpty()) {
+                ByteBuffer next = pendingOutput.peek();
+                channel.write(next);
+                if (next.hasRemaining()) return false;
+                pendingOutput.poll();
+            }
+            return true;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    public boolean hasPendingOutput() {
+        outputLock.lock();
+        try {
+            return !pendingOutput.isEmpty();
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    public ByteBuffer plaintext() {
+        return plaintextInput;
+    }
+
+    public ReentrantLock getInputLock() {
+        return inputLock;
+    }
+
+    public Certificate[] getPeerCertificates() throws SSLPeerUnverifiedException {
+        return engine.getSession().getPeerCertificates();
+    }
+
+    public void configureBlocking(boolean blocking) throws IOException {
+        channel.configureBlocking(blocking);
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public void close() {
+        engine.closeOutbound();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+}
@@ -0,0 +1,170 @@
+package snowy.autumn.tor.relay;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class LinkEventLoop implements Runnable {
+
+    // A small fixed number of event loops is shared between all guard connections, instead of a thread per connection.
+    private static final int EVENT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private static final LinkEventLoop[] eventLoops = new LinkEventLoop[EVENT_LOOPS];
+    private static final ReentrantLock eventLoopsLock = new ReentrantLock();
+    private static int nextEventLoop = 0;
+
+    private final Selector selector;
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    private ArrayList<Guard> pendingRegistrations = new ArrayList<>();
+    private ArrayList<Guard> pendingWrites = new ArrayList<>();
+    private ArrayList<ScheduledFlush> pendingFlushes = new ArrayList<>();
+    // Only ever accessed by the event loop thread.
+    private final ArrayList<ScheduledFlush> scheduledFlushes = new ArrayList<>();
+
+    private record ScheduledFlush(Guard guard, long deadline) {}
+
+    private LinkEventLoop() {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static LinkEventLoop next() {
+        eventLoopsLock.lock();
+        try {
+            int index = nextEventLoop;
+            nextEventLoop = (nextEventLoop + 1) % EVENT_LOOPS;
+            if (eventLoops[index] == null) {
+                eventLoops[index] = new LinkEventLoop();
+                Thread thread = new Thread(eventLoops[index], "link-event-loop-" + index);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            return eventLoops[index];
+        } finally {
+            eventLoopsLock.unlock();
+        }
+    }
+
+    public void register(Guard guard) {
+        pendingLock.lock();
+        pendingRegistrations.add(guard);
+        pendingLock.unlock();
+        selector.wakeup();
+    }
+
+    public void requestWrite(Guard guard) {
+        pendingLock.lock();
+        pendingWrites.add(guard);
+        pendingLock.unlock();
+        selector.wakeup();
+    }
+
+    public void scheduleFlush(Guard guard, long deadline) {
+        pendingLock.lock();
+        pendingFlushes.add(new ScheduledFlush(guard, deadline));
+        pendingLock.unlock();
+        selector.wakeup();
+    }
+
+    private long selectTimeout() {
+        // Returns how long the loop may block for, in milliseconds (0 means there are no deadlines to wait for).
+        long earliest = Long.MAX_VALUE;
+        for (ScheduledFlush scheduledFlush : scheduledFlushes)
+            earliest = Math.min(earliest, scheduledFlush.deadline());
+        if (earliest == Long.MAX_VALUE) return 0;
+        return Math.max(1, (earliest - System.nanoTime() + 999_999) / 1_000_000);
+    }
+
+    private void runDueFlushes() {
+        long now = System.nanoTime();
+        scheduledFlushes.removeIf(scheduledFlush -> {
+            if (scheduledFlush.deadline() - now > 0) return false;
+            try {
+                scheduledFlush.guard().flush();
+            } catch (Throwable throwable) {
+                failed(scheduledFlush.guard(), throwable);
+            }
+            return true;
+        });
+    }
+
+    private void processPending() {
+        ArrayList<Guard> registrations;
+        ArrayList<Guard> writes;
+        pendingLock.lock();
+        registrations = pendingRegistrations;
+        writes = pendingWrites;
+        scheduledFlushes.addAll(pendingFlushes);
+        pendingRegistrations = new ArrayList<>();
+        pendingWrites = new ArrayList<>();
+        pendingFlushes = new ArrayList<>();
+        pendingLock.unlock();
+
+        for (Guard guard : registrations) {
+            try {
+                int interest = SelectionKey.OP_READ | (guard.getLinkChannel().hasPendingOutput() ? SelectionKey.OP_WRITE : 0);
+                guard.getLinkChannel().getChannel().register(selector, interest, guard);
+                // Cells that arrived together with the link handshake might already be sitting in the buffers.
+                guard.onReadable();
+            } catch (ClosedChannelException e) {
+                guard.terminated();
+            } catch (Throwable throwable) {
+                failed(guard, throwable);
+            }
+        }
+        for (Guard guard : writes) {
+            SelectionKey key = guard.getLinkChannel().getChannel().keyFor(selector);
+            if (key != null && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void failed(Guard guard, Throwable throwable) {
+        // Anything thrown while handling a connection (e.g. a cell that failed to parse or didn't pass a digest check) only takes down that connection,
+        // since every other connection on this loop would otherwise stop with it.
+        guard.terminated();
+        // It is still reported the same way it would have been had it killed the thread.
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, throwable);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(selectTimeout());
+                processPending();
+                runDueFlushes();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Guard guard = (Guard) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable() && guard.onWritable())
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        if (key.isValid() && key.isReadable())
+                            guard.onReadable();
+                    } catch (CancelledKeyException e) {
+                        guard.terminated();
+                    } catch (Throwable throwable) {
+                        failed(guard, throwable);
+                    }
+                }
+            } catch (IOException e) {
+                // The selector itself failing is not something we can recover from, so every connection on this loop is lost.
+                for (SelectionKey key : selector.keys())
+                    ((Guard) key.attachment()).terminate();
+                return;
+            }
+        }
+    }
+
+}
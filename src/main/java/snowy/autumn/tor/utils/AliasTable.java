@@ -0,0 +1,70 @@
+package snowy.autumn.tor.utils;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+public class AliasTable {
+
+    // Vose's alias method: after building the table in O(n), every weighted sample takes O(1).
+    private final double[] probability;
+    private final int[] alias;
+
+    public AliasTable(double[] weights) {
+        int n = weights.length;
+        probability = new double[n];
+        alias = new int[n];
+        if (n == 0) return;
+
+        double total = 0;
+        for (double weight : weights) total += Math.max(0, weight);
+        // If nothing has any weight, then every entry is just as likely.
+        if (total <= 0) {
+            for (int i = 0; i < n; i++) {
+                probability[i] = 1;
+                alias[i] = i;
+            }
+            return;
+        }
+
+        // Scale the weights so that their average is 1, and split them into the ones below and above it.
+        double[] scaled = new double[n];
+        ArrayDeque<Integer> small = new ArrayDeque<>();
+        ArrayDeque<Integer> large = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            scaled[i] = Math.max(0, weights[i]) * n / total;
+            if (scaled[i] < 1) small.push(i);
+            else large.push(i);
+        }
+        // Every small entry is topped up with a part of a large one.
+        while (!small.isEmpty() && !large.isEmpty()) {
+            int less = small.pop();
+            int more = large.pop();
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = scaled[more] + scaled[less] - 1;
+            if (scaled[more] < 1) small.push(more);
+            else large.push(more);
+        }
+        // Whatever is left should be exactly 1, apart from rounding errors.
+        while (!large.isEmpty()) {
+            int index = large.pop();
+            probability[index] = 1;
+            alias[index] = index;
+        }
+        while (!small.isEmpty()) {
+            int index = small.pop();
+            probability[index] = 1;
+            alias[index] = index;
+        }
+    }
+
+    public int sample(Random random) {
+        int index = random.nextInt(probability.length);
+        return random.nextDouble() < probability[index] ? index : alias[index];
+    }
+
+    public int size() {
+        return probability.length;
+    }
+
+}
@@ -0,0 +1,23 @@
+package snowy.autumn.tor.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class Threads {
+
+    // Work that's handed off from the link event loops (because it might block) runs on these, so that a slow callback never stalls a loop.
+    private static final ExecutorService virtualCallbacks = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("callback-", 0).factory());
+    private static final ExecutorService platformCallbacks = Executors.newCachedThreadPool(Thread.ofPlatform().name("callback-", 0).daemon().factory());
+
+    // Whether to use virtual threads is up to each client, so it's passed in by whoever starts the thread.
+    public static Thread start(boolean virtual, String name, Runnable task) {
+        if (virtual) return Thread.ofVirtual().name(name).start(task);
+        return Thread.ofPlatform().name(name).daemon().start(task);
+    }
+
+    public static Executor callbacks(boolean virtual) {
+        return virtual ? virtualCallbacks : platformCallbacks;
+    }
+
+}
@@ -1,5 +1,6 @@
 package snowy.autumn.tor.vanguards;
 
+import snowy.autumn.tor.directory.documents.MicrodescConsensus;
 import snowy.autumn.tor.directory.documents.RouterMicrodesc;
 import snowy.autumn.tor.relay.RouterMicrodescList;
 
@@ -36,8 +37,8 @@ public class VanguardsLayer implements RouterMicrodescList {
 
     Random random = new Random();
 
-    ArrayList<Vanguard> vanguards;
-    List<RouterMicrodesc> microdescs;
+    volatile ArrayList<Vanguard> vanguards;
+    volatile List<RouterMicrodesc> microdescs;
 
     public VanguardsLayer(List<RouterMicrodesc> microdescs, int size, RouterMicrodescList... otherLayers) {
         this.vanguards = new ArrayList<>(Collections.nCopies(size, null));
@@ -124,6 +125,18 @@ public class VanguardsLayer implements RouterMicrodescList {
         }
     }
 
+    public void updateConsensus(MicrodescConsensus microdescConsensus, RouterMicrodescList... otherLayers) {
+        // Vanguards keep their rotation times as long as they're still listed, and the ones that aren't are replaced.
+        ArrayList<Vanguard> vanguards = new ArrayList<>(this.vanguards.size());
+        for (Vanguard vanguard : this.vanguards) {
+            RouterMicrodesc listedRelay = vanguard == null ? null : microdescConsensus.findWithFingerprint(vanguard.getRouterMicrodesc().getFingerprint());
+            vanguards.add(listedRelay == null ? null : new Vanguard(listedRelay, vanguard.getRotate()));
+        }
+        this.microdescs = microdescConsensus.getMicrodescs();
+        this.vanguards = vanguards;
+        fixAll(otherLayers);
+    }
+
     public ArrayList<Vanguard> getVanguards() {
         return vanguards;
     }
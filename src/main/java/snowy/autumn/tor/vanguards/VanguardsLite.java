@@ -13,16 +13,20 @@ public class VanguardsLite {
 
     GuardSystem guardSystem;
     VanguardsLayer secondLayer;
-    MicrodescConsensus microdescConsensus;
-    List<RouterMicrodesc> microdescs;
+    volatile MicrodescConsensus microdescConsensus;
+    volatile List<RouterMicrodesc> microdescs;
 
-    public VanguardsLite(MicrodescConsensus microdescConsensus) {
+    public VanguardsLite(MicrodescConsensus microdescConsensus, boolean virtualThreads) {
         this.microdescConsensus = microdescConsensus;
         microdescs = microdescConsensus.getMicrodescs();
-        guardSystem = new GuardSystem(microdescConsensus);
+        guardSystem = new GuardSystem(microdescConsensus, virtualThreads);
         secondLayer = new VanguardsLayer(microdescs, 4, guardSystem);
     }
 
+    public VanguardsLite(MicrodescConsensus microdescConsensus) {
+        this(microdescConsensus, false);
+    }
+
     public Guard.GuardInfo getEntryGuard(CanExtendTo... existingNodes) {
         Guard.GuardInfo primaryGuardInfo = null;
         while (primaryGuardInfo == null) {
@@ -65,6 +69,14 @@ public class VanguardsLite {
         throw new RuntimeException("Attempted to replace a bad vanguard that does not exist in the mesh.");
     }
 
+    public void updateConsensus(MicrodescConsensus microdescConsensus) {
+        // The guard system is updated first, so that the second layer wouldn't pick any of the guards as replacements.
+        guardSystem.updateConsensus(microdescConsensus);
+        secondLayer.updateConsensus(microdescConsensus, guardSystem);
+        this.microdescConsensus = microdescConsensus;
+        this.microdescs = microdescConsensus.getMicrodescs();
+    }
+
     public void fixAll() {
         secondLayer.fixAll(guardSystem);
     }
@@ -0,0 +1,106 @@
+package snowy.autumn.tor.circuit;
+
+import org.junit.jupiter.api.Test;
+import snowy.autumn.tor.cell.Cell;
+import snowy.autumn.tor.cell.cells.DestroyCell;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CellQueueTest {
+
+    // The cells are told apart by their reason byte, which stands in for the relay command that the circuit's waiters look for.
+    private static final byte WANTED = 99;
+    private static final int CAPACITY = 32;
+
+    private static Cell cell(int reason) {
+        return new DestroyCell(0, (byte) reason);
+    }
+
+    private static Predicate<Cell> reason(int reason) {
+        return cell -> ((DestroyCell) cell).getReason() == (byte) reason;
+    }
+
+    private static int drain(CellQueue queue) {
+        // Takes every queued cell without waiting, and returns how many there were.
+        int count = 0;
+        while (queue.take(cell -> true, 0) != null) count++;
+        return count;
+    }
+
+    @Test
+    void dropsOldestUnclaimedCellsWhenFull() {
+        CellQueue queue = new CellQueue(CAPACITY, true);
+        for (int i = 0; i < CAPACITY * 3; i++)
+            assertTrue(queue.offer(cell(i % 50)));
+        // Only the newest cells are left.
+        assertNull(queue.take(reason(0), 0));
+        assertNotNull(queue.take(reason((CAPACITY * 3 - 1) % 50), 0));
+        assertEquals(CAPACITY - 1, drain(queue));
+    }
+
+    @Test
+    void refusesCellsWhenFullWithoutDropping() {
+        CellQueue queue = new CellQueue(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++)
+            assertTrue(queue.offer(cell(i)));
+        assertFalse(queue.offer(cell(0)));
+    }
+
+    @Test
+    void burstDoesNotEvictCellThatIsWaitedFor() throws Exception {
+        CellQueue queue = new CellQueue(CAPACITY, true);
+        for (int i = 0; i < CAPACITY; i++)
+            queue.offer(cell(i));
+        CompletableFuture<Cell> taken = CompletableFuture.supplyAsync(() -> queue.take(reason(WANTED)));
+        // Wait for the reader to block.
+        Thread.sleep(100);
+        // The wanted cell arrives together with a burst of unsolicited ones, which all land before the reader gets to run again.
+        queue.offer(cell(WANTED));
+        for (int i = 0; i < CAPACITY * 4; i++)
+            queue.offer(cell(i % 50));
+        Cell cell = taken.get(10, TimeUnit.SECONDS);
+        assertNotNull(cell);
+        assertEquals(WANTED, ((DestroyCell) cell).getReason());
+    }
+
+    @Test
+    void burstDoesNotEvictCellThatIsWaitedForWithDeadline() throws Exception {
+        CellQueue queue = new CellQueue(CAPACITY, true);
+        CompletableFuture<Cell> taken = CompletableFuture.supplyAsync(() -> queue.take(reason(WANTED), System.nanoTime() + TimeUnit.SECONDS.toNanos(10)));
+        Thread.sleep(100);
+        queue.offer(cell(WANTED));
+        for (int i = 0; i < CAPACITY * 4; i++)
+            queue.offer(cell(i % 50));
+        Cell cell = taken.get(10, TimeUnit.SECONDS);
+        assertNotNull(cell);
+        assertEquals(WANTED, ((DestroyCell) cell).getReason());
+    }
+
+    @Test
+    void staysBoundedWhenEveryCellIsWanted() {
+        CellQueue queue = new CellQueue(CAPACITY, true);
+        CompletableFuture<Cell> waiting = CompletableFuture.supplyAsync(() -> queue.take(reason(WANTED), System.nanoTime() + TimeUnit.SECONDS.toNanos(1)));
+        // The reader might not be blocked yet, in which case it simply takes the first one when it gets there.
+        for (int i = 0; i < CAPACITY * 4; i++)
+            queue.offer(cell(WANTED));
+        assertNotNull(waiting.join());
+        assertTrue(drain(queue) <= CAPACITY);
+    }
+
+    @Test
+    void asyncReaderIsHandedItsCellDirectly() throws Exception {
+        CellQueue queue = new CellQueue(CAPACITY, true);
+        for (int i = 0; i < CAPACITY; i++)
+            queue.offer(cell(i));
+        CompletableFuture<Cell> taken = queue.takeAsync(reason(WANTED));
+        queue.offer(cell(WANTED));
+        for (int i = 0; i < CAPACITY * 4; i++)
+            queue.offer(cell(i % 50));
+        assertEquals(WANTED, ((DestroyCell) taken.get(10, TimeUnit.SECONDS)).getReason());
+    }
+
+}
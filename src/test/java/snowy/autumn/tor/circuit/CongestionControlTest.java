@@ -0,0 +1,164 @@
+package snowy.autumn.tor.circuit;
+
+import org.junit.jupiter.api.Test;
+import snowy.autumn.tor.directory.documents.MicrodescConsensus;
+
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CongestionControlTest {
+
+    private static final long RTT = 100_000_000;
+
+    private static CongestionControl.Params params() {
+        return CongestionControl.Params.fromConsensus(new MicrodescConsensus(new HashMap<>()));
+    }
+
+    private static int round(CongestionControl congestionControl, long rttNanos) {
+        // Fills the window, and then acknowledges everything that can be acknowledged.
+        while (congestionControl.canSend())
+            congestionControl.sent();
+        while (congestionControl.getInflight() >= congestionControl.getSendMeIncrement())
+            assertTrue(congestionControl.acknowledged(rttNanos));
+        return congestionControl.getCwnd();
+    }
+
+    @Test
+    void readsParamsFromConsensus() {
+        CongestionControl.Params params = params();
+        assertNotNull(params);
+        assertEquals(31, params.sendMeIncrement());
+        assertEquals(124, params.cwndInit());
+
+        HashMap<String, Integer> consensusParams = new HashMap<>();
+        consensusParams.put("cc_sendme_inc", 1000);
+        consensusParams.put("cc_cwnd_init", 1);
+        CongestionControl.Params clamped = CongestionControl.Params.fromConsensus(new MicrodescConsensus(consensusParams));
+        assertEquals(254, clamped.sendMeIncrement());
+        assertEquals(31, clamped.cwndInit());
+
+        consensusParams.put("cc_alg", 0);
+        assertNull(CongestionControl.Params.fromConsensus(new MicrodescConsensus(consensusParams)));
+    }
+
+    @Test
+    void parsesResponse() {
+        CongestionControl.Params params = params();
+        // No extensions means the exit doesn't do congestion control.
+        assertEquals(0, params.parseResponse(null));
+        assertEquals(0, params.parseResponse(new byte[0]));
+        assertEquals(0, params.parseResponse(new byte[]{0}));
+        // Unrelated extensions are skipped.
+        assertEquals(0, params.parseResponse(new byte[]{1, 7, 2, 1, 1}));
+        assertEquals(31, params.parseResponse(new byte[]{2, 7, 2, 1, 1, 2, 1, 31}));
+        assertEquals(0, params.parseResponse(new byte[]{1, 2, 0}));
+        // The exit may only be off by one from our increment.
+        assertEquals(31, params.parseResponse(new byte[]{1, 2, 1, 31}));
+        assertEquals(32, params.parseResponse(new byte[]{1, 2, 1, 32}));
+        assertEquals(30, params.parseResponse(new byte[]{1, 2, 1, 30}));
+        assertEquals(-1, params.parseResponse(new byte[]{1, 2, 1, 33}));
+        assertEquals(-1, params.parseResponse(new byte[]{1, 2, 1, 0}));
+        assertEquals(-1, params.parseResponse(new byte[]{1, 2, 1, (byte) 200}));
+        // Truncated extensions.
+        assertEquals(-1, params.parseResponse(new byte[]{1, 2, 5, 31}));
+        assertEquals(-1, params.parseResponse(new byte[]{2, 7, 4, 1}));
+    }
+
+    @Test
+    void requestsCongestionControl() {
+        assertArrayEquals(new byte[]{1, CongestionControl.EXTENSION_REQUEST, 0}, params().requestMessage());
+    }
+
+    @Test
+    void limitsInflightToTheWindow() {
+        CongestionControl congestionControl = new CongestionControl(params(), 31);
+        int sent = 0;
+        while (congestionControl.canSend()) {
+            congestionControl.sent();
+            sent++;
+        }
+        assertEquals(congestionControl.getCwnd(), sent);
+        assertEquals(sent, congestionControl.getInflight());
+        assertTrue(congestionControl.acknowledged(RTT));
+        assertTrue(congestionControl.canSend());
+        assertEquals(sent - 31, congestionControl.getInflight());
+    }
+
+    @Test
+    void rejectsAcknowledgingMoreThanInflight() {
+        CongestionControl congestionControl = new CongestionControl(params(), 31);
+        assertFalse(congestionControl.acknowledged(RTT));
+        for (int i = 0; i < 30; i++)
+            congestionControl.sent();
+        assertFalse(congestionControl.acknowledged(RTT));
+        assertEquals(30, congestionControl.getInflight());
+        congestionControl.sent();
+        assertTrue(congestionControl.acknowledged(RTT));
+        assertEquals(0, congestionControl.getInflight());
+        assertFalse(congestionControl.acknowledged(RTT));
+    }
+
+    @Test
+    void growsInSlowStartWhileRttIsSteady() {
+        CongestionControl.Params params = params();
+        CongestionControl congestionControl = new CongestionControl(params, 31);
+        int cwnd = congestionControl.getCwnd();
+        // Each window that is used up grows the window by half (cc_cwnd_inc_pct_ss), until cc_ss_max.
+        int next = round(congestionControl, RTT);
+        assertEquals(cwnd + cwnd / 2, next);
+        while (next < params.slowStartCwndMax()) {
+            int previous = next;
+            next = round(congestionControl, RTT);
+            assertTrue(next >= previous + previous / 2 || next == params.slowStartCwndMax(), previous + " -> " + next);
+        }
+        assertEquals(params.slowStartCwndMax(), next);
+        // After that it only grows linearly (by cc_cwnd_inc per update, of which there's about one per window).
+        for (int i = 0; i < 10; i++) {
+            int previous = next;
+            next = round(congestionControl, RTT);
+            assertTrue(next > previous && next <= previous + 2 * params.cwndIncrement(), previous + " -> " + next);
+        }
+        assertEquals(RTT, congestionControl.getMinRttNanos());
+        assertEquals(RTT, congestionControl.getEwmaRttNanos());
+    }
+
+    @Test
+    void doesNotGrowWhenTheWindowIsNotUsed() {
+        // The window counts as used up when less than cc_cwnd_full_gap SENDMEs' worth of it is left, which is always the case with the default initial window.
+        HashMap<String, Integer> consensusParams = new HashMap<>();
+        consensusParams.put("cc_cwnd_init", 500);
+        CongestionControl congestionControl = new CongestionControl(CongestionControl.Params.fromConsensus(new MicrodescConsensus(consensusParams)), 31);
+        int cwnd = congestionControl.getCwnd();
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 31; j++)
+                congestionControl.sent();
+            assertTrue(congestionControl.acknowledged(RTT));
+        }
+        assertEquals(cwnd, congestionControl.getCwnd());
+        // Once it is used, it grows.
+        assertTrue(round(congestionControl, RTT) > cwnd);
+    }
+
+    @Test
+    void leavesSlowStartWhenQueuesBuildUp() {
+        CongestionControl.Params params = params();
+        CongestionControl congestionControl = new CongestionControl(params, 31);
+        int cwnd = 0;
+        while (cwnd < 1000)
+            cwnd = round(congestionControl, RTT);
+        // The RTT doubles, so about half of the window is sitting in queues.
+        int after = round(congestionControl, 2 * RTT);
+        after = Math.min(after, round(congestionControl, 2 * RTT));
+        assertTrue(after < cwnd, after + " < " + cwnd);
+        // Out of slow start, the window only changes by cc_cwnd_inc per update.
+        int steady = round(congestionControl, RTT);
+        for (int i = 0; i < 10; i++) {
+            int next = round(congestionControl, RTT);
+            assertTrue(Math.abs(next - steady) <= params.cwndIncrement(), steady + " -> " + next);
+            steady = next;
+        }
+        assertTrue(steady < params.slowStartCwndMax());
+    }
+
+}
@@ -0,0 +1,144 @@
+package snowy.autumn.tor.circuit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import snowy.autumn.tor.cell.Cell;
+import snowy.autumn.tor.cell.cells.DestroyCell;
+import snowy.autumn.tor.cell.cells.relay.RelayCell;
+import snowy.autumn.tor.cell.cells.relay.commands.SendMeCommand;
+import snowy.autumn.tor.crypto.Cryptography;
+import snowy.autumn.tor.crypto.Keys;
+import snowy.autumn.tor.relay.Guard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SendMeTest {
+
+    // A single hop circuit, whose guard doesn't send anything but records which cells the circuit gave it.
+    // The test plays the role of the exit: it keeps the digests of the DATA cells it was sent, and answers with v1 SENDMEs.
+    private static final short STREAM_ID = 1;
+    private static final int CELLS_PER_SENDME = 100;
+
+    private final List<Cell> sent = new ArrayList<>();
+    private Keys exitKeys;
+    private Circuit circuit;
+    // The digest of every DATA cell that the exit got, in order.
+    private final List<byte[]> dataDigests = new ArrayList<>();
+    private int processed = 0;
+
+    @BeforeEach
+    void setUp() {
+        Random random = new Random(0);
+        byte[] digestForward = randomBytes(random, 20);
+        byte[] digestBackward = randomBytes(random, 20);
+        byte[] keyForward = randomBytes(random, 16);
+        byte[] keyBackward = randomBytes(random, 16);
+        byte[] KH = randomBytes(random, 20);
+        // The exit's forward digest and encryption key are the client's backward ones.
+        Keys clientKeys = new Keys(digestForward, digestBackward, keyForward, keyBackward, KH);
+        exitKeys = new Keys(digestBackward, digestForward, keyBackward, keyForward, KH);
+        Guard guard = new Guard("127.0.0.1", 0, new byte[20]) {
+            @Override
+            public boolean sendCell(Cell cell, boolean flush) {
+                sent.add(cell);
+                return true;
+            }
+        };
+        circuit = new Circuit(1, List.of(guard), List.of(clientKeys));
+        circuit.beginStream(STREAM_ID, "example.com", 80);
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private void receive() {
+        // Decrypts and digests whatever the circuit sent since the last call, the same way the exit would.
+        for (; processed < sent.size(); processed++) {
+            if (!(sent.get(processed) instanceof RelayCell.EncryptedRelayCell encryptedRelayCell)) continue;
+            byte[] body = encryptedRelayCell.serialiseCell();
+            body = Arrays.copyOfRange(body, body.length - 509, body.length);
+            Cryptography.updateInPlace(exitKeys.decryptionKey(), body);
+            Arrays.fill(body, 5, 9, (byte) 0);
+            byte[] digest = Arrays.copyOf(exitKeys.digestBackward().update(body), 20);
+            if (body[0] == RelayCell.DATA) dataDigests.add(digest);
+        }
+    }
+
+    private void sendData(int cells) {
+        for (int i = 0; i < cells; i++)
+            assertTrue(circuit.sendData(STREAM_ID, new byte[498]));
+        receive();
+    }
+
+    private void sendMe(byte[] digest) {
+        byte[] body = new SendMeCommand(circuit.circuitId, (short) 0, 1, digest).serialiseBody();
+        System.arraycopy(exitKeys.digestForward().update(body), 0, body, 5, 4);
+        Cryptography.updateInPlace(exitKeys.encryptionKey(), body);
+        circuit.addCell(new RelayCell.EncryptedRelayCell(circuit.circuitId, false, body));
+    }
+
+    private byte[] acknowledging(int cell) {
+        // The digest of the cell'th DATA cell, which is what the SENDME for it carries.
+        return dataDigests.get(cell - 1);
+    }
+
+    private boolean destroyed() {
+        return sent.stream().anyMatch(DestroyCell.class::isInstance);
+    }
+
+    @Test
+    void acceptsSendMesInOrder() {
+        sendData(2 * CELLS_PER_SENDME);
+        assertEquals(2 * CELLS_PER_SENDME, dataDigests.size());
+        sendMe(acknowledging(CELLS_PER_SENDME));
+        sendMe(acknowledging(2 * CELLS_PER_SENDME));
+        assertFalse(destroyed());
+        // The window keeps going.
+        sendData(CELLS_PER_SENDME);
+        sendMe(acknowledging(3 * CELLS_PER_SENDME));
+        assertFalse(destroyed());
+    }
+
+    @Test
+    void rejectsSendMesOutOfOrder() {
+        sendData(2 * CELLS_PER_SENDME);
+        sendMe(acknowledging(2 * CELLS_PER_SENDME));
+        assertTrue(destroyed());
+    }
+
+    @Test
+    void rejectsSendMesForOtherCells() {
+        sendData(2 * CELLS_PER_SENDME);
+        // Off by one: the exit claims to have gotten a cell other than the one it should be acknowledging.
+        sendMe(acknowledging(CELLS_PER_SENDME - 1));
+        assertTrue(destroyed());
+    }
+
+    @Test
+    void rejectsWrongDigests() {
+        sendData(CELLS_PER_SENDME);
+        byte[] digest = acknowledging(CELLS_PER_SENDME).clone();
+        digest[19] ^= 1;
+        sendMe(digest);
+        assertTrue(destroyed());
+    }
+
+    @Test
+    void rejectsSendMesForCellsThatWereNotSent() {
+        sendData(CELLS_PER_SENDME + CELLS_PER_SENDME / 2);
+        sendMe(acknowledging(CELLS_PER_SENDME));
+        assertFalse(destroyed());
+        // Only half of the next batch was sent, so there's nothing the exit could acknowledge yet.
+        sendMe(acknowledging(CELLS_PER_SENDME + CELLS_PER_SENDME / 2));
+        assertTrue(destroyed());
+    }
+
+}
@@ -0,0 +1,105 @@
+package snowy.autumn.tor.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBuildTimesTest {
+
+    // Build times drawn from a Pareto distribution with these parameters, whose 80th percentile is about 2924 ms.
+    private static final double XM = 1000;
+    private static final double ALPHA = 1.5;
+    private static final double QUANTILE = XM / Math.pow(0.2, 1 / ALPHA);
+
+    private static long buildTime(Random random) {
+        return (long) (XM / Math.pow(1 - random.nextDouble(), 1 / ALPHA));
+    }
+
+    private static void build(CircuitBuildTimes circuitBuildTimes, long buildTime) {
+        // Builds that take longer than the current timeout are abandoned, the same way CircuitManager does it.
+        long timeout = circuitBuildTimes.getTimeoutMillis();
+        if (buildTime > timeout) circuitBuildTimes.addTimeout(timeout);
+        else circuitBuildTimes.addBuildTime(buildTime);
+    }
+
+    @Test
+    void keepsDefaultUntilThereAreEnoughSamples() {
+        CircuitBuildTimes circuitBuildTimes = new CircuitBuildTimes();
+        Random random = new Random(0);
+        for (int i = 0; i < 99; i++)
+            circuitBuildTimes.addBuildTime(buildTime(random));
+        assertEquals(CircuitBuildTimes.DEFAULT_TIMEOUT_MILLIS, circuitBuildTimes.getTimeoutMillis());
+        circuitBuildTimes.addBuildTime(buildTime(random));
+        assertTrue(circuitBuildTimes.getTimeoutMillis() < CircuitBuildTimes.DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    @Test
+    void convergesToTheQuantileDespiteAbandonedBuilds() {
+        // Every build that takes longer than the timeout is only learned as "at least the timeout".
+        // If those builds were dropped (or counted as completing at the timeout), the estimate would keep shrinking towards the minimum.
+        for (long seed = 1; seed <= 5; seed++) {
+            CircuitBuildTimes circuitBuildTimes = new CircuitBuildTimes();
+            Random random = new Random(seed);
+            for (int i = 0; i < 5000; i++) {
+                build(circuitBuildTimes, buildTime(random));
+                if (i >= 1000)
+                    assertTrue(circuitBuildTimes.getTimeoutMillis() > QUANTILE * 0.75, "seed " + seed + ", build " + i + ": " + circuitBuildTimes.getTimeoutMillis());
+            }
+            assertEquals(QUANTILE, circuitBuildTimes.getTimeoutMillis(), QUANTILE * 0.15, "seed " + seed);
+        }
+    }
+
+    @Test
+    void backsOffWhenAlmostEverythingTimesOut() {
+        CircuitBuildTimes circuitBuildTimes = new CircuitBuildTimes();
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++)
+            build(circuitBuildTimes, buildTime(random));
+        long learned = circuitBuildTimes.getTimeoutMillis();
+        assertTrue(learned < CircuitBuildTimes.DEFAULT_TIMEOUT_MILLIS);
+
+        // A run of fast builds, so that none of the recent ones timed out.
+        for (int i = 0; i < 20; i++)
+            circuitBuildTimes.addBuildTime(1000);
+        learned = circuitBuildTimes.getTimeoutMillis();
+        // Then the network got a lot slower: 18 out of the last 20 builds time out.
+        for (int i = 0; i < 17; i++)
+            circuitBuildTimes.addTimeout(learned);
+        // Each of them says that builds take at least that long, which can only make the timeout longer.
+        assertTrue(circuitBuildTimes.getTimeoutMillis() >= learned);
+        assertTrue(circuitBuildTimes.getTimeoutMillis() < CircuitBuildTimes.DEFAULT_TIMEOUT_MILLIS);
+        circuitBuildTimes.addTimeout(learned);
+        assertEquals(CircuitBuildTimes.DEFAULT_TIMEOUT_MILLIS, circuitBuildTimes.getTimeoutMillis());
+        assertEquals(0, circuitBuildTimes.getSamples().length);
+
+        // Even the default isn't enough, so the next reset doubles it.
+        for (int i = 0; i < 18; i++)
+            circuitBuildTimes.addTimeout(CircuitBuildTimes.DEFAULT_TIMEOUT_MILLIS);
+        assertEquals(2 * CircuitBuildTimes.DEFAULT_TIMEOUT_MILLIS, circuitBuildTimes.getTimeoutMillis());
+    }
+
+    @Test
+    void restoresSamples() {
+        CircuitBuildTimes circuitBuildTimes = new CircuitBuildTimes();
+        Random random = new Random(0);
+        for (int i = 0; i < 1500; i++)
+            build(circuitBuildTimes, buildTime(random));
+        int[] samples = circuitBuildTimes.getSamples();
+        // Only the most recent samples are kept, and abandoned builds are stored as negative numbers.
+        assertEquals(1000, samples.length);
+        assertTrue(java.util.Arrays.stream(samples).anyMatch(sample -> sample < 0));
+
+        CircuitBuildTimes restored = new CircuitBuildTimes();
+        restored.setSamples(samples);
+        assertArrayEquals(samples, restored.getSamples());
+        assertEquals(circuitBuildTimes.getTimeoutMillis(), restored.getTimeoutMillis());
+
+        // Old cache files only have completed builds, and too few samples leave the default in place.
+        CircuitBuildTimes few = new CircuitBuildTimes();
+        few.setSamples(new int[]{1000, 2000, -3000});
+        assertEquals(CircuitBuildTimes.DEFAULT_TIMEOUT_MILLIS, few.getTimeoutMillis());
+    }
+
+}
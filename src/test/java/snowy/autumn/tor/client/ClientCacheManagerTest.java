@@ -0,0 +1,253 @@
+package snowy.autumn.tor.client;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import snowy.autumn.tor.directory.DirectoryKeys;
+import snowy.autumn.tor.directory.documents.ConsensusDiff;
+import snowy.autumn.tor.directory.documents.DirectoryKeyNetDoc;
+import snowy.autumn.tor.directory.documents.MicrodescConsensus;
+import snowy.autumn.tor.directory.documents.MicrodescStore;
+import snowy.autumn.tor.directory.documents.RouterMicrodesc;
+import snowy.autumn.tor.vanguards.VanguardsLayer;
+import snowy.autumn.tor.vanguards.VanguardsLite;
+
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientCacheManagerTest {
+
+    // The cache files in the resources were written by storeClientData as it was when each part of the format was added,
+    // all from the same state (see relay() and the assertions below): 2 authority key certificates, and a consensus with
+    // 45 relays, where relays 1-30 are guards, 31-38 are exits and the rest are middles.
+    // Newer cache files append to the format, so every older one has to stay readable.
+    private enum Format {
+        BASELINE("baseline.cache", List.of(10, 22, 30, 28, 13, 16, 11, 24, 8, 6), List.of(45, 45, 45, 45), new long[]{1793264440, 1793350840, 1793350840, 1792746040}),
+        // The raw consensus document, for fetching diffs.
+        CONSENSUS_DOCUMENT("consensus-document.cache", List.of(26, 20, 30, 8, 2, 11, 14, 10, 7, 9), List.of(5, 5, 5, 5), new long[]{1792659643, 1792746043, 1793264443, 1793005243}),
+        // Microdescriptors that aren't listed in the consensus.
+        MICRODESC_STORE("microdesc-store.cache", List.of(17, 3, 11, 1, 24, 25, 12, 20, 6, 22), List.of(13, 13, 13, 13), new long[]{1793005246, 1792746046, 1793350846, 1793350846}),
+        // Relay bandwidths and bandwidth weights.
+        BANDWIDTHS("bandwidths.cache", List.of(17, 24, 8, 30, 7, 29, 20, 27, 26, 28, 15, 18, 10, 23, 9, 11, 16, 19, 5, 13), List.of(41, 41, 41, 41), new long[]{1793350850, 1793178050, 1792746050, 1793437250}),
+        // Circuit build times.
+        BUILD_TIMES("build-times.cache", List.of(24, 20, 11, 26, 7, 12, 15, 17, 22, 28, 14, 21, 9, 27, 4, 25, 2, 23, 30, 16), List.of(40, 40, 40, 40), new long[]{1793091653, 1792832453, 1792832453, 1793091653});
+
+        final String file;
+        // The relays (by id) that the guard system had sampled, and the second layer vanguards with their rotation times.
+        final List<Integer> sampled;
+        final List<Integer> vanguards;
+        final long[] rotate;
+
+        Format(String file, List<Integer> sampled, List<Integer> vanguards, long[] rotate) {
+            this.file = file;
+            this.sampled = sampled;
+            this.vanguards = vanguards;
+            this.rotate = rotate;
+        }
+
+        boolean has(Format format) {
+            return compareTo(format) >= 0;
+        }
+    }
+
+    private static final long UNLISTED_LAST_LISTED = 4102444800L;
+
+    private static int id(RouterMicrodesc routerMicrodesc) {
+        return routerMicrodesc.getFingerprint()[0];
+    }
+
+    private static RouterMicrodesc relay(int id, byte flags) {
+        // The same relays that the cache files were written with.
+        byte[] fingerprint = new byte[20];
+        fingerprint[0] = (byte) id;
+        fingerprint[19] = 0x55;
+        byte[] ed25519Id = new byte[32];
+        ed25519Id[0] = (byte) id;
+        ed25519Id[31] = 1;
+        byte[] ntorOnionKey = new byte[32];
+        ntorOnionKey[0] = (byte) id;
+        ntorOnionKey[31] = 2;
+        byte[] microdescHash = new byte[32];
+        microdescHash[0] = (byte) id;
+        microdescHash[31] = 3;
+        boolean ipv6 = id % 4 == 0;
+        byte[] ipv6Host = ipv6 ? new byte[]{0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) id} : null;
+        byte[][] family = id % 3 == 0 ? new byte[][]{fingerprint.clone(), new byte[20]} : new byte[0][];
+        RouterMicrodesc.ExitPolicy exitPolicy = (flags & RouterMicrodesc.Flags.EXIT) != 0 ? RouterMicrodesc.ExitPolicy.parse("p accept 80,443,1000-2000") : null;
+        return new RouterMicrodesc(flags, new byte[]{10, 0, 0, (byte) id}, (short) (9000 + id), fingerprint, ed25519Id, ntorOnionKey, microdescHash,
+                ipv6Host, (short) (ipv6 ? 9100 + id : -1), family, exitPolicy);
+    }
+
+    private static Path resource(String name) {
+        try {
+            return Path.of(ClientCacheManagerTest.class.getResource(name).toURI());
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static TorClient.ClientState load(Path path) {
+        TorClient.ClientState clientState = new TorClient.ClientState();
+        assertTrue(new ClientCacheManager(path, new Logger(false)).loadClientData(clientState));
+        return clientState;
+    }
+
+    private static void assertConsensus(TorClient.ClientState clientState) {
+        DirectoryKeyNetDoc[] directoryKeyNetDocs = clientState.authorityKeys.getDirectoryKeyNetDocs();
+        assertEquals(2, directoryKeyNetDocs.length);
+        for (int i = 0; i < 2; i++) {
+            byte[] fingerprint = new byte[20];
+            fingerprint[0] = (byte) (0x40 + i);
+            DirectoryKeyNetDoc directoryKeyNetDoc = clientState.authorityKeys.getDirectoryKeys(fingerprint);
+            assertEquals(140 + i, directoryKeyNetDoc.getDirectorySigningKey().length);
+            assertEquals(i + 1, directoryKeyNetDoc.getDirectorySigningKey()[0]);
+            assertEquals(1750000000L + i, directoryKeyNetDoc.getPublished());
+            assertEquals(UNLISTED_LAST_LISTED + i, directoryKeyNetDoc.getExpires());
+        }
+
+        MicrodescConsensus microdescConsensus = clientState.microdescConsensus;
+        assertEquals(1760000000L, microdescConsensus.getValidAfter());
+        assertEquals(1760003600L, microdescConsensus.getFreshUntil());
+        assertEquals(1760010800L, microdescConsensus.getValidUntil());
+        byte[] previousSRV = new byte[32];
+        Arrays.fill(previousSRV, (byte) 7);
+        byte[] currentSRV = new byte[32];
+        Arrays.fill(currentSRV, (byte) 9);
+        assertArrayEquals(previousSRV, microdescConsensus.getPreviousSRV());
+        assertArrayEquals(currentSRV, microdescConsensus.getCurrentSRV());
+        assertEquals(1000, microdescConsensus.getParams().get("circwindow"));
+        assertEquals(1, microdescConsensus.getParams().get("sendme_emit_min_version"));
+
+        assertEquals(45, microdescConsensus.getMicrodescs().size());
+        for (int id = 1; id <= 45; id++) {
+            byte flags = id <= 30 ? (byte) (RouterMicrodesc.Flags.GUARD | RouterMicrodesc.Flags.FAST | RouterMicrodesc.Flags.V2DIR)
+                    : id <= 38 ? (byte) (RouterMicrodesc.Flags.EXIT | RouterMicrodesc.Flags.FAST) : RouterMicrodesc.Flags.FAST;
+            RouterMicrodesc expected = relay(id, flags);
+            RouterMicrodesc loaded = microdescConsensus.findWithHash(expected.getMicrodescHash());
+            assertNotNull(loaded, "relay " + id);
+            assertEquals(flags, loaded.getFlags());
+            assertEquals(expected.getHost(), loaded.getHost());
+            assertEquals(expected.getPort(), loaded.getPort());
+            assertArrayEquals(expected.getFingerprint(), loaded.getFingerprint());
+            assertArrayEquals(expected.getEd25519Id(), loaded.getEd25519Id());
+            assertArrayEquals(expected.getNtorOnionKey(), loaded.getNtorOnionKey());
+            assertEquals(expected.hasIpv6Address(), loaded.hasIpv6Address());
+            if (expected.hasIpv6Address()) {
+                assertEquals(expected.getIpv6host(), loaded.getIpv6host());
+                assertEquals(expected.getIpv6port(), loaded.getIpv6port());
+            }
+            assertArrayEquals(expected.getFamily(), loaded.getFamily());
+            assertEquals(expected.getIpv4ExitPolicy() != null, loaded.getIpv4ExitPolicy() != null);
+            if (loaded.getIpv4ExitPolicy() != null) {
+                assertTrue(loaded.getIpv4ExitPolicy().check(443));
+                assertTrue(loaded.getIpv4ExitPolicy().check(1500));
+                assertFalse(loaded.getIpv4ExitPolicy().check(22));
+            }
+        }
+    }
+
+    private static void assertGuards(TorClient.ClientState clientState, Format format) {
+        // The sample is topped up after loading, but whatever was sampled before comes first.
+        List<Integer> sampled = clientState.vanguardsLite.getGuardSystem().getSampled().stream().map(ClientCacheManagerTest::id).toList();
+        assertEquals(format.sampled, sampled.subList(0, format.sampled.size()));
+        List<VanguardsLayer.Vanguard> vanguards = clientState.vanguardsLite.getSecondLayer().getVanguards();
+        assertEquals(format.vanguards.size(), vanguards.size());
+        long now = Instant.now().getEpochSecond();
+        for (int i = 0; i < vanguards.size(); i++) {
+            // Vanguards are replaced once they're due, and the cache files can be older than that.
+            if (format.rotate[i] <= now) continue;
+            assertEquals(format.vanguards.get(i), id(vanguards.get(i).getRouterMicrodesc()));
+            assertEquals(format.rotate[i], vanguards.get(i).getRotate());
+        }
+    }
+
+    @Test
+    void readsEveryFormat() {
+        for (Format format : Format.values()) {
+            TorClient.ClientState clientState = load(resource(format.file));
+            assertConsensus(clientState);
+            assertGuards(clientState, format);
+            MicrodescConsensus microdescConsensus = clientState.microdescConsensus;
+
+            if (format.has(Format.CONSENSUS_DOCUMENT)) {
+                assertNotNull(microdescConsensus.getDocument(), format.file);
+                assertArrayEquals(ConsensusDiff.digestAsSigned(microdescConsensus.getDocument()), microdescConsensus.getDigestAsSigned());
+            }
+            else assertNull(microdescConsensus.getDocument(), format.file);
+
+            List<MicrodescStore.StoredMicrodesc> unlisted = clientState.microdescStore.getUnlisted(microdescConsensus);
+            if (format.has(Format.MICRODESC_STORE)) {
+                assertEquals(3, unlisted.size(), format.file);
+                for (MicrodescStore.StoredMicrodesc stored : unlisted)
+                    assertEquals(UNLISTED_LAST_LISTED + id(stored.microdesc()), stored.lastListed());
+            }
+            else assertEquals(0, unlisted.size(), format.file);
+
+            for (RouterMicrodesc routerMicrodesc : microdescConsensus.getMicrodescs())
+                assertEquals(format.has(Format.BANDWIDTHS) ? 1000 * id(routerMicrodesc) : 0, routerMicrodesc.getBandwidth(), format.file);
+            if (format.has(Format.BANDWIDTHS)) {
+                assertEquals(5900, microdescConsensus.getBandwidthWeights().get("Wgg"));
+                assertEquals(0, microdescConsensus.getBandwidthWeights().get("Wgd"));
+                assertEquals(4, microdescConsensus.getBandwidthWeights().size());
+            }
+
+            int[] buildTimes = clientState.circuitBuildTimes.getSamples();
+            if (format.has(Format.BUILD_TIMES)) {
+                assertEquals(150, buildTimes.length, format.file);
+                for (int i = 0; i < buildTimes.length; i++)
+                    assertEquals(1000 + 17 * i, buildTimes[i]);
+                assertTrue(clientState.circuitBuildTimes.getTimeoutMillis() < CircuitBuildTimes.DEFAULT_TIMEOUT_MILLIS);
+            }
+            else {
+                assertEquals(0, buildTimes.length, format.file);
+                assertEquals(CircuitBuildTimes.DEFAULT_TIMEOUT_MILLIS, clientState.circuitBuildTimes.getTimeoutMillis());
+            }
+        }
+    }
+
+    @Test
+    void roundTrips(@TempDir Path directory) {
+        // Loads the oldest cache file, and checks that the current format keeps everything that is added to it since.
+        TorClient.ClientState clientState = load(resource(Format.BASELINE.file));
+        MicrodescConsensus microdescConsensus = clientState.microdescConsensus;
+        byte[] document = "network-status-version 3 microdesc\ndirectory-signature sha256 A B\nsignature\n".getBytes();
+        microdescConsensus.setDocument(document, ConsensusDiff.digestAsSigned(document));
+        clientState.microdescStore.add(relay(60, RouterMicrodesc.Flags.FAST), UNLISTED_LAST_LISTED);
+        for (RouterMicrodesc routerMicrodesc : microdescConsensus.getMicrodescs())
+            routerMicrodesc.setBandwidth(10 * id(routerMicrodesc));
+        HashMap<String, Integer> bandwidthWeights = new HashMap<>();
+        bandwidthWeights.put("Wmg", 4100);
+        microdescConsensus.setBandwidthWeights(bandwidthWeights);
+        int[] buildTimes = new int[120];
+        for (int i = 0; i < buildTimes.length; i++)
+            buildTimes[i] = i % 10 == 0 ? -3000 : 1000 + i;
+        clientState.circuitBuildTimes.setSamples(buildTimes);
+
+        Path path = directory.resolve("cache");
+        ClientCacheManager clientCacheManager = new ClientCacheManager(path, new Logger(false));
+        assertEquals(ClientCacheManager.NEW_CACHE, clientCacheManager.init());
+        clientCacheManager.storeClientData(clientState);
+        TorClient.ClientState loaded = load(path);
+
+        assertConsensus(loaded);
+        assertEquals(clientState.vanguardsLite.getGuardSystem().getSampled().stream().map(ClientCacheManagerTest::id).toList(),
+                loaded.vanguardsLite.getGuardSystem().getSampled().stream().map(ClientCacheManagerTest::id).toList());
+        assertArrayEquals(document, loaded.microdescConsensus.getDocument());
+        assertArrayEquals(microdescConsensus.getDigestAsSigned(), loaded.microdescConsensus.getDigestAsSigned());
+        List<MicrodescStore.StoredMicrodesc> unlisted = loaded.microdescStore.getUnlisted(loaded.microdescConsensus);
+        assertEquals(1, unlisted.size());
+        assertEquals(60, id(unlisted.getFirst().microdesc()));
+        for (RouterMicrodesc routerMicrodesc : loaded.microdescConsensus.getMicrodescs())
+            assertEquals(10 * id(routerMicrodesc), routerMicrodesc.getBandwidth());
+        assertEquals(bandwidthWeights, loaded.microdescConsensus.getBandwidthWeights());
+        assertArrayEquals(buildTimes, loaded.circuitBuildTimes.getSamples());
+        assertEquals(clientState.circuitBuildTimes.getTimeoutMillis(), loaded.circuitBuildTimes.getTimeoutMillis());
+    }
+
+}
@@ -0,0 +1,129 @@
+package snowy.autumn.tor.client;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import snowy.autumn.tor.cell.Cell;
+import snowy.autumn.tor.cell.cells.CreateFastCell;
+import snowy.autumn.tor.cell.cells.CreatedFastCell;
+import snowy.autumn.tor.cell.cells.relay.RelayCell;
+import snowy.autumn.tor.cell.cells.relay.commands.ConnectedCommand;
+import snowy.autumn.tor.cell.cells.relay.commands.DataCommand;
+import snowy.autumn.tor.cell.cells.relay.commands.EndCommand;
+import snowy.autumn.tor.circuit.Circuit;
+import snowy.autumn.tor.crypto.Cryptography;
+import snowy.autumn.tor.crypto.Keys;
+import snowy.autumn.tor.relay.Guard;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionIOTest {
+
+    // A single hop circuit whose guard only answers the CREATE_FAST. The test plays the role of the exit, and delivers its cells from
+    // a thread that stands in for the link's event loop.
+    private static final short STREAM_ID = 1;
+    private static final String EVENT_LOOP = "link-event-loop-test";
+
+    private Keys exitKeys;
+    private Circuit circuit;
+    private ConnectionIO connectionIO;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Guard guard = new Guard("127.0.0.1", 0, new byte[20]) {
+            @Override
+            public boolean sendCell(Cell cell, boolean flush) {
+                // Answers the CREATE_FAST the way the relay would, and keeps its side of the keys.
+                if (cell instanceof CreateFastCell createFastCell) {
+                    byte[] keyMaterial = new byte[20];
+                    new Random(0).nextBytes(keyMaterial);
+                    Keys keys = Cryptography.kdfTor(createFastCell.getKeyMaterial(), keyMaterial);
+                    // The ciphers are AES-CTR, so the client's encryption key is the relay's decryption key and vice versa.
+                    exitKeys = new Keys(keys.digestBackward(), keys.digestForward(), keys.decryptionKey(), keys.encryptionKey(), keys.KH());
+                    circuit.addCell(new CreatedFastCell(circuit.getCircuitId(), keyMaterial, keys.KH()));
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+        };
+        circuit = new Circuit(1, guard);
+        assertTrue(circuit.createFast());
+        CompletableFuture<Integer> attempt = circuit.beginStream(STREAM_ID, "example.com", 80);
+        deliver(new ConnectedCommand(circuit.getCircuitId(), STREAM_ID));
+        assertEquals(Circuit.STREAM_SUCCESSFUL, attempt.get(10, TimeUnit.SECONDS));
+        connectionIO = new ConnectionIO(circuit, STREAM_ID, false);
+    }
+
+    private void deliver(RelayCell relayCell) throws InterruptedException {
+        // Encrypts the cell the same way the exit would, and hands it to the circuit from the stand-in event loop.
+        byte[] body = relayCell.serialiseBody();
+        System.arraycopy(exitKeys.digestForward().update(body), 0, body, 5, 4);
+        Cryptography.updateInPlace(exitKeys.encryptionKey(), body);
+        Thread eventLoop = Thread.ofPlatform().name(EVENT_LOOP).start(() ->
+                circuit.addCell(new RelayCell.EncryptedRelayCell(circuit.getCircuitId(), false, body)));
+        // Whatever the client does with the cell must not hold up the event loop.
+        eventLoop.join(10_000);
+        assertFalse(eventLoop.isAlive(), "the event loop was blocked");
+    }
+
+    private void deliverData(int index) throws InterruptedException {
+        deliver(new DataCommand(circuit.getCircuitId(), STREAM_ID, new byte[]{(byte) index}));
+    }
+
+    @Test
+    void asyncReadsAreNotCompletedOnTheEventLoop() throws Exception {
+        CompletableFuture<String> thread = connectionIO.readAsync().thenApply(data -> Thread.currentThread().getName());
+        deliverData(0);
+        assertNotEquals(EVENT_LOOP, thread.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void dataHandlerMayBlock() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        LinkedBlockingQueue<String> threads = new LinkedBlockingQueue<>();
+        connectionIO.onData(data -> {
+            threads.add(Thread.currentThread().getName());
+            // Stands in for a write that waits for the package window, which is only opened by a later cell.
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {}
+        });
+        deliverData(0);
+        assertNotEquals(EVENT_LOOP, threads.poll(10, TimeUnit.SECONDS));
+        // The event loop is still free to deliver more cells while the handler is blocked.
+        deliverData(1);
+        release.countDown();
+        assertNotEquals(EVENT_LOOP, threads.poll(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void dataIsHandledInOrder() throws Exception {
+        // Some of the data is already queued once the handler is set, and the rest arrives afterwards.
+        deliverData(0);
+        deliverData(1);
+        LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        CountDownLatch closed = new CountDownLatch(1);
+        connectionIO.onData(data -> {
+            if (data == null) closed.countDown();
+            else received.add(data);
+        });
+        for (int i = 2; i < 50; i++)
+            deliverData(i);
+        deliver(new EndCommand(circuit.getCircuitId(), STREAM_ID, EndCommand.EndReason.REASON_DONE.getReason()));
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        assertEquals(50, received.size());
+        for (int i = 0; i < 50; i++)
+            assertEquals(i, received.poll()[0]);
+        assertFalse(connectionIO.isConnected());
+    }
+
+}
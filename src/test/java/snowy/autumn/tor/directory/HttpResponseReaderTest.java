@@ -0,0 +1,126 @@
+package snowy.autumn.tor.directory;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpResponseReaderTest {
+
+    private static byte[] response(String head, byte[] body) {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.writeBytes(head.getBytes(StandardCharsets.ISO_8859_1));
+        response.writeBytes(body);
+        return response.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(compressed, new Deflater(Deflater.BEST_COMPRESSION))) {
+            deflaterOutputStream.write(data);
+        } catch (java.io.IOException e) {
+            throw new RuntimeException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] document(int length) {
+        // Compressible, but not trivially so.
+        Random random = new Random(0);
+        byte[] document = new byte[length];
+        for (int i = 0; i < length; i++)
+            document[i] = (byte) ('a' + random.nextInt(6));
+        return document;
+    }
+
+    private static ByteArrayOutputStream read(HttpResponseReader reader, ByteArrayOutputStream body, byte[] response, int chunkSize) {
+        // The reader gets the response in pieces, the same way it arrives in DATA cells.
+        for (int i = 0; i < response.length; i += chunkSize)
+            reader.read(response, i, Math.min(chunkSize, response.length - i));
+        return body;
+    }
+
+    @Test
+    void readsPlainBodySplitAcrossReads() {
+        byte[] document = document(100_000);
+        byte[] response = response("HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\nX-Your-Address-Is: 1.2.3.4\r\n\r\n", document);
+        // Every chunk size splits the head (including its terminating empty line) at a different place.
+        for (int chunkSize : new int[]{1, 2, 3, 7, 498, response.length}) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            HttpResponseReader reader = new HttpResponseReader(body::write);
+            read(reader, body, response, chunkSize);
+            assertTrue(reader.isHeadComplete());
+            assertEquals(200, reader.getStatusCode());
+            assertEquals("text/plain", reader.getHeader("content-type"));
+            assertEquals("1.2.3.4", reader.getHeader("X-YOUR-ADDRESS-IS"));
+            assertTrue(reader.isBodyValid());
+            assertArrayEquals(document, body.toByteArray(), "chunk size " + chunkSize);
+        }
+    }
+
+    @Test
+    void inflatesDeflateBody() {
+        byte[] document = document(200_000);
+        byte[] response = response("HTTP/1.0 200 OK\r\nContent-Encoding: deflate\r\n\r\n", deflate(document));
+        for (int chunkSize : new int[]{1, 498, response.length}) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            HttpResponseReader reader = new HttpResponseReader(body::write);
+            read(reader, body, response, chunkSize);
+            assertTrue(reader.isBodyValid());
+            assertArrayEquals(document, body.toByteArray(), "chunk size " + chunkSize);
+        }
+    }
+
+    @Test
+    void detectsTruncatedDeflateBody() {
+        byte[] document = document(200_000);
+        byte[] compressed = deflate(document);
+        byte[] response = response("HTTP/1.0 200 OK\r\nContent-Encoding: x-deflate\r\n\r\n", Arrays.copyOf(compressed, compressed.length / 2));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpResponseReader reader = new HttpResponseReader(body::write);
+        read(reader, body, response, 498);
+        assertFalse(reader.isBodyValid());
+        assertTrue(body.size() < document.length);
+    }
+
+    @Test
+    void detectsCorruptDeflateBody() {
+        byte[] compressed = deflate(document(10_000));
+        for (int i = 2; i < compressed.length; i += 3)
+            compressed[i] ^= 0x5A;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpResponseReader reader = new HttpResponseReader(body::write);
+        read(reader, body, response("HTTP/1.0 200 OK\r\nContent-Encoding: deflate\r\n\r\n", compressed), 498);
+        assertFalse(reader.isBodyValid());
+    }
+
+    @Test
+    void dropsBodyWithUnsupportedEncoding() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpResponseReader reader = new HttpResponseReader(body::write);
+        read(reader, body, response("HTTP/1.0 200 OK\r\nContent-Encoding: x-zstd\r\n\r\n", document(1000)), 498);
+        assertFalse(reader.isBodyValid());
+        assertEquals(0, body.size());
+    }
+
+    @Test
+    void handlesTruncatedHeadAndErrorStatus() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpResponseReader reader = new HttpResponseReader(body::write);
+        reader.read("HTTP/1.0 404 Not found\r\nContent-".getBytes(StandardCharsets.ISO_8859_1));
+        assertFalse(reader.isHeadComplete());
+        assertEquals(-1, reader.getStatusCode());
+        reader.read("Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        assertTrue(reader.isHeadComplete());
+        assertEquals(404, reader.getStatusCode());
+        assertEquals("0", reader.getHeader("Content-Length"));
+        assertEquals(0, body.size());
+    }
+
+}
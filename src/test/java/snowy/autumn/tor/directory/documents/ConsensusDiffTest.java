@@ -0,0 +1,179 @@
+package snowy.autumn.tor.directory.documents;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConsensusDiffTest {
+
+    private static final String BASE = """
+            network-status-version 3 microdesc
+            valid-after 2026-10-18 10:00:00
+            r relay1 AAAA
+            m aaaa
+            r relay2 BBBB
+            m bbbb
+            r relay3 CCCC
+            m cccc
+            directory-footer
+            directory-signature sha256 FINGERPRINT KEY
+            -----BEGIN SIGNATURE-----
+            old
+            -----END SIGNATURE-----
+            """;
+
+    private static final String TARGET = """
+            network-status-version 3 microdesc
+            valid-after 2026-10-18 11:00:00
+            r relay1 AAAA
+            m aaaa
+            r relay3 CCCC
+            m cccc2
+            r relay4 DDDD
+            m dddd
+            directory-footer
+            directory-signature sha256 FINGERPRINT KEY
+            -----BEGIN SIGNATURE-----
+            new
+            -----END SIGNATURE-----
+            """;
+
+    // The commands that turn BASE into TARGET, listed from the end of the document to its start.
+    private static final String COMMANDS = """
+            12c
+            new
+            .
+            8,8c
+            m cccc2
+            r relay4 DDDD
+            m dddd
+            .
+            5,6d
+            2c
+            valid-after 2026-10-18 11:00:00
+            .
+            """;
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] digest(String document) {
+        return ConsensusDiff.digestAsSigned(bytes(document));
+    }
+
+    private static String diff(byte[] from, byte[] to, String commands) {
+        return ConsensusDiff.DIFF_VERSION_LINE + "\nhash " + HexFormat.of().formatHex(from) + " " + HexFormat.of().formatHex(to) + "\n" + commands;
+    }
+
+    @Test
+    void appliesDiff() {
+        byte[] result = ConsensusDiff.apply(bytes(BASE), digest(BASE), bytes(diff(digest(BASE), digest(TARGET), COMMANDS)));
+        assertNotNull(result);
+        assertEquals(TARGET, new String(result, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void appliesAppendsAndDollarRanges() {
+        String base = "a\nb\ndirectory-signature x\n";
+        String target = "a\nb\nc\ndirectory-signature x\nsig\n";
+        String commands = "$a\nsig\n.\n2a\nc\n.\n";
+        byte[] result = ConsensusDiff.apply(bytes(base), digest(base), bytes(diff(digest(base), digest(target), commands)));
+        assertEquals(target, new String(result, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void digestOnlyCoversTheSignedPart() {
+        // Signatures aren't covered by the digest, so documents that only differ in them have the same one.
+        assertArrayEquals(digest(BASE), digest(BASE.replace("old", "other")));
+        assertFalse(java.util.Arrays.equals(digest(BASE), digest(TARGET)));
+        assertNull(ConsensusDiff.digestAsSigned(bytes("no signature here\n")));
+    }
+
+    @Test
+    void rejectsDiffForAnotherBase() {
+        byte[] otherDigest = digest(TARGET);
+        assertNull(ConsensusDiff.apply(bytes(BASE), digest(BASE), bytes(diff(otherDigest, digest(TARGET), COMMANDS))));
+    }
+
+    @Test
+    void rejectsDiffThatDoesNotProduceTheTargetDigest() {
+        byte[] wrongTarget = digest(BASE);
+        assertNull(ConsensusDiff.apply(bytes(BASE), digest(BASE), bytes(diff(digest(BASE), wrongTarget, COMMANDS))));
+    }
+
+    @Test
+    void rejectsCommandsThatAreOutOfOrder() {
+        // Same commands, but going up the document instead of down.
+        String ascending = """
+                2c
+                valid-after 2026-10-18 11:00:00
+                .
+                5,6d
+                8,8c
+                m cccc2
+                r relay4 DDDD
+                m dddd
+                .
+                12c
+                new
+                .
+                """;
+        assertNull(ConsensusDiff.apply(bytes(BASE), digest(BASE), bytes(diff(digest(BASE), digest(TARGET), ascending))));
+        // Overlapping ranges aren't allowed either.
+        assertNull(ConsensusDiff.apply(bytes(BASE), digest(BASE), bytes(diff(digest(BASE), digest(TARGET), "6,8d\n5,6d\n"))));
+    }
+
+    @Test
+    void rejectsMalformedDiffs() {
+        byte[] base = bytes(BASE);
+        byte[] from = digest(BASE);
+        byte[] to = digest(TARGET);
+        // Unterminated added lines.
+        assertNull(ConsensusDiff.apply(base, from, bytes(diff(from, to, "2c\nvalid-after 2026-10-18 11:00:00\n"))));
+        // Unknown command.
+        assertNull(ConsensusDiff.apply(base, from, bytes(diff(from, to, "2x\n"))));
+        // Ranges outside the document, or backwards.
+        assertNull(ConsensusDiff.apply(base, from, bytes(diff(from, to, "20d\n"))));
+        assertNull(ConsensusDiff.apply(base, from, bytes(diff(from, to, "6,5d\n"))));
+        assertNull(ConsensusDiff.apply(base, from, bytes(diff(from, to, "0d\n"))));
+        assertNull(ConsensusDiff.apply(base, from, bytes(diff(from, to, "a,bd\n"))));
+        // Broken headers.
+        assertNull(ConsensusDiff.apply(base, from, bytes("network-status-diff-version 2\nhash 00 00\n")));
+        assertNull(ConsensusDiff.apply(base, from, bytes(ConsensusDiff.DIFF_VERSION_LINE + "\nhash zz zz\n")));
+        assertNull(ConsensusDiff.apply(base, from, bytes(ConsensusDiff.DIFF_VERSION_LINE + "\n")));
+    }
+
+    @Test
+    void receiverSeparatesDiffsFromDocuments() {
+        ByteArrayOutputStream documents = new ByteArrayOutputStream();
+        ConsensusDiff.Receiver diffReceiver = new ConsensusDiff.Receiver(documents::write);
+        byte[] diff = bytes(diff(digest(BASE), digest(TARGET), COMMANDS));
+        // Delivered a few bytes at a time, so that the first read isn't enough to decide.
+        for (int i = 0; i < diff.length; i += 5)
+            diffReceiver.accept(diff, i, Math.min(5, diff.length - i));
+        assertTrue(diffReceiver.isDiff());
+        assertArrayEquals(diff, diffReceiver.getDiff());
+        assertEquals(0, documents.size());
+
+        ConsensusDiff.Receiver documentReceiver = new ConsensusDiff.Receiver(documents::write);
+        byte[] document = bytes(TARGET);
+        for (int i = 0; i < document.length; i += 5)
+            documentReceiver.accept(document, i, Math.min(5, document.length - i));
+        assertFalse(documentReceiver.isDiff());
+        assertNull(documentReceiver.getDiff());
+        assertArrayEquals(document, documents.toByteArray());
+
+        // Bodies that are too short to tell apart are documents.
+        documents.reset();
+        ConsensusDiff.Receiver shortReceiver = new ConsensusDiff.Receiver(documents::write);
+        shortReceiver.accept(bytes("abc"), 0, 3);
+        assertFalse(shortReceiver.isDiff());
+        assertEquals("abc", documents.toString(StandardCharsets.ISO_8859_1));
+    }
+
+}
@@ -0,0 +1,84 @@
+package snowy.autumn.tor.directory.documents;
+
+import org.junit.jupiter.api.Test;
+import snowy.autumn.tor.circuit.CanExtendTo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WeightedRelaysTest {
+
+    private static RouterMicrodesc relay(int id, byte flags, int bandwidth) {
+        byte[] fingerprint = new byte[20];
+        fingerprint[0] = (byte) id;
+        byte[] microdescHash = new byte[32];
+        microdescHash[0] = (byte) id;
+        RouterMicrodesc microdesc = new RouterMicrodesc(flags, new byte[]{127, 0, 0, 1}, (short) (9000 + id), fingerprint, new byte[32], new byte[32], microdescHash,
+                null, (short) 0, new byte[0][], null);
+        microdesc.setBandwidth(bandwidth);
+        return microdesc;
+    }
+
+    private static MicrodescConsensus consensus(List<RouterMicrodesc> microdescs) {
+        return new MicrodescConsensus(0, 0, 0, new byte[32], new byte[32], new HashMap<>(), new ArrayList<>(microdescs));
+    }
+
+    @Test
+    void picksInProportionToBandwidth() {
+        List<RouterMicrodesc> relays = List.of(relay(1, RouterMicrodesc.Flags.FAST, 100), relay(2, RouterMicrodesc.Flags.FAST, 300));
+        WeightedRelays weightedRelays = new WeightedRelays(relays, WeightedRelays.MIDDLE, consensus(relays));
+        Random random = new Random(0);
+        int first = 0;
+        for (int i = 0; i < 100_000; i++)
+            if (weightedRelays.pick(random) == relays.get(0)) first++;
+        assertEquals(25_000, first, 1000);
+    }
+
+    @Test
+    void appliesPositionWeights() {
+        // Exits that aren't guards get no weight for the guard position, unless the consensus says otherwise.
+        RouterMicrodesc guard = relay(1, RouterMicrodesc.Flags.GUARD, 100);
+        RouterMicrodesc exit = relay(2, RouterMicrodesc.Flags.EXIT, 100_000);
+        List<RouterMicrodesc> relays = List.of(guard, exit);
+        WeightedRelays weightedRelays = new WeightedRelays(relays, WeightedRelays.GUARD, consensus(relays));
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++)
+            assertSame(guard, weightedRelays.pick(random));
+    }
+
+    @Test
+    void fallsBackToRemainingRelaysWhenTheHeavyOnesAreExcluded() {
+        // The excluded relays carry nearly all the weight, so rejection sampling alone would almost never get past them.
+        ArrayList<RouterMicrodesc> relays = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            relays.add(relay(i, RouterMicrodesc.Flags.FAST, 1_000_000));
+        RouterMicrodesc light = relay(10, RouterMicrodesc.Flags.FAST, 1);
+        RouterMicrodesc lighter = relay(11, RouterMicrodesc.Flags.FAST, 1);
+        relays.add(light);
+        relays.add(lighter);
+        WeightedRelays weightedRelays = new WeightedRelays(relays, WeightedRelays.MIDDLE, consensus(relays));
+        CanExtendTo[] excluded = relays.subList(0, 4).toArray(CanExtendTo[]::new);
+        Random random = new Random(0);
+        int lightPicks = 0;
+        for (int i = 0; i < 10_000; i++) {
+            RouterMicrodesc picked = weightedRelays.pick(random, excluded);
+            assertTrue(picked == light || picked == lighter);
+            if (picked == light) lightPicks++;
+        }
+        // The remaining relays are still weighted against each other.
+        assertEquals(5000, lightPicks, 400);
+    }
+
+    @Test
+    void returnsNullWhenEverythingIsExcluded() {
+        List<RouterMicrodesc> relays = List.of(relay(1, RouterMicrodesc.Flags.FAST, 10), relay(2, RouterMicrodesc.Flags.FAST, 20));
+        WeightedRelays weightedRelays = new WeightedRelays(relays, WeightedRelays.MIDDLE, consensus(relays));
+        assertNull(weightedRelays.pick(new Random(0), relays.toArray(CanExtendTo[]::new)));
+        assertNull(new WeightedRelays(List.of(), WeightedRelays.MIDDLE, consensus(List.of())).pick(new Random(0)));
+    }
+
+}
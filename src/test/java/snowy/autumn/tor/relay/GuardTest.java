@@ -0,0 +1,234 @@
+package snowy.autumn.tor.relay;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import snowy.autumn.tor.cell.Cell;
+import snowy.autumn.tor.cell.cells.DestroyCell;
+import snowy.autumn.tor.cell.cells.relay.RelayCell;
+import snowy.autumn.tor.circuit.Circuit;
+
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GuardTest {
+
+    private static final int CELL_LENGTH = 4 + 1 + Cell.FIXED_CELL_BODY_LENGTH;
+
+    private LoopbackTlsServer server;
+    private Guard guard;
+    private SSLSocket serverSocket;
+    private RecordingCircuit circuit;
+    private CountDownLatch releaseEventLoop;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new LoopbackTlsServer();
+        guard = new Guard("127.0.0.1", server.getPort(), new byte[20]);
+        serverSocket = server.connect(guard);
+        circuit = new RecordingCircuit(1, guard);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (releaseEventLoop != null) releaseEventLoop.countDown();
+        guard.terminate();
+        server.close();
+    }
+
+    private static byte[] variableLengthCell(byte command, int length, Random random) {
+        byte[] body = new byte[length];
+        random.nextBytes(body);
+        return ByteBuffer.allocate(4 + 1 + 2 + length).putInt(0).put(command).putShort((short) length).put(body).array();
+    }
+
+    private void assertReceives(int index) throws InterruptedException {
+        Cell cell = circuit.nextCell();
+        assertInstanceOf(RelayCell.EncryptedRelayCell.class, cell);
+        byte[] body = ((RelayCell.EncryptedRelayCell) cell).getEncryptedBody();
+        byte[] expected = RecordingCircuit.relayCell(1, index);
+        assertArrayEquals(Arrays.copyOfRange(expected, 5, expected.length), body);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void framesCellsSplitAcrossReads(boolean virtualThreads) throws Exception {
+        guard.startCellListener(virtualThreads);
+        // Relay cells, with variable length cells and padding in between, which all have to be skipped over correctly.
+        Random random = new Random(0);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int relayCells = 200;
+        for (int i = 0; i < relayCells; i++) {
+            stream.write(RecordingCircuit.relayCell(1, i));
+            switch (random.nextInt(3)) {
+                case 0 -> stream.write(variableLengthCell(Cell.AUTH_CHALLENGE, random.nextInt(600), random));
+                case 1 -> stream.write(new byte[CELL_LENGTH]);
+            }
+        }
+        // Every write goes out as its own tls record, so the cells (and even their headers) end up split across reads at random places.
+        byte[] data = stream.toByteArray();
+        OutputStream outputStream = serverSocket.getOutputStream();
+        for (int offset = 0; offset < data.length; ) {
+            int length = Math.min(1 + random.nextInt(1500), data.length - offset);
+            outputStream.write(data, offset, length);
+            outputStream.flush();
+            offset += length;
+        }
+        for (int i = 0; i < relayCells; i++)
+            assertReceives(i);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void framesBurstsLargerThanTheBuffers(boolean virtualThreads) throws Exception {
+        guard.startCellListener(virtualThreads);
+        // Several megabytes in as few records as possible, far more than the receive buffers can hold at once.
+        int relayCells = 8000;
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < relayCells; i++)
+            stream.write(RecordingCircuit.relayCell(1, i));
+        serverSocket.getOutputStream().write(stream.toByteArray());
+        for (int i = 0; i < relayCells; i++)
+            assertReceives(i);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void destroyCellDestroysTheCircuit(boolean virtualThreads) throws Exception {
+        guard.startCellListener(virtualThreads);
+        OutputStream outputStream = serverSocket.getOutputStream();
+        outputStream.write(RecordingCircuit.relayCell(1, 0));
+        outputStream.write(new DestroyCell(Circuit.getValidCircuitId(1), DestroyCell.DestroyReason.FINISHED).serialiseCell());
+        // Cells for a circuit that's gone are dropped, while the connection and its other circuits carry on.
+        outputStream.write(RecordingCircuit.relayCell(1, 1));
+        RecordingCircuit other = new RecordingCircuit(2, guard);
+        outputStream.write(RecordingCircuit.relayCell(2, 2));
+        assertReceives(0);
+        assertEquals(DestroyCell.DestroyReason.FINISHED.getReason(), circuit.nextDestroyReason());
+        assertNotNull(other.nextCell());
+        assertEquals(0, circuit.cellCount());
+        assertTrue(guard.isConnected());
+    }
+
+    private CountDownLatch blockEventLoop() throws Exception {
+        // Stalls the guard's event loop inside a circuit, so that no flush deadline can run until the returned latch is released.
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        releaseEventLoop = release;
+        new RecordingCircuit(2, guard) {
+            @Override
+            public void addCell(Cell cell) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+            }
+        };
+        serverSocket.getOutputStream().write(RecordingCircuit.relayCell(2, 0));
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private int sendCells(int cells, boolean flush) {
+        for (int i = 0; i < cells; i++)
+            assertTrue(guard.sendCell(new RelayCell.EncryptedRelayCell(Circuit.getValidCircuitId(1), false, new byte[Cell.FIXED_CELL_BODY_LENGTH]), flush));
+        return cells;
+    }
+
+    private int recordsFor(int cells, int recordsBefore) throws IOException {
+        // Every cell that was sent has to arrive before the records are counted, and the front relay counts them before passing them on.
+        byte[] received = serverSocket.getInputStream().readNBytes(cells * CELL_LENGTH);
+        assertEquals(cells * CELL_LENGTH, received.length);
+        return server.getClientRecords() - recordsBefore;
+    }
+
+    @Test
+    void cellsAreFlushedRightAwayBeforeTheEventLoop() throws Exception {
+        int before = server.getClientRecords();
+        // The link handshake happens before anything could flush a batch later on.
+        assertEquals(5, recordsFor(sendCells(5, false), before));
+    }
+
+    @Test
+    void cellsAreCoalescedUntilFlushed() throws Exception {
+        guard.startCellListener(false);
+        CountDownLatch release = blockEventLoop();
+        int before = server.getClientRecords();
+        int cells = sendCells(19, false) + sendCells(1, true);
+        assertEquals(1, recordsFor(cells, before));
+        release.countDown();
+    }
+
+    @Test
+    void flushedCellsAreNotCoalesced() throws Exception {
+        guard.startCellListener(false);
+        CountDownLatch release = blockEventLoop();
+        int before = server.getClientRecords();
+        assertEquals(20, recordsFor(sendCells(20, true), before));
+        release.countDown();
+    }
+
+    @Test
+    void fullBatchIsWrittenAsASingleRecord() throws Exception {
+        guard.startCellListener(false);
+        CountDownLatch release = blockEventLoop();
+        int before = server.getClientRecords();
+        // 31 cells fill a batch, so the 32nd one pushes it out, and the rest go out with the explicit flush.
+        int cells = sendCells(40, false);
+        assertTrue(guard.flush());
+        assertEquals(2, recordsFor(cells, before));
+        release.countDown();
+    }
+
+    @Test
+    void partialBatchIsFlushedOnceTheDeadlinePasses() throws Exception {
+        guard.startCellListener(false);
+        CountDownLatch release = blockEventLoop();
+        int before = server.getClientRecords();
+        int cells = sendCells(3, false);
+        assertEquals(0, serverSocket.getInputStream().available());
+        // Nothing flushes the batch explicitly, it's the event loop that does once it gets to the deadline.
+        release.countDown();
+        assertEquals(1, recordsFor(cells, before));
+    }
+
+    @Test
+    void concurrentTerminationTearsDownOnce() throws Exception {
+        // Everything that notices a dead link terminates it (the event loop, failed writes, circuits), often at the same time.
+        // The race is narrow, so it's run many times over, on guards without a link since those are cheap to set up.
+        for (int round = 0; round < 200; round++) {
+            Guard guard = new Guard("127.0.0.1", 0, new byte[20]);
+            guard.connected.set(true);
+            RecordingCircuit circuit = new RecordingCircuit(1, guard);
+            CyclicBarrier start = new CyclicBarrier(4);
+            ArrayList<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                threads.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException | BrokenBarrierException ignored) {}
+                    guard.terminate();
+                }));
+            }
+            for (Thread thread : threads)
+                thread.join();
+            assertFalse(guard.isConnected());
+            assertEquals(1, circuit.destroyCount(), "round " + round);
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package snowy.autumn.tor.relay;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LinkChannelTest {
+
+    private LoopbackTlsServer server;
+    private LinkChannel linkChannel;
+    private SSLSocket serverSocket;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new LoopbackTlsServer();
+        CompletableFuture<SSLSocket> accepted = server.acceptAsync();
+        linkChannel = LinkChannel.open("127.0.0.1", server.getPort());
+        serverSocket = accepted.get(10, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        linkChannel.close();
+        server.close();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private int readPlaintext(long timeoutMillis) throws Exception {
+        // Polls the non-blocking channel the same way the event loop does when it's told that the channel is readable.
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            int read = linkChannel.readPlaintext();
+            if (read != 0) return read;
+            Thread.sleep(1);
+        }
+        return 0;
+    }
+
+    @Test
+    void queuesWhatTheSocketCannotTakeAndFlushesItLater() throws Exception {
+        linkChannel.configureBlocking(false);
+        linkChannel.getChannel().setOption(StandardSocketOptions.SO_SNDBUF, 8192);
+        // Far more than the socket buffers along the way can hold, while the server isn't reading anything.
+        byte[] data = randomBytes(8 * 1024 * 1024);
+        for (int offset = 0; offset < data.length; offset += 16384)
+            assertTrue(linkChannel.write(ByteBuffer.wrap(data, offset, Math.min(16384, data.length - offset))));
+        assertTrue(linkChannel.hasPendingOutput());
+        assertFalse(linkChannel.flushPending());
+
+        // Once the server reads, everything that was queued goes out, in order.
+        CompletableFuture<byte[]> received = CompletableFuture.supplyAsync(() -> {
+            try {
+                return serverSocket.getInputStream().readNBytes(data.length);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (!linkChannel.flushPending()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertFalse(linkChannel.hasPendingOutput());
+        assertArrayEquals(data, received.get(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void writesAfterQueuedOutputKeepTheirOrder() throws Exception {
+        linkChannel.configureBlocking(false);
+        linkChannel.getChannel().setOption(StandardSocketOptions.SO_SNDBUF, 8192);
+        byte[] first = randomBytes(4 * 1024 * 1024);
+        byte[] second = randomBytes(100);
+        assertTrue(linkChannel.write(ByteBuffer.wrap(first)));
+        assertTrue(linkChannel.hasPendingOutput());
+        // This one could fit in the socket buffer by now, but it must not overtake what's queued.
+        assertTrue(linkChannel.write(ByteBuffer.wrap(second)));
+        CompletableFuture<byte[]> received = CompletableFuture.supplyAsync(() -> {
+            try {
+                return serverSocket.getInputStream().readNBytes(first.length + second.length);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        while (!linkChannel.flushPending())
+            Thread.sleep(1);
+        byte[] expected = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+        assertArrayEquals(expected, received.get(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void readsWithoutBlocking() throws Exception {
+        linkChannel.configureBlocking(false);
+        // Nothing was sent yet.
+        assertEquals(0, linkChannel.readPlaintext());
+        assertEquals(0, linkChannel.plaintext().remaining());
+
+        byte[] data = randomBytes(100_000);
+        serverSocket.getOutputStream().write(data);
+        serverSocket.getOutputStream().flush();
+        ByteBuffer plaintext = ByteBuffer.allocate(data.length);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (plaintext.hasRemaining()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            assertTrue(linkChannel.readPlaintext() >= 0);
+            // Only part of what's buffered is consumed, the same way a partial cell is left for the next read.
+            ByteBuffer buffered = linkChannel.plaintext();
+            if (!buffered.hasRemaining()) {
+                Thread.sleep(1);
+                continue;
+            }
+            int consumed = Math.max(1, buffered.remaining() / 2);
+            plaintext.put(buffered.slice(buffered.position(), consumed));
+            buffered.position(buffered.position() + consumed);
+        }
+        assertArrayEquals(data, plaintext.array());
+
+        serverSocket.close();
+        assertEquals(-1, readPlaintext(10_000));
+    }
+
+    @Test
+    void readsInBlockingMode() throws Exception {
+        // Before the event loop takes over (and in virtual thread mode) the channel stays blocking.
+        byte[] data = randomBytes(1000);
+        CompletableFuture.runAsync(() -> {
+            try {
+                serverSocket.getOutputStream().write(data);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        ByteBuffer plaintext = ByteBuffer.allocate(data.length);
+        while (plaintext.hasRemaining()) {
+            assertTrue(linkChannel.readPlaintext() > 0);
+            plaintext.put(linkChannel.plaintext());
+        }
+        assertArrayEquals(data, plaintext.array());
+    }
+
+}
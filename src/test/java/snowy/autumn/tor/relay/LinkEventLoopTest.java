@@ -0,0 +1,112 @@
+package snowy.autumn.tor.relay;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import snowy.autumn.tor.cell.Cell;
+import snowy.autumn.tor.cell.cells.DestroyCell;
+import snowy.autumn.tor.cell.cells.relay.RelayCell;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LinkEventLoopTest {
+
+    // More connections than there can ever be event loops, so that every loop ends up serving more than one of them.
+    private static final int CONNECTIONS = 9;
+
+    private LoopbackTlsServer server;
+    private final List<Guard> guards = new ArrayList<>();
+    private final List<SSLSocket> serverSockets = new ArrayList<>();
+    private final List<RecordingCircuit> circuits = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new LoopbackTlsServer();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            Guard guard = new Guard("127.0.0.1", server.getPort(), new byte[20]);
+            serverSockets.add(server.connect(guard));
+            circuits.add(new RecordingCircuit(1, guard));
+            guard.startCellListener(false);
+            guards.add(guard);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (Guard guard : guards)
+            guard.terminate();
+        server.close();
+    }
+
+    private void send(int connection, byte[] data) throws IOException {
+        serverSockets.get(connection).getOutputStream().write(data);
+    }
+
+    private void assertReceives(int connection, int index) throws InterruptedException {
+        Cell cell = circuits.get(connection).nextCell();
+        assertInstanceOf(RelayCell.EncryptedRelayCell.class, cell);
+        assertEquals(index, ByteBuffer.wrap(((RelayCell.EncryptedRelayCell) cell).getEncryptedBody()).getInt());
+    }
+
+    @Test
+    void connectionsShareAFewThreads() throws Exception {
+        HashSet<String> threads = new HashSet<>();
+        for (int i = 0; i < CONNECTIONS; i++)
+            send(i, RecordingCircuit.relayCell(1, i));
+        for (int i = 0; i < CONNECTIONS; i++) {
+            assertReceives(i, i);
+            String thread = circuits.get(i).nextThread();
+            assertTrue(thread.startsWith("link-event-loop-"), thread);
+            threads.add(thread);
+        }
+        assertTrue(threads.size() <= 4, threads.toString());
+        assertTrue(threads.size() < CONNECTIONS);
+    }
+
+    @Test
+    void failingConnectionOnlyTakesDownItself() throws Exception {
+        LinkedBlockingQueue<Throwable> reported = new LinkedBlockingQueue<>();
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, throwable) -> reported.add(throwable));
+        try {
+            // A cell with an unknown command can't be parsed, which throws on the event loop thread.
+            byte[] unknownCell = new byte[4 + 1 + Cell.FIXED_CELL_BODY_LENGTH];
+            unknownCell[4] = 99;
+            send(0, unknownCell);
+            assertNotNull(reported.poll(10, TimeUnit.SECONDS));
+            assertEquals(DestroyCell.DestroyReason.CHANNEL_CLOSED.getReason(), circuits.get(0).nextDestroyReason());
+            assertFalse(guards.get(0).isConnected());
+        }
+        finally {
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+
+        // Every other connection (including the ones on the same loop as the failed one) keeps going.
+        for (int i = 1; i < CONNECTIONS; i++)
+            send(i, RecordingCircuit.relayCell(1, i));
+        for (int i = 1; i < CONNECTIONS; i++) {
+            assertReceives(i, i);
+            assertTrue(guards.get(i).isConnected());
+            assertEquals(0, circuits.get(i).destroyCount());
+        }
+    }
+
+    @Test
+    void closedConnectionIsTerminated() throws Exception {
+        serverSockets.get(0).close();
+        assertEquals(DestroyCell.DestroyReason.CHANNEL_CLOSED.getReason(), circuits.get(0).nextDestroyReason());
+        assertFalse(guards.get(0).isConnected());
+        send(1, RecordingCircuit.relayCell(1, 1));
+        assertReceives(1, 1);
+    }
+
+}
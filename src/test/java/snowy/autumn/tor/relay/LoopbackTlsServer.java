@@ -0,0 +1,211 @@
+package snowy.autumn.tor.relay;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.TBSCertificate;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V3TBSCertificateGenerator;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoopbackTlsServer implements AutoCloseable {
+
+    // A TLS server on 127.0.0.1 that links can connect to, which stands in for the relay side of a connection.
+    // Clients connect through a plain TCP relay in front of it, which counts the TLS records that the client sends.
+    // Record headers aren't encrypted, so that's how tests can tell how many writes the cells were coalesced into.
+    private static final int SOCKET_BUFFER_SIZE = 8192;
+
+    private final SSLServerSocket tlsServer;
+    private final ServerSocket frontServer;
+    private final AtomicInteger clientRecords = new AtomicInteger();
+    private final ArrayList<Socket> sockets = new ArrayList<>();
+
+    LoopbackTlsServer() throws IOException {
+        tlsServer = (SSLServerSocket) createContext().getServerSocketFactory().createServerSocket();
+        // Small buffers, so that a peer that isn't reading makes the writer block (or queue its output) quickly.
+        tlsServer.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        tlsServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        frontServer = new ServerSocket();
+        frontServer.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        frontServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread thread = new Thread(this::relayConnections, "loopback-tls-front");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static SSLContext createContext() {
+        try {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+            keyPairGenerator.initialize(256);
+            KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+            AlgorithmIdentifier signatureAlgorithm = new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA256);
+            long now = System.currentTimeMillis();
+            V3TBSCertificateGenerator generator = new V3TBSCertificateGenerator();
+            generator.setSerialNumber(new ASN1Integer(BigInteger.valueOf(now)));
+            generator.setIssuer(new X500Name("CN=loopback"));
+            generator.setSubject(new X500Name("CN=loopback"));
+            generator.setStartDate(new Time(new Date(now - 60 * 60 * 1000L)));
+            generator.setEndDate(new Time(new Date(now + 24 * 60 * 60 * 1000L)));
+            generator.setSubjectPublicKeyInfo(SubjectPublicKeyInfo.getInstance(keyPair.getPublic().getEncoded()));
+            generator.setSignature(signatureAlgorithm);
+            TBSCertificate tbsCertificate = generator.generateTBSCertificate();
+            Signature signature = Signature.getInstance("SHA256withECDSA");
+            signature.initSign(keyPair.getPrivate());
+            signature.update(tbsCertificate.getEncoded());
+            byte[] encoded = new DERSequence(new ASN1Encodable[]{
+                    tbsCertificate, signatureAlgorithm, new DERBitString(signature.sign())
+            }).getEncoded();
+            X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(encoded));
+
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(null, null);
+            char[] password = new char[0];
+            keyStore.setKeyEntry("link", keyPair.getPrivate(), password, new Certificate[]{certificate});
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, password);
+            SSLContext sslContext = SSLContext.getInstance("TLSv1.3");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            return sslContext;
+        } catch (GeneralSecurityException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void relayConnections() {
+        try {
+            while (true) {
+                Socket client = frontServer.accept();
+                Socket server = new Socket();
+                server.setSendBufferSize(SOCKET_BUFFER_SIZE);
+                server.connect(tlsServer.getLocalSocketAddress());
+                client.setSendBufferSize(SOCKET_BUFFER_SIZE);
+                synchronized (sockets) {
+                    sockets.add(client);
+                    sockets.add(server);
+                }
+                pump(client, server, true);
+                pump(server, client, false);
+            }
+        } catch (IOException ignored) {
+            // The server was closed.
+        }
+    }
+
+    private void pump(Socket from, Socket to, boolean countRecords) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[4096];
+            // The number of bytes left until the next record header, and how much of the header was already seen.
+            int recordRemaining = 0;
+            int headerRead = 0;
+            byte[] header = new byte[5];
+            try {
+                InputStream inputStream = from.getInputStream();
+                OutputStream outputStream = to.getOutputStream();
+                int read;
+                while ((read = inputStream.read(buffer)) > 0) {
+                    if (countRecords) {
+                        for (int i = 0; i < read; ) {
+                            if (recordRemaining > 0) {
+                                int skipped = Math.min(recordRemaining, read - i);
+                                recordRemaining -= skipped;
+                                i += skipped;
+                                continue;
+                            }
+                            header[headerRead++] = buffer[i++];
+                            if (headerRead == header.length) {
+                                recordRemaining = (header[3] & 0xFF) << 8 | (header[4] & 0xFF);
+                                headerRead = 0;
+                                clientRecords.incrementAndGet();
+                            }
+                        }
+                    }
+                    outputStream.write(buffer, 0, read);
+                }
+                to.shutdownOutput();
+            } catch (IOException ignored) {
+                // One of the sides was closed.
+            }
+        }, "loopback-tls-pump");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return frontServer.getLocalPort();
+    }
+
+    CompletableFuture<SSLSocket> acceptAsync() {
+        // The tls handshake blocks on both sides, so the server side of it has to run on another thread.
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                SSLSocket socket = (SSLSocket) tlsServer.accept();
+                socket.startHandshake();
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+                return socket;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    SSLSocket connect(Guard guard) throws Exception {
+        // Connects the guard the way the client does, minus the link handshake, which this server doesn't speak.
+        CompletableFuture<SSLSocket> accepted = acceptAsync();
+        assertTrue(guard.connect());
+        guard.highestSupportedVersion = 5;
+        return accepted.get(10, TimeUnit.SECONDS);
+    }
+
+    int getClientRecords() {
+        // The number of TLS records the client has sent so far (including the ones of the handshake).
+        return clientRecords.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        frontServer.close();
+        tlsServer.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets)
+                socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package snowy.autumn.tor.relay;
+
+import snowy.autumn.tor.cell.Cell;
+import snowy.autumn.tor.cell.cells.relay.RelayCell;
+import snowy.autumn.tor.circuit.Circuit;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+class RecordingCircuit extends Circuit {
+
+    // A circuit that keeps every cell its guard hands it (and the thread that did), instead of processing them.
+    private final LinkedBlockingQueue<Cell> cells = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<String> threads = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Byte> destroyReasons = new LinkedBlockingQueue<>();
+
+    RecordingCircuit(int circuitId, Guard guard) {
+        super(circuitId, guard);
+    }
+
+    static byte[] relayCell(int circuitId, int index) {
+        // A RELAY cell whose (fake) encrypted body starts with the given index, so that tests can tell cells apart.
+        byte[] body = new byte[Cell.FIXED_CELL_BODY_LENGTH];
+        for (int i = 0; i < body.length; i++)
+            body[i] = (byte) (index * 31 + i);
+        body[0] = (byte) (index >> 24);
+        body[1] = (byte) (index >> 16);
+        body[2] = (byte) (index >> 8);
+        body[3] = (byte) index;
+        return new RelayCell.EncryptedRelayCell(getValidCircuitId(circuitId), false, body).serialiseCell();
+    }
+
+    @Override
+    public void addCell(Cell cell) {
+        threads.add(Thread.currentThread().getName());
+        cells.add(cell);
+    }
+
+    @Override
+    public void destroyed(byte reason) {
+        destroyReasons.add(reason);
+    }
+
+    Cell nextCell() throws InterruptedException {
+        return cells.poll(10, TimeUnit.SECONDS);
+    }
+
+    String nextThread() throws InterruptedException {
+        return threads.poll(10, TimeUnit.SECONDS);
+    }
+
+    Byte nextDestroyReason() throws InterruptedException {
+        return destroyReasons.poll(10, TimeUnit.SECONDS);
+    }
+
+    int cellCount() {
+        return cells.size();
+    }
+
+    int destroyCount() {
+        return destroyReasons.size();
+    }
+
+}
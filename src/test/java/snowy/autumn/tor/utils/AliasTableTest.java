@@ -0,0 +1,59 @@
+package snowy.autumn.tor.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AliasTableTest {
+
+    private static final int SAMPLES = 1_000_000;
+
+    private static int[] sample(AliasTable aliasTable, int samples) {
+        Random random = new Random(0);
+        int[] counts = new int[aliasTable.size()];
+        for (int i = 0; i < samples; i++)
+            counts[aliasTable.sample(random)]++;
+        return counts;
+    }
+
+    @Test
+    void samplesInProportionToWeights() {
+        double[] weights = {1, 2, 3, 4, 10, 0.5, 79.5};
+        int[] counts = sample(new AliasTable(weights), SAMPLES);
+        double total = 0;
+        for (double weight : weights) total += weight;
+        for (int i = 0; i < weights.length; i++) {
+            double expected = SAMPLES * weights[i] / total;
+            // Well over 5 standard deviations for every entry, so this doesn't fail by chance.
+            assertEquals(expected, counts[i], 6 * Math.sqrt(expected) + 1, "entry " + i);
+        }
+    }
+
+    @Test
+    void neverSamplesEntriesWithoutWeight() {
+        double[] weights = {0, 5, 0, -3, 5, 0};
+        int[] counts = sample(new AliasTable(weights), SAMPLES / 10);
+        assertEquals(0, counts[0]);
+        assertEquals(0, counts[2]);
+        assertEquals(0, counts[3]);
+        assertEquals(0, counts[5]);
+        assertEquals(SAMPLES / 10, counts[1] + counts[4]);
+    }
+
+    @Test
+    void samplesUniformlyWhenNothingHasWeight() {
+        int[] counts = sample(new AliasTable(new double[4]), SAMPLES);
+        for (int count : counts)
+            assertEquals(SAMPLES / 4.0, count, 6 * Math.sqrt(SAMPLES / 4.0));
+    }
+
+    @Test
+    void handlesSingleAndHugelySkewedEntries() {
+        assertArrayEquals(new int[]{1000}, sample(new AliasTable(new double[]{42}), 1000));
+        int[] counts = sample(new AliasTable(new double[]{1e-9, 1e9}), SAMPLES);
+        assertTrue(counts[0] <= 1);
+    }
+
+}